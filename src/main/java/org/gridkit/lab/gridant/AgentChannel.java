@@ -0,0 +1,587 @@
+package org.gridkit.lab.gridant;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.Socket;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bidirectional call channel between master and agent JVM over a socket.
+ * <p>
+ * Objects implementing {@link Remote} are passed by reference, same way
+ * as Nanocloud remoting does. They are replaced by proxies, which invoke
+ * methods over the channel. Incoming calls are served by a cached thread
+ * pool, so callbacks (e.g. {@link MasterExecutor}) could be invoked while
+ * outer call is in progress.
+ * <p>
+ * Each message is serialized separately, so a class missing on one side
+ * fails only the call using it.
+ * <p>
+ * Connecting side starts with fixed size access token, nothing is deserialized
+ * by accepting side before token is verified. Only methods of {@link Remote}
+ * interfaces implemented by exported objects could be invoked.
+ */
+class AgentChannel {
+
+	/** Id of object exported on channel creation */
+	static final long ROOT_ID = 0;
+
+	/** Length of access token, tokens are hex strings */
+	static final int TOKEN_LENGTH = 32;
+
+	static final int MAGIC = 0x47414731; // GAG1
+
+	private static final int MAX_HANDSHAKE_FRAME = 64 << 10;
+	private static final int MAX_FRAME = 256 << 20;
+
+	private static final byte HANDSHAKE = 0;
+	private static final byte CALL = 1;
+	private static final byte REPLY = 2;
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final ClassLoader classLoader;
+	private final Runnable closeHook;
+
+	private final Map<Long, Object> exports = new ConcurrentHashMap<Long, Object>();
+	private final Map<Object, Long> exportIds = new IdentityHashMap<Object, Long>();
+	private final AtomicLong idGen = new AtomicLong(ROOT_ID + 1);
+	private final Map<Long, PendingCall> pending = new ConcurrentHashMap<Long, PendingCall>();
+	private final ExecutorService executor = Executors.newCachedThreadPool(new CloudContext.DaemonThreadFactory("GridAnt-AgentCall"));
+
+	private volatile boolean closed;
+
+	/**
+	 * @param root object served as {@link #ROOT_ID}, may be <code>null</code>
+	 * @param closeHook invoked once channel is closed, may be <code>null</code>
+	 */
+	public AgentChannel(Socket socket, Object root, Runnable closeHook) throws IOException {
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		this.classLoader = AgentChannel.class.getClassLoader();
+		this.closeHook = closeHook;
+		if (root != null) {
+			exports.put(ROOT_ID, root);
+		}
+	}
+
+	/**
+	 * First message of connecting side.
+	 */
+	public void sendToken(String token) throws IOException {
+		synchronized(out) {
+			out.writeInt(MAGIC);
+			out.write(tokenBytes(token));
+			out.flush();
+		}
+	}
+
+	/**
+	 * Reads fixed size token frame and compares it in constant time.
+	 * @return <code>false</code> if peer hasn't presented expected token
+	 */
+	public boolean receiveToken(String expected) throws IOException {
+		int magic = in.readInt();
+		if (magic != MAGIC) {
+			return false;
+		}
+		byte[] token = new byte[TOKEN_LENGTH];
+		in.readFully(token);
+		return MessageDigest.isEqual(token, tokenBytes(expected));
+	}
+
+	private static byte[] tokenBytes(String token) throws IOException {
+		byte[] bytes = token.getBytes("US-ASCII");
+		if (bytes.length != TOKEN_LENGTH) {
+			throw new IllegalArgumentException("Token should be " + TOKEN_LENGTH + " characters long");
+		}
+		return bytes;
+	}
+
+	/**
+	 * Handshake messages are exchanged before {@link #start()}.
+	 */
+	public void sendHandshake(Object message) throws IOException {
+		writeFrame(HANDSHAKE, 0, encode(message));
+	}
+
+	public Object receiveHandshake() throws IOException {
+		byte kind = in.readByte();
+		in.readLong();
+		byte[] payload = readPayload(MAX_HANDSHAKE_FRAME);
+		if (kind != HANDSHAKE) {
+			throw new IOException("Handshake expected");
+		}
+		try {
+			return decode(payload);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Bad handshake: " + e);
+		}
+	}
+
+	private byte[] readPayload(int maxLength) throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > maxLength) {
+			throw new IOException("Bad frame length " + len);
+		}
+		byte[] payload = new byte[len];
+		in.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * Starts serving incoming messages.
+	 */
+	public void start() {
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		};
+		reader.setName("GridAnt-AgentChannel-" + socket.getRemoteSocketAddress());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * @return proxy for root object of other side
+	 */
+	public <T> T getRoot(Class<T> facade) {
+		return facade.cast(proxy(ROOT_ID, new Class<?>[]{facade}));
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public void close() {
+		synchronized(this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		for(PendingCall call: pending.values()) {
+			call.complete(new Outcome(null, new RemoteException("Agent connection is closed")));
+		}
+		pending.clear();
+		executor.shutdown();
+		exports.clear();
+		synchronized(exportIds) {
+			exportIds.clear();
+		}
+		if (closeHook != null) {
+			closeHook.run();
+		}
+	}
+
+	private void readLoop() {
+		try {
+			while(!closed) {
+				byte kind = in.readByte();
+				final long callId = in.readLong();
+				final byte[] payload = readPayload(MAX_FRAME);
+				if (kind == CALL) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							serve(callId, payload);
+						}
+					});
+				}
+				else if (kind == REPLY) {
+					PendingCall call = pending.remove(callId);
+					if (call != null) {
+						Outcome outcome;
+						try {
+							outcome = (Outcome) decode(payload);
+						} catch (Exception e) {
+							outcome = new Outcome(null, e);
+						}
+						call.complete(outcome);
+					}
+				}
+			}
+		}
+		catch(IOException e) {
+			// connection is lost
+		}
+		finally {
+			close();
+		}
+	}
+
+	private void serve(long callId, byte[] payload) {
+		Outcome outcome;
+		try {
+			Invocation inv = (Invocation) decode(payload);
+			Object target = exports.get(inv.target);
+			if (target == null) {
+				throw new NoSuchObjectException("Object " + inv.target + " is not exported");
+			}
+			ClassLoader cl = target.getClass().getClassLoader() == null ? classLoader : target.getClass().getClassLoader();
+			Class<?> type = Class.forName(inv.type, false, cl);
+			if (!type.isInterface() || !Remote.class.isAssignableFrom(type) || !type.isInstance(target)) {
+				throw new NoSuchMethodException(inv.type + " is not a remote interface of object " + inv.target);
+			}
+			Class<?>[] params = new Class<?>[inv.params.length];
+			for(int i = 0; i != params.length; ++i) {
+				params[i] = classForName(inv.params[i], cl);
+			}
+			Method m = type.getMethod(inv.method, params);
+			// remote interfaces may be package private
+			m.setAccessible(true);
+			outcome = new Outcome(m.invoke(target, inv.args), null);
+		}
+		catch(InvocationTargetException e) {
+			outcome = new Outcome(null, e.getCause());
+		}
+		catch(Throwable e) {
+			outcome = new Outcome(null, e);
+		}
+		byte[] data;
+		try {
+			data = encode(outcome);
+		}
+		catch(IOException e) {
+			try {
+				data = encode(new Outcome(null, new RemoteException("Failed to serialize result: " + e)));
+			}
+			catch(IOException ee) {
+				close();
+				return;
+			}
+		}
+		try {
+			writeFrame(REPLY, callId, data);
+		}
+		catch(IOException e) {
+			close();
+		}
+	}
+
+	private Outcome call(long target, Method method, Object[] args) {
+		Invocation inv = new Invocation();
+		inv.target = target;
+		inv.type = method.getDeclaringClass().getName();
+		inv.method = method.getName();
+		Class<?>[] params = method.getParameterTypes();
+		inv.params = new String[params.length];
+		for(int i = 0; i != params.length; ++i) {
+			inv.params[i] = params[i].getName();
+		}
+		inv.args = args;
+
+		long callId = idGen.incrementAndGet();
+		PendingCall call = new PendingCall();
+		pending.put(callId, call);
+		try {
+			if (closed) {
+				return new Outcome(null, new RemoteException("Agent connection is closed"));
+			}
+			writeFrame(CALL, callId, encode(inv));
+			return call.await();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new Outcome(null, new RemoteException("Interrupted"));
+		}
+		catch(IOException e) {
+			return new Outcome(null, e instanceof RemoteException ? e : new RemoteException("Call failed", e));
+		}
+		finally {
+			pending.remove(callId);
+		}
+	}
+
+	private void writeFrame(byte kind, long callId, byte[] payload) throws IOException {
+		synchronized(out) {
+			out.writeByte(kind);
+			out.writeLong(callId);
+			out.writeInt(payload.length);
+			out.write(payload);
+			out.flush();
+		}
+	}
+
+	private byte[] encode(Object obj) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new RefOutputStream(bos);
+		oos.writeObject(obj);
+		oos.close();
+		return bos.toByteArray();
+	}
+
+	private Object decode(byte[] data) throws IOException, ClassNotFoundException {
+		ObjectInputStream ois = new RefInputStream(new ByteArrayInputStream(data));
+		return ois.readObject();
+	}
+
+	private Object export(Object obj) {
+		Long id;
+		synchronized(exportIds) {
+			id = exportIds.get(obj);
+			if (id == null) {
+				id = idGen.incrementAndGet();
+				exportIds.put(obj, id);
+				exports.put(id, obj);
+			}
+		}
+		List<String> names = new ArrayList<String>();
+		for(Class<?> i: remoteInterfaces(obj.getClass())) {
+			names.add(i.getName());
+		}
+		return new RemoteRef(id, names.toArray(new String[names.size()]));
+	}
+
+	private static Set<Class<?>> remoteInterfaces(Class<?> c) {
+		Set<Class<?>> result = new LinkedHashSet<Class<?>>();
+		while(c != null) {
+			for(Class<?> i: c.getInterfaces()) {
+				if (i != Remote.class && Remote.class.isAssignableFrom(i)) {
+					result.add(i);
+				}
+			}
+			c = c.getSuperclass();
+		}
+		return result;
+	}
+
+	private Object proxy(long id, Class<?>[] interfaces) {
+		return Proxy.newProxyInstance(interfaces[0].getClassLoader(), interfaces, new RemoteHandler(id));
+	}
+
+	private static Class<?> classForName(String name, ClassLoader cl) throws ClassNotFoundException {
+		if ("boolean".equals(name)) return boolean.class;
+		if ("byte".equals(name)) return byte.class;
+		if ("char".equals(name)) return char.class;
+		if ("short".equals(name)) return short.class;
+		if ("int".equals(name)) return int.class;
+		if ("long".equals(name)) return long.class;
+		if ("float".equals(name)) return float.class;
+		if ("double".equals(name)) return double.class;
+		return Class.forName(name, false, cl);
+	}
+
+	private class RemoteHandler implements InvocationHandler {
+
+		private final long id;
+
+		public RemoteHandler(long id) {
+			this.id = id;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				String name = method.getName();
+				if ("equals".equals(name)) {
+					return proxy == args[0];
+				}
+				else if ("hashCode".equals(name)) {
+					return System.identityHashCode(proxy);
+				}
+				else {
+					return "AgentRef[" + id + "@" + socket.getRemoteSocketAddress() + "]";
+				}
+			}
+			Outcome outcome = call(id, method, args == null ? new Object[0] : args);
+			if (outcome.error == null) {
+				return outcome.result;
+			}
+			Throwable e = outcome.error;
+			if (e instanceof RuntimeException || e instanceof Error) {
+				throw e;
+			}
+			for(Class<?> ex: method.getExceptionTypes()) {
+				if (ex.isInstance(e)) {
+					throw e;
+				}
+			}
+			throw new UndeclaredThrowableException(e);
+		}
+
+		AgentChannel channel() {
+			return AgentChannel.this;
+		}
+	}
+
+	private class RefOutputStream extends ObjectOutputStream {
+
+		public RefOutputStream(OutputStream out) throws IOException {
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) throws IOException {
+			if (obj instanceof Proxy && Proxy.getInvocationHandler(obj) instanceof RemoteHandler) {
+				RemoteHandler h = (RemoteHandler) Proxy.getInvocationHandler(obj);
+				if (h.channel() == AgentChannel.this) {
+					// object of other side is passed back
+					return new LocalRef(h.id);
+				}
+			}
+			else if (obj instanceof Remote && !remoteInterfaces(obj.getClass()).isEmpty()) {
+				return export(obj);
+			}
+			return obj;
+		}
+	}
+
+	private class RefInputStream extends ObjectInputStream {
+
+		public RefInputStream(InputStream in) throws IOException {
+			super(in);
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			try {
+				return classForName(desc.getName(), classLoader);
+			}
+			catch(ClassNotFoundException e) {
+				return super.resolveClass(desc);
+			}
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+			Class<?>[] ifs = new Class<?>[interfaces.length];
+			for(int i = 0; i != interfaces.length; ++i) {
+				ifs[i] = Class.forName(interfaces[i], false, classLoader);
+			}
+			return Proxy.getProxyClass(classLoader, ifs);
+		}
+
+		@Override
+		protected Object resolveObject(Object obj) throws IOException {
+			if (obj instanceof RemoteRef) {
+				RemoteRef ref = (RemoteRef) obj;
+				Class<?>[] ifs = new Class<?>[ref.interfaces.length];
+				try {
+					for(int i = 0; i != ifs.length; ++i) {
+						ifs[i] = Class.forName(ref.interfaces[i], false, classLoader);
+					}
+				}
+				catch(ClassNotFoundException e) {
+					throw new IOException("Cannot resolve remote interface: " + e);
+				}
+				return proxy(ref.id, ifs);
+			}
+			else if (obj instanceof LocalRef) {
+				Object target = exports.get(((LocalRef)obj).id);
+				if (target == null) {
+					throw new NoSuchObjectException("Object " + ((LocalRef)obj).id + " is not exported");
+				}
+				return target;
+			}
+			return obj;
+		}
+	}
+
+	private static class PendingCall {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile Outcome outcome;
+
+		void complete(Outcome outcome) {
+			this.outcome = outcome;
+			latch.countDown();
+		}
+
+		Outcome await() throws InterruptedException {
+			latch.await();
+			return outcome;
+		}
+	}
+
+	private static class Invocation implements Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		long target;
+		String type;
+		String method;
+		String[] params;
+		Object[] args;
+	}
+
+	private static class Outcome implements Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		final Object result;
+		final Throwable error;
+
+		public Outcome(Object result, Throwable error) {
+			this.result = result;
+			this.error = error;
+		}
+	}
+
+	/** Reference to object exported by sender */
+	private static class RemoteRef implements Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		final long id;
+		final String[] interfaces;
+
+		public RemoteRef(long id, String[] interfaces) {
+			this.id = id;
+			this.interfaces = interfaces;
+		}
+	}
+
+	/** Reference to object exported by receiver */
+	private static class LocalRef implements Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		final long id;
+
+		public LocalRef(long id) {
+			this.id = id;
+		}
+	}
+}
@@ -0,0 +1,511 @@
+package org.gridkit.lab.gridant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.gridkit.lab.gridant.AgentServer.AgentService;
+import org.gridkit.lab.gridant.AgentServer.Hello;
+import org.gridkit.lab.gridant.AgentServer.Welcome;
+import org.gridkit.vicluster.ViNode;
+
+/**
+ * Master side handle of persistent agent JVM of a node.
+ * <p>
+ * Agent address (host, port, access token and classpath fingerprint) is kept
+ * in <code>&lt;agentdir&gt;/&lt;node&gt;.agent</code> file between builds.
+ * On attach, agent left by previous build is reused if it is alive and its
+ * fingerprint matches current classpath. Otherwise old agent is retired and new
+ * one is started: directly for local nodes, or by a short living Nanocloud
+ * slave for remote nodes.
+ * <p>
+ * Agents listen on loopback interface only, remote agents are reached
+ * through {@link SshTunnel}. Access token is checked by agent before
+ * anything else is read from connection.
+ * <p>
+ * At the end of build agent is only detached, it terminates by itself
+ * after being idle for configured time.
+ */
+class AgentNode {
+
+	static final long DEFAULT_IDLE_TIMEOUT_SEC = 600;
+
+	private static final int CONNECT_TIMEOUT_MS = 5000;
+
+	private static final String LOCALHOST = "127.0.0.1";
+
+	private final String name;
+	private final File stateFile;
+	/** <code>null</code> for local agent */
+	private final String host;
+	/** Node used to start remote agent, <code>null</code> for local agent */
+	private final ViNode launcher;
+	/** SSH client command used to reach remote agent */
+	private final List<String> sshCommand;
+	private final List<File> classpath;
+	private final Map<String, String> props;
+	private final long idleTimeoutSec;
+	private String fingerprint;
+
+	private SshTunnel tunnel;
+	private String connectError;
+	private AgentChannel channel;
+	private AgentService service;
+	private String pid;
+	private boolean launcherUsed;
+	private ExecutorService submitPool;
+
+	/**
+	 * Agent on master host.
+	 * @param props system properties of agent (e.g. base dir), they are part of fingerprint
+	 */
+	static AgentNode local(String name, File agentDir, List<File> classpath, Map<String, String> props, long idleTimeoutSec) {
+		return new AgentNode(name, agentDir, null, null, null, classpath, props, idleTimeoutSec);
+	}
+
+	/**
+	 * Agent on remote host, it is started by <code>launcher</code> node if required.
+	 * @param sshCommand SSH client command with options, used to open tunnel to agent
+	 */
+	static AgentNode remote(String name, File agentDir, String host, ViNode launcher, List<String> sshCommand, List<File> classpath, Map<String, String> props, long idleTimeoutSec) {
+		return new AgentNode(name, agentDir, host, launcher, sshCommand, classpath, props, idleTimeoutSec);
+	}
+
+	private AgentNode(String name, File agentDir, String host, ViNode launcher, List<String> sshCommand, List<File> classpath, Map<String, String> props, long idleTimeoutSec) {
+		this.name = name;
+		this.stateFile = new File(agentDir, key(name) + ".agent");
+		this.host = host;
+		this.launcher = launcher;
+		this.sshCommand = sshCommand;
+		this.classpath = classpath;
+		this.props = new TreeMap<String, String>(props);
+		this.idleTimeoutSec = idleTimeoutSec;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return process name (pid@host) of attached agent
+	 */
+	public synchronized String getPid() {
+		return pid;
+	}
+
+	public synchronized boolean isAttached() {
+		return channel != null && !channel.isClosed();
+	}
+
+	/**
+	 * @return <code>true</code> if Nanocloud node was started to launch agent, so it should be shut down
+	 */
+	public synchronized boolean isLauncherUsed() {
+		return launcherUsed;
+	}
+
+	/**
+	 * Changes system property of agent. Properties are fixed for agent
+	 * process, so agent is detached and replaced on next attach.
+	 */
+	public synchronized void setProp(String key, String value) {
+		if (value.equals(props.get(key))) {
+			return;
+		}
+		props.put(key, value);
+		fingerprint = null;
+		detach();
+	}
+
+	/**
+	 * Connects to running agent or starts new one.
+	 */
+	public synchronized void attach() throws IOException {
+		if (isAttached()) {
+			return;
+		}
+		if (fingerprint == null) {
+			fingerprint = fingerprint(classpath, props);
+		}
+		Properties state = readState();
+		if (state != null) {
+			if (fingerprint.equals(state.getProperty("fingerprint"))) {
+				if (connect(state, false)) {
+					System.out.println("Node " + name + " attached to running agent " + pid);
+					return;
+				}
+			}
+			else {
+				// old agent will terminate once its sessions are over
+				connect(state, true);
+			}
+		}
+		state = new Properties();
+		state.setProperty("host", host == null ? LOCALHOST : host);
+		state.setProperty("token", newToken());
+		state.setProperty("fingerprint", fingerprint);
+		state.setProperty("port", String.valueOf(launch(state.getProperty("token"))));
+		writeState(state);
+		if (!connect(state, false)) {
+			throw new IOException("Cannot connect to agent of " + name + " at " + state.getProperty("host") + ":" + state.getProperty("port")
+					+ (connectError == null ? "" : ": " + connectError));
+		}
+		System.out.println("Node " + name + " started new agent " + pid);
+	}
+
+	/**
+	 * Closes connection to agent, agent stays alive until idle timeout.
+	 */
+	public synchronized void detach() {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+			service = null;
+		}
+		if (submitPool != null) {
+			submitPool.shutdown();
+			submitPool = null;
+		}
+		closeTunnel();
+	}
+
+	/**
+	 * Asks agent to terminate once other sessions (if any) are over.
+	 */
+	public synchronized void retire() {
+		detach();
+		Properties state = readState();
+		if (state != null) {
+			connect(state, true);
+			stateFile.delete();
+		}
+	}
+
+	public <T> T exec(Callable<T> task) {
+		AgentService s;
+		synchronized(this) {
+			try {
+				attach();
+			}
+			catch(IOException e) {
+				throw new RuntimeException("Failed to attach agent of " + name + ": " + e.getMessage(), e);
+			}
+			s = service;
+		}
+		try {
+			return s.exec(task);
+		}
+		catch(RuntimeException e) {
+			throw e;
+		}
+		catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public synchronized <T> Future<T> submit(final Callable<T> task) {
+		if (submitPool == null) {
+			submitPool = Executors.newCachedThreadPool(new CloudContext.DaemonThreadFactory("GridAnt-Agent-" + name));
+		}
+		return submitPool.submit(new Callable<T>() {
+			@Override
+			public T call() {
+				return exec(task);
+			}
+		});
+	}
+
+	/**
+	 * Attaches agents in parallel, starting new agents if required.
+	 */
+	static void attachAll(Collection<AgentNode> agents) {
+		if (agents.isEmpty()) {
+			return;
+		}
+		ExecutorService pool = Executors.newCachedThreadPool(new CloudContext.DaemonThreadFactory("GridAnt-AgentAttach"));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(final AgentNode agent: agents) {
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						agent.attach();
+						return null;
+					}
+				}));
+			}
+			int n = 0;
+			for(AgentNode agent: agents) {
+				try {
+					futures.get(n++).get();
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted");
+				}
+				catch(ExecutionException e) {
+					throw new RuntimeException("Failed to attach agent of " + agent.getName() + ": " + e.getCause().getMessage(), e.getCause());
+				}
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	private boolean connect(Properties state, boolean retire) {
+		connectError = null;
+		Socket socket = new Socket();
+		try {
+			socket.connect(agentAddress(state), CONNECT_TIMEOUT_MS);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout((int)AgentServer.START_TIMEOUT_MS);
+			AgentChannel ch = new AgentChannel(socket, null, null);
+			ch.sendToken(state.getProperty("token"));
+			Hello hello = new Hello();
+			hello.fingerprint = retire ? "" : fingerprint;
+			hello.retire = retire;
+			ch.sendHandshake(hello);
+			Welcome welcome = (Welcome) ch.receiveHandshake();
+			if (!welcome.accepted) {
+				connectError = welcome.reason;
+				ch.close();
+				closeTunnel();
+				return false;
+			}
+			socket.setSoTimeout(0);
+			ch.start();
+			channel = ch;
+			service = ch.getRoot(AgentService.class);
+			pid = welcome.pid;
+			return true;
+		}
+		catch(Exception e) {
+			connectError = e.getMessage();
+			try {
+				socket.close();
+			} catch (IOException ee) {
+				// ignore
+			}
+			closeTunnel();
+			return false;
+		}
+	}
+
+	/**
+	 * Local agent is connected directly, remote one via SSH tunnel.
+	 */
+	private InetSocketAddress agentAddress(Properties state) throws IOException {
+		int port = Integer.parseInt(state.getProperty("port"));
+		if (host == null) {
+			return new InetSocketAddress(LOCALHOST, port);
+		}
+		if (tunnel != null && (tunnel.getRemotePort() != port || !tunnel.isAlive())) {
+			closeTunnel();
+		}
+		if (tunnel == null) {
+			tunnel = SshTunnel.open(sshCommand, host, port);
+		}
+		return new InetSocketAddress(LOCALHOST, tunnel.getLocalPort());
+	}
+
+	private void closeTunnel() {
+		if (tunnel != null) {
+			tunnel.close();
+			tunnel = null;
+		}
+	}
+
+	private int launch(String token) throws IOException {
+		if (launcher == null) {
+			File javaExec = new File(new File(System.getProperty("java.home"), "bin"), "java");
+			return AgentServer.launch(javaExec.getPath(), classpath, stateFile.getParentFile(), new File(".").getAbsoluteFile(),
+					key(name), token, fingerprint, props, idleTimeoutSec);
+		}
+		else {
+			launcherUsed = true;
+			return launcher.exec(new RemoteLaunch(key(name), token, fingerprint, new TreeMap<String, String>(props), idleTimeoutSec));
+		}
+	}
+
+	private Properties readState() {
+		if (!stateFile.isFile()) {
+			return null;
+		}
+		try {
+			InputStream is = new FileInputStream(stateFile);
+			try {
+				Properties state = new Properties();
+				state.load(is);
+				return state;
+			}
+			finally {
+				is.close();
+			}
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+
+	private void writeState(Properties state) throws IOException {
+		stateFile.getParentFile().mkdirs();
+		File tmp = new File(stateFile.getPath() + ".tmp");
+		tmp.delete();
+		tmp.createNewFile();
+		// file contains access token
+		tmp.setReadable(false, false);
+		tmp.setReadable(true, true);
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			state.store(os, "GridAnt agent of " + name);
+		}
+		finally {
+			os.close();
+		}
+		stateFile.delete();
+		if (!tmp.renameTo(stateFile)) {
+			throw new IOException("Cannot write " + stateFile.getPath());
+		}
+	}
+
+	private static String key(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	private static String newToken() {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		return toHex(bytes);
+	}
+
+	/**
+	 * Fingerprint covers names, sizes and timestamps of classpath entries
+	 * (files of directories included), so agent is replaced once any
+	 * class is changed.
+	 */
+	static String fingerprint(List<File> classpath, Map<String, String> props) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			for(File f: classpath) {
+				update(md, f.getAbsolutePath());
+				digest(md, f);
+			}
+			for(Map.Entry<String, String> e: new TreeMap<String, String>(props).entrySet()) {
+				update(md, e.getKey() + "=" + e.getValue());
+			}
+			return toHex(md.digest());
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void digest(MessageDigest md, File f) {
+		if (f.isDirectory()) {
+			String[] names = f.list();
+			if (names != null) {
+				Arrays.sort(names);
+				for(String n: names) {
+					update(md, "/" + n);
+					digest(md, new File(f, n));
+				}
+			}
+		}
+		else {
+			update(md, ":" + f.length() + ":" + f.lastModified());
+		}
+	}
+
+	private static void update(MessageDigest md, String text) {
+		try {
+			md.update(text.getBytes("UTF-8"));
+		}
+		catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for(byte b: bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Classpath for agent, same entries as replicated to slaves.
+	 */
+	static List<File> agentClasspath(ClasspathFilter filter) {
+		List<URL> removed = filter == null || filter.isEmpty() ? Collections.<URL>emptyList() : filter.getRemoved();
+		List<File> result = new ArrayList<File>();
+		for(URL url: ClasspathFilter.masterClasspath(AgentNode.class.getClassLoader())) {
+			File file = ClasspathFilter.toFile(url);
+			if (file != null && !removed.contains(url)) {
+				result.add(file);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Starts agent on slave host, using classpath of slave.
+	 */
+	private static class RemoteLaunch implements Callable<Integer>, Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		private final String key;
+		private final String token;
+		private final String fingerprint;
+		private final TreeMap<String, String> props;
+		private final long idleTimeoutSec;
+
+		public RemoteLaunch(String key, String token, String fingerprint, TreeMap<String, String> props, long idleTimeoutSec) {
+			this.key = key;
+			this.token = token;
+			this.fingerprint = fingerprint;
+			this.props = props;
+			this.idleTimeoutSec = idleTimeoutSec;
+		}
+
+		@Override
+		public Integer call() throws IOException {
+			List<File> cp = new ArrayList<File>();
+			for(URL url: ClasspathFilter.masterClasspath(RemoteLaunch.class.getClassLoader())) {
+				File file = ClasspathFilter.toFile(url);
+				if (file != null) {
+					cp.add(file);
+				}
+			}
+			File javaExec = new File(new File(System.getProperty("java.home"), "bin"), "java");
+			File workDir = new File(new File(System.getProperty("user.home"), ".gridant"), "agents");
+			return AgentServer.launch(javaExec.getPath(), cp, workDir, new File(".").getAbsoluteFile(),
+					key, token, fingerprint, props, idleTimeoutSec);
+		}
+	}
+}
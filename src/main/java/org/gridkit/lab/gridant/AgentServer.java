@@ -0,0 +1,352 @@
+package org.gridkit.lab.gridant;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+/**
+ * Persistent agent JVM hosting slave of a node between builds.
+ * <p>
+ * Agent is started detached by {@link AgentNode}, listens for master
+ * connections on loopback interface and serves any number of sequential
+ * (or concurrent) builds. Masters on other hosts connect via SSH tunnel.
+ * Agent terminates once it has been idle (no connected masters) for
+ * configured time, or once it is retired by master whose classpath
+ * fingerprint doesn't match agent's one.
+ * <p>
+ * Usage: <code>AgentServer &lt;ready file&gt; &lt;log file&gt; &lt;fingerprint&gt; &lt;idle timeout sec&gt; &lt;bind address&gt;</code>,
+ * access token and system properties are read from stdin. Properties are applied once
+ * on start, they are part of fingerprint, so all sessions of agent share same properties.
+ * Port is written to ready file once agent is listening.
+ */
+public class AgentServer {
+
+	/** Time to wait for agent to start listening */
+	static final long START_TIMEOUT_MS = 60000;
+
+	private final String token;
+	private final String fingerprint;
+	private final long idleTimeoutMs;
+
+	private int sessions;
+	private long lastActivity = System.currentTimeMillis();
+	private boolean retired;
+
+	AgentServer(String token, String fingerprint, long idleTimeoutMs) {
+		this.token = token;
+		this.fingerprint = fingerprint;
+		this.idleTimeoutMs = idleTimeoutMs;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 5) {
+			System.err.println("Usage: AgentServer <ready file> <log file> <fingerprint> <idle timeout sec> <bind address>");
+			System.exit(1);
+		}
+		File readyFile = new File(args[0]);
+		File logFile = new File(args[1]);
+		String fingerprint = args[2];
+		long idleTimeoutMs = Long.parseLong(args[3]) * 1000;
+		String bind = args[4];
+		BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+		String token = stdin.readLine();
+		Properties props = new Properties();
+		props.load(stdin);
+		for(String key: props.stringPropertyNames()) {
+			System.setProperty(key, props.getProperty(key));
+		}
+
+		// parent may be gone soon, all output goes to log
+		PrintStream log = new PrintStream(new FileOutputStream(logFile, true), true);
+		System.setOut(log);
+		System.setErr(log);
+		System.setIn(new ByteArrayInputStream(new byte[0]));
+		ignoreSignals();
+
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName(bind));
+		File tmp = new File(readyFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		fos.write(String.valueOf(server.getLocalPort()).getBytes());
+		fos.close();
+		if (!tmp.renameTo(readyFile)) {
+			throw new IOException("Cannot create " + readyFile.getPath());
+		}
+		System.out.println("Agent " + ManagementFactory.getRuntimeMXBean().getName() + " is listening on " + server.getLocalSocketAddress() + ", fingerprint " + fingerprint);
+
+		new AgentServer(token, fingerprint, idleTimeoutMs).serve(server);
+	}
+
+	/**
+	 * Agent should survive end of build, including Ctrl+C in terminal running it.
+	 */
+	private static void ignoreSignals() {
+		try {
+			Class<?> sc = Class.forName("sun.misc.Signal");
+			Class<?> hc = Class.forName("sun.misc.SignalHandler");
+			Object ignore = hc.getField("SIG_IGN").get(null);
+			Method handle = sc.getMethod("handle", sc, hc);
+			for(String name: new String[]{"HUP", "INT"}) {
+				try {
+					handle.invoke(null, sc.getConstructor(String.class).newInstance(name), ignore);
+				}
+				catch(Exception e) {
+					// signal is not supported on this platform
+				}
+			}
+		}
+		catch(Exception e) {
+			// not available on this JVM
+		}
+	}
+
+	void serve(final ServerSocket server) throws IOException {
+		Thread watchdog = new Thread() {
+			@Override
+			public void run() {
+				while(true) {
+					try {
+						Thread.sleep(500);
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (isExpired()) {
+						System.out.println("Agent is terminating, " + (retired ? "retired" : "idle timeout"));
+						System.exit(0);
+					}
+				}
+			}
+		};
+		watchdog.setName("GridAnt-AgentWatchdog");
+		watchdog.setDaemon(true);
+		watchdog.start();
+		while(true) {
+			final Socket socket = server.accept();
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					accept(socket);
+				}
+			};
+			t.setName("GridAnt-AgentAccept");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private synchronized boolean isExpired() {
+		return sessions == 0 && (retired || System.currentTimeMillis() - lastActivity > idleTimeoutMs);
+	}
+
+	private void accept(Socket socket) {
+		AgentChannel channel = null;
+		boolean accepted = false;
+		try {
+			socket.setSoTimeout((int)START_TIMEOUT_MS);
+			socket.setTcpNoDelay(true);
+			channel = new AgentChannel(socket, new Service(), new Runnable() {
+				@Override
+				public void run() {
+					sessionClosed();
+				}
+			});
+			if (!channel.receiveToken(token)) {
+				// nothing is read or deserialized from unauthenticated peer
+				System.out.println("Connection from " + socket.getRemoteSocketAddress() + " is rejected: access denied");
+				socket.close();
+				return;
+			}
+			Hello hello = (Hello) channel.receiveHandshake();
+			Welcome welcome = new Welcome();
+			welcome.pid = ManagementFactory.getRuntimeMXBean().getName();
+			if (!fingerprint.equals(hello.fingerprint)) {
+				welcome.reason = "classpath fingerprint mismatch";
+				retire();
+			}
+			else if (hello.retire) {
+				welcome.reason = "retired";
+				retire();
+			}
+			else {
+				welcome.accepted = true;
+				sessionStarted();
+				accepted = true;
+			}
+			channel.sendHandshake(welcome);
+			if (welcome.accepted) {
+				socket.setSoTimeout(0);
+				System.out.println("Session started from " + socket.getRemoteSocketAddress());
+				channel.start();
+			}
+			else {
+				System.out.println("Connection from " + socket.getRemoteSocketAddress() + " is rejected: " + welcome.reason);
+				socket.close();
+			}
+		}
+		catch(Exception e) {
+			if (!(e instanceof EOFException)) {
+				// EOF is expected from SSH tunnel readiness check
+				System.out.println("Handshake with " + socket.getRemoteSocketAddress() + " failed: " + e);
+			}
+			if (accepted) {
+				// session counter is decremented by close hook
+				channel.close();
+			}
+			else {
+				try {
+					socket.close();
+				} catch (IOException ee) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private synchronized void sessionStarted() {
+		++sessions;
+		lastActivity = System.currentTimeMillis();
+	}
+
+	private synchronized void sessionClosed() {
+		--sessions;
+		lastActivity = System.currentTimeMillis();
+		System.out.println("Session closed, " + sessions + " session(s) active");
+	}
+
+	private synchronized void retire() {
+		retired = true;
+	}
+
+	/**
+	 * Starts detached agent JVM and waits until it is ready to accept connections.
+	 * Agent listens on loopback interface only.
+	 * @param workDir directory for agent log
+	 * @param cwd working directory of agent
+	 * @param props system properties of agent
+	 * @return agent port
+	 */
+	static int launch(String javaExec, List<File> classpath, File workDir, File cwd, String key, String token, String fingerprint, Map<String, String> props, long idleTimeoutSec) throws IOException {
+		workDir = workDir.getAbsoluteFile();
+		workDir.mkdirs();
+		File readyFile = new File(workDir, key + ".ready");
+		File logFile = new File(workDir, key + ".log");
+		readyFile.delete();
+		StringBuilder cp = new StringBuilder();
+		for(File f: classpath) {
+			if (cp.length() > 0) {
+				cp.append(File.pathSeparatorChar);
+			}
+			cp.append(f.getAbsolutePath());
+		}
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(javaExec);
+		cmd.add("-cp");
+		cmd.add(cp.toString());
+		cmd.add(AgentServer.class.getName());
+		cmd.add(readyFile.getPath());
+		cmd.add(logFile.getPath());
+		cmd.add(fingerprint);
+		cmd.add(String.valueOf(idleTimeoutSec));
+		cmd.add("127.0.0.1");
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.directory(cwd);
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		// token is not passed in command line, where it would be visible to other users
+		Writer stdin = new OutputStreamWriter(p.getOutputStream(), "UTF-8");
+		stdin.write(token + "\n");
+		Properties sysProps = new Properties();
+		sysProps.putAll(props);
+		sysProps.store(stdin, null);
+		stdin.close();
+		long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+		try {
+			while(!readyFile.exists()) {
+				try {
+					int code = p.exitValue();
+					throw new IOException("Agent process has exited with code " + code + ", see " + logFile.getPath());
+				}
+				catch(IllegalThreadStateException e) {
+					// still running
+				}
+				if (System.currentTimeMillis() > deadline) {
+					p.destroy();
+					throw new IOException("Agent hasn't started in " + START_TIMEOUT_MS + "ms, see " + logFile.getPath());
+				}
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					p.destroy();
+					throw new IOException("Interrupted");
+				}
+			}
+			BufferedReader reader = new BufferedReader(new FileReader(readyFile));
+			try {
+				return Integer.parseInt(reader.readLine().trim());
+			}
+			finally {
+				reader.close();
+			}
+		}
+		finally {
+			readyFile.delete();
+			p.getInputStream().close();
+			p.getErrorStream().close();
+		}
+	}
+
+	/**
+	 * Root object of agent side of channel.
+	 */
+	interface AgentService extends Remote {
+
+		public <T> T exec(Callable<T> task) throws Exception;
+
+	}
+
+	private static class Service implements AgentService {
+
+		@Override
+		public <T> T exec(Callable<T> task) throws Exception {
+			return task.call();
+		}
+	}
+
+	static class Hello implements Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		String fingerprint;
+		/** Ask agent to terminate, once its sessions are over */
+		boolean retire;
+	}
+
+	static class Welcome implements Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		boolean accepted;
+		String reason;
+		String pid;
+	}
+}
@@ -0,0 +1,236 @@
+package org.gridkit.lab.gridant;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per node log file with write-behind buffering.
+ * <p>
+ * Writers only append to in-memory buffer, disk IO is done
+ * by single shared background thread using large sequential writes.
+ * Files are flushed once writer has caught up with pending output,
+ * so log could be followed with <code>tail -f</code> during build.
+ * Background thread also prints rate limited progress summary to console.
+ */
+class AsyncLogSink extends OutputStream {
+
+	/** Writers will be blocked if this much data is pending */
+	private static final int MAX_PENDING = 4 << 20;
+
+	private static final int WRITE_BUFFER = 1 << 20;
+
+	private static final long SUMMARY_INTERVAL_MS = 10000;
+
+	private static final BlockingQueue<AsyncLogSink> DIRTY = new LinkedBlockingQueue<AsyncLogSink>();
+	private static final List<AsyncLogSink> ACTIVE = new CopyOnWriteArrayList<AsyncLogSink>();
+	private static WriterThread writer;
+
+	private final String name;
+	private final File file;
+	private final OutputStream out;
+	private final Object ioLock = new Object();
+	/** Guarded by {@link #ioLock} */
+	private boolean unflushed;
+
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 << 10);
+	private boolean queued;
+	private boolean closed;
+	private long bytes;
+	private long lines;
+
+	public AsyncLogSink(String name, File file) throws IOException {
+		this.name = name;
+		this.file = file;
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		this.out = new BufferedOutputStream(new FileOutputStream(file, true), WRITE_BUFFER);
+		ACTIVE.add(this);
+		ensureWriter();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getLineCount() {
+		return lines;
+	}
+
+	public synchronized long getByteCount() {
+		return bytes;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte)b}, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		while(!closed && buffer.size() > MAX_PENDING) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+		if (closed) {
+			throw new IOException("Log is closed: " + file.getPath());
+		}
+		buffer.write(b, off, len);
+		bytes += len;
+		for(int i = off; i != off + len; ++i) {
+			if (b[i] == '\n') {
+				++lines;
+			}
+		}
+		if (!queued) {
+			queued = true;
+			DIRTY.add(this);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+		flushFile();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized(this) {
+			if (closed) {
+				return;
+			}
+		}
+		flush();
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		synchronized(ioLock) {
+			out.close();
+		}
+		ACTIVE.remove(this);
+	}
+
+	private void drain() throws IOException {
+		synchronized(ioLock) {
+			byte[] chunk;
+			synchronized(this) {
+				queued = false;
+				if (buffer.size() == 0) {
+					return;
+				}
+				chunk = buffer.toByteArray();
+				buffer.reset();
+				notifyAll();
+			}
+			out.write(chunk);
+			unflushed = true;
+		}
+	}
+
+	private void flushFile() throws IOException {
+		synchronized(ioLock) {
+			if (unflushed) {
+				unflushed = false;
+				out.flush();
+			}
+		}
+	}
+
+	private static synchronized void ensureWriter() {
+		if (writer == null) {
+			writer = new WriterThread();
+			writer.start();
+		}
+	}
+
+	private static class WriterThread extends Thread {
+
+		private long lastSummary = System.currentTimeMillis();
+		private long lastLines = 0;
+		private final Set<AsyncLogSink> drained = new LinkedHashSet<AsyncLogSink>();
+
+		public WriterThread() {
+			setName("GridAnt-LogWriter");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				try {
+					AsyncLogSink sink = DIRTY.poll(1000, TimeUnit.MILLISECONDS);
+					if (sink != null) {
+						try {
+							sink.drain();
+							drained.add(sink);
+						}
+						catch(IOException e) {
+							OutputStreamHelper.stdErr.println("Failed to write log " + sink.file.getPath() + ": " + e);
+						}
+					}
+					if (DIRTY.isEmpty()) {
+						// writer has caught up, make output visible in files
+						flushDrained();
+					}
+					summary();
+				}
+				catch(InterruptedException e) {
+					// continue, this is a daemon thread
+				}
+			}
+		}
+
+		private void flushDrained() {
+			for(AsyncLogSink sink: drained) {
+				try {
+					sink.flushFile();
+				}
+				catch(IOException e) {
+					OutputStreamHelper.stdErr.println("Failed to write log " + sink.file.getPath() + ": " + e);
+				}
+			}
+			drained.clear();
+		}
+
+		private void summary() {
+			long now = System.currentTimeMillis();
+			if (now - lastSummary < SUMMARY_INTERVAL_MS) {
+				return;
+			}
+			lastSummary = now;
+			int nodes = 0;
+			long totalLines = 0;
+			long totalBytes = 0;
+			for(AsyncLogSink sink: ACTIVE) {
+				++nodes;
+				totalLines += sink.getLineCount();
+				totalBytes += sink.getByteCount();
+			}
+			if (nodes > 0 && totalLines != lastLines) {
+				lastLines = totalLines;
+				OutputStreamHelper.stdOut.println("Remote output: " + totalLines + " lines (" + (totalBytes >> 10) + " KiB) from " + nodes + " node(s) written to log files");
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package org.gridkit.lab.gridant;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.tools.ant.AntClassLoader;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.gridkit.nanocloud.VX;
+import org.gridkit.vicluster.ViNode;
+
+/**
+ * Selects master classpath entries to be replicated to slaves.
+ * <p>
+ * Entries are matched by absolute path using Ant path patterns
+ * (e.g. <code>**&#47;commons-*.jar</code>). Entries required to run
+ * slave itself (Ant core, launcher and optional task jars, ant-contrib,
+ * any <code>org.gridkit</code> jar, slf4j and log4j) are always replicated.
+ */
+class ClasspathFilter {
+
+	/**
+	 * Packages of slave runtime and its transitive dependencies
+	 * (zerormi, viconcurrent, asm, logging binding), entries
+	 * containing any of them are always replicated.
+	 * Any Ant jar is kept, remote script may use tasks from
+	 * optional jars and launcher is needed by Ant class loader.
+	 */
+	private static final String[] REQUIRED_PACKAGES = {
+		"org/apache/tools/ant/",
+		"net/sf/antcontrib/",
+		"org/gridkit/",
+		"org/objectweb/asm/",
+		"org/slf4j/",
+		"org/apache/log4j/",
+	};
+
+	private final List<String> includes = new ArrayList<String>();
+	private List<URL> removed;
+	private long keptCount;
+	private long keptSize;
+	private long removedSize;
+
+	public void addInclude(String pattern) {
+		includes.add(normalize(pattern.trim()));
+	}
+
+	public boolean isEmpty() {
+		return includes.isEmpty();
+	}
+
+	/**
+	 * Removes not matched entries from classpath of slave node.
+	 */
+	public void apply(ViNode node) {
+		for(URL url: getRemoved()) {
+			node.x(VX.CLASSPATH).remove(url);
+		}
+	}
+
+	/**
+	 * Classpath entries to be excluded from replication, calculated once.
+	 */
+	synchronized List<URL> getRemoved() {
+		if (removed == null) {
+			removed = filter(masterClasspath(ClasspathFilter.class.getClassLoader()));
+			System.out.println("Classpath filter: replicating " + keptCount + " entries (" + (keptSize >> 10) + " KiB), "
+					+ removed.size() + " entries (" + (removedSize >> 10) + " KiB) excluded");
+		}
+		return removed;
+	}
+
+	/**
+	 * @return entries of classpath which should not be replicated
+	 */
+	List<URL> filter(List<URL> classpath) {
+		List<URL> result = new ArrayList<URL>();
+		for(URL url: classpath) {
+			File file = toFile(url);
+			if (file == null) {
+				continue;
+			}
+			String path = normalize(file.getAbsolutePath());
+			if (matches(path) || isRequired(file)) {
+				++keptCount;
+				keptSize += file.length();
+			}
+			else {
+				result.add(url);
+				removedSize += file.length();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int hashCode() {
+		return includes.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof ClasspathFilter && includes.equals(((ClasspathFilter)obj).includes);
+	}
+
+	boolean matches(String path) {
+		for(String pattern: includes) {
+			if (SelectorUtils.matchPath(pattern, path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks content of jar or directory for required packages.
+	 */
+	static boolean isRequired(File file) {
+		if (file.isDirectory()) {
+			for(String pkg: REQUIRED_PACKAGES) {
+				if (new File(file, pkg).exists()) {
+					return true;
+				}
+			}
+			return false;
+		}
+		else if (file.isFile()) {
+			try {
+				ZipFile zip = new ZipFile(file);
+				try {
+					Enumeration<? extends ZipEntry> en = zip.entries();
+					while(en.hasMoreElements()) {
+						String name = en.nextElement().getName();
+						for(String pkg: REQUIRED_PACKAGES) {
+							if (name.startsWith(pkg)) {
+								return true;
+							}
+						}
+					}
+				}
+				finally {
+					zip.close();
+				}
+			}
+			catch(IOException e) {
+				// not an archive
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Collects classpath visible from class loader, same way it is seen by Nanocloud.
+	 */
+	static List<URL> masterClasspath(ClassLoader cl) {
+		Set<URL> result = new LinkedHashSet<URL>();
+		while(cl != null) {
+			if (cl instanceof AntClassLoader) {
+				addPath(result, ((AntClassLoader)cl).getClasspath());
+			}
+			else if (cl instanceof URLClassLoader) {
+				for(URL url: ((URLClassLoader)cl).getURLs()) {
+					result.add(url);
+				}
+			}
+			cl = cl.getParent();
+		}
+		addPath(result, System.getProperty("java.class.path"));
+		return new ArrayList<URL>(result);
+	}
+
+	private static void addPath(Set<URL> result, String path) {
+		if (path == null) {
+			return;
+		}
+		for(String entry: path.split(File.pathSeparator)) {
+			if (entry.length() > 0) {
+				try {
+					result.add(new File(entry).toURI().toURL());
+				} catch (MalformedURLException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	static File toFile(URL url) {
+		if (!"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			return new File(url.toURI());
+		}
+		catch(URISyntaxException e) {
+			return new File(url.getPath());
+		}
+		catch(IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static String normalize(String path) {
+		return path.replace('\\', '/').replace('/', File.separatorChar);
+	}
+}
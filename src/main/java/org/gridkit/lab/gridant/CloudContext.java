@@ -2,20 +2,51 @@ package org.gridkit.lab.gridant;
 
 import static org.gridkit.nanocloud.RemoteNode.REMOTE;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
 import org.apache.tools.ant.BuildEvent;
-import org.apache.tools.ant.BuildListener;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.SubBuildListener;
 import org.gridkit.nanocloud.Cloud;
 import org.gridkit.nanocloud.CloudFactory;
 import org.gridkit.vicluster.ViNode;
 
-public class CloudContext implements BuildListener {
+public class CloudContext implements SubBuildListener {
+
+	/** Compiled node name patterns, matching is done in loops over all nodes */
+	private static final ConcurrentMap<String, Pattern> GLOBS = new ConcurrentHashMap<String, Pattern>();
 
 	public synchronized static CloudContext getInstance(Project project) {
-		CloudContext ctx = project.getReference(GridAntRefs.CLOUD_CONTEXT);
+		CloudContext ctx = lookup(project);
 		if (ctx == null) {
 			throw new IllegalArgumentException("Cloud context is not configured");
 		}
@@ -23,17 +54,49 @@ public class CloudContext implements BuildListener {
 	}
 
 	public synchronized static CloudContext ensureInstance(Project project) {
-		CloudContext ctx = project.getReference(GridAntRefs.CLOUD_CONTEXT);
+		CloudContext ctx = lookup(project);
 		if (ctx == null) {
 			ctx = new CloudContext();
+			ctx.owner = project;
 			project.addReference(GridAntRefs.CLOUD_CONTEXT, ctx);
 			project.addBuildListener(ctx);
 		}
 		return ctx;
 	}
+
+	/**
+	 * Child projects created by <code>&lt;antcall&gt;</code>, <code>&lt;ant&gt;</code>
+	 * or <code>&lt;subant&gt;</code> inherit build listeners of parent project,
+	 * so context of parent is found among listeners and shared with child.
+	 */
+	private static CloudContext lookup(Project project) {
+		CloudContext ctx = project.getReference(GridAntRefs.CLOUD_CONTEXT);
+		if (ctx == null) {
+			for(Object listener: project.getBuildListeners()) {
+				if (listener instanceof CloudContext) {
+					ctx = (CloudContext) listener;
+					project.addReference(GridAntRefs.CLOUD_CONTEXT, ctx);
+					break;
+				}
+			}
+		}
+		return ctx;
+	}
 	
+	/** Project which has created context, context is shut down once this project is finished */
+	private Project owner;
 	private Cloud nodeset = CloudFactory.createCloud();
 	private Set<String> specificNodes = new HashSet<String>();
+	private Map<String, NodeConfigurer> declaredNodes = new HashMap<String, NodeConfigurer>();
+	private Map<String, NodeConfigurer> pendingNodes = new TreeMap<String, NodeConfigurer>();
+	private Map<String, ViNode> activeNodes = new TreeMap<String, ViNode>();
+	private List<String[]> nodeProps = new ArrayList<String[]>();
+	private Map<File, AsyncLogSink> logSinks = new HashMap<File, AsyncLogSink>();
+	private Map<String, Future<NodeStartInfo>> prestarts = new HashMap<String, Future<NodeStartInfo>>();
+	private Map<String, NodeProbe> probes = new HashMap<String, NodeProbe>();
+	private Set<String> startedNodes = new HashSet<String>();
+	private Map<String, AgentNode> agents = new HashMap<String, AgentNode>();
+	private long shutdownTimeoutMs = 30000;
 	
 	protected Cloud createCloud() {
 		return CloudFactory.createCloud();
@@ -43,25 +106,880 @@ public class CloudContext implements BuildListener {
 		return nodeset;
 	}
 	
-	public ViNode initNode(String name) {
-		if (name.indexOf('?') >= 0 || name.indexOf('*') >= 0) {
-			throw new IllegalArgumentException("Specific node name should not contain wild cards. \"" + name + "\"");
+	public synchronized ViNode initNode(String name) {
+		checkNodeName(name);
+		if (!specificNodes.add(name)) {
+			throw new IllegalStateException("Node '" + name + "' is already declared");
+		}
+		return createNode(name);
+	}
+
+	/**
+	 * Registers node without starting or configuring it.
+	 * Configurer will be invoked once node is matched by {@link #resolveNodes(String)}.
+	 * <p>
+	 * Repeated declaration with equal configuration is ignored
+	 * (e.g. same <code>&lt;cluster&gt;</code> executed by several <code>&lt;antcall&gt;</code>s).
+	 */
+	public synchronized void declareNode(String name, NodeConfigurer configurer) {
+		checkNodeName(name);
+		if (configurer.equals(declaredNodes.get(name))) {
+			return;
 		}
 		if (!specificNodes.add(name)) {
 			throw new IllegalStateException("Node '" + name + "' is already declared");
 		}
+		declaredNodes.put(name, configurer);
+		pendingNodes.put(name, configurer);
+	}
+
+	/**
+	 * Sets property for all nodes matching pattern, including
+	 * nodes which are declared, but not initialized yet.
+	 * Property is passed to persistent agent of node as well.
+	 * Repeated call with same pattern and name replaces value.
+	 */
+	public synchronized void setNodeProp(String pattern, String name, String value) {
+		boolean replaced = false;
+		for(String[] prop: nodeProps) {
+			if (prop[0].equals(pattern) && prop[1].equals(name)) {
+				prop[2] = value;
+				replaced = true;
+				break;
+			}
+		}
+		if (!replaced) {
+			nodeProps.add(new String[]{pattern, name, value});
+		}
+		for(Map.Entry<String, ViNode> e: activeNodes.entrySet()) {
+			if (matchNodeName(pattern, e.getKey())) {
+				e.getValue().setProp(name, value);
+				AgentNode agent = agents.get(e.getKey());
+				if (agent != null) {
+					agent.setProp(name, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Initializes pending nodes matching pattern and returns all matching nodes.
+	 */
+	public synchronized List<ViNode> resolveNodes(String pattern) {
+		Iterator<Map.Entry<String, NodeConfigurer>> it = pendingNodes.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, NodeConfigurer> e = it.next();
+			if (matchNodeName(pattern, e.getKey())) {
+				it.remove();
+				ViNode node = createNode(e.getKey());
+				e.getValue().configure(node);
+				Map<String, String> props = new LinkedHashMap<String, String>();
+				for(String[] prop: nodeProps) {
+					if (matchNodeName(prop[0], e.getKey())) {
+						node.setProp(prop[1], prop[2]);
+						props.put(prop[1], prop[2]);
+					}
+				}
+				if (e.getValue() instanceof AgentFactory) {
+					AgentNode agent = ((AgentFactory)e.getValue()).createAgent(e.getKey(), node, props);
+					if (agent != null) {
+						agents.put(e.getKey(), agent);
+					}
+				}
+			}
+		}
+		return new ArrayList<ViNode>(nodeset.listNodes(pattern));
+	}
+
+	/**
+	 * @return agent of node or <code>null</code> if node doesn't run in persistent agent
+	 */
+	synchronized AgentNode getAgent(String name) {
+		return agents.get(name);
+	}
+
+	private ViNode createNode(String name) {
 		ViNode node = nodeset.node(name);
 		node.x(REMOTE).useSimpleRemoting();
+		activeNodes.put(name, node);
 		return node;
 	}
+
+	private static void checkNodeName(String name) {
+		if (name.indexOf('?') >= 0 || name.indexOf('*') >= 0) {
+			throw new IllegalArgumentException("Specific node name should not contain wild cards. \"" + name + "\"");
+		}
+	}
+
+	/**
+	 * Same glob semantic as used by {@link Cloud#listNodes(String)}.
+	 * <code>*</code> does not match dot, <code>**</code> matches everything.
+	 */
+	static boolean matchNodeName(String pattern, String name) {
+		Pattern regEx = GLOBS.get(pattern);
+		if (regEx == null) {
+			// patterns come from build files, so cache size is naturally bounded
+			regEx = globToRegEx(pattern);
+			GLOBS.putIfAbsent(pattern, regEx);
+		}
+		return regEx.matcher(name).matches();
+	}
+
+	private static Pattern globToRegEx(String pattern) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < pattern.length(); ++i) {
+			char c = pattern.charAt(i);
+			if (c == '*') {
+				if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+					sb.append(".*");
+					++i;
+				}
+				else {
+					sb.append("[^.]*");
+				}
+			}
+			else if (c == '?') {
+				sb.append("[^.]");
+			}
+			else {
+				sb.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(sb.toString());
+	}
+	
+	/**
+	 * Starts nodes in background, with no more than <code>concurrency</code>
+	 * nodes being started simultaneously. Summary of start up timings 
+	 * is printed once all nodes are started.
+	 */
+	public synchronized void prestart(Collection<String> names, int concurrency) {
+		List<String> started = new ArrayList<String>();
+		for(String name: names) {
+			if (!prestarts.containsKey(name)) {
+				started.add(name);
+			}
+		}
+		if (started.isEmpty()) {
+			return;
+		}
+		final ExecutorService pool = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("GridAnt-Prestart"));
+		final List<Future<NodeStartInfo>> futures = new ArrayList<Future<NodeStartInfo>>();
+		for(final String name: started) {
+			List<ViNode> resolved = resolveNodes(name);
+			if (resolved.isEmpty()) {
+				continue;
+			}
+			final ViNode node = resolved.get(0);
+			final AgentNode agent = agents.get(name);
+			Future<NodeStartInfo> f = pool.submit(new Callable<NodeStartInfo>() {
+				@Override
+				public NodeStartInfo call() {
+					return startNode(name, node, agent);
+				}
+			});
+			prestarts.put(name, f);
+			futures.add(f);
+		}
+		// summary is printed later, by then caller may not be bound to its project anymore
+		Thread reporter = new Thread(OutputStreamHelper.propagate(new Runnable() {
+			@Override
+			public void run() {
+				List<NodeStartInfo> infos = new ArrayList<NodeStartInfo>();
+				for(Future<NodeStartInfo> f: futures) {
+					try {
+						infos.add(f.get());
+					} catch (InterruptedException e) {
+						return;
+					} catch (ExecutionException e) {
+						// startNode never throws
+					}
+				}
+				pool.shutdown();
+				reportPrestart(infos);
+			}
+		}));
+		reporter.setName("GridAnt-PrestartReporter");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Waits for background start of node (if any).
+	 * @return start up details or <code>null</code> if node wasn't prestarted
+	 */
+	public NodeStartInfo awaitPrestart(String name) {
+		Future<NodeStartInfo> f;
+		synchronized(this) {
+			f = prestarts.get(name);
+		}
+		if (f == null) {
+			return null;
+		}
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	private static NodeStartInfo startNode(String name, ViNode node, AgentNode agent) {
+		NodeStartInfo info = new NodeStartInfo(name);
+		long start = System.nanoTime();
+		try {
+			if (agent != null) {
+				agent.attach();
+			}
+			else {
+				node.touch();
+			}
+			long launched = System.nanoTime();
+			info.launchTimeMs = (launched - start) / 1000000;
+			info.hostname = exec(node, agent, new HostnameProbe());
+			info.firstCallMs = (System.nanoTime() - launched) / 1000000;
+		}
+		catch(Exception e) {
+			info.error = e;
+		}
+		return info;
+	}
+	
+	private static void reportPrestart(List<NodeStartInfo> infos) {
+		Collections.sort(infos, new Comparator<NodeStartInfo>() {
+			@Override
+			public int compare(NodeStartInfo o1, NodeStartInfo o2) {
+				return Long.valueOf(o2.launchTimeMs + o2.firstCallMs).compareTo(o1.launchTimeMs + o1.firstCallMs);
+			}
+		});
+		int failed = 0;
+		for(NodeStartInfo info: infos) {
+			if (info.error != null) {
+				++failed;
+			}
+		}
+		System.out.println("Prestart complete: " + (infos.size() - failed) + " node(s) started, " + failed + " failed");
+		for(NodeStartInfo info: infos) {
+			System.out.println("  " + info);
+		}
+	}
+
+	/**
+	 * Records nodes which have been started by <code>&lt;remotely&gt;</code>.
+	 */
+	public synchronized void markStarted(Collection<String> names) {
+		startedNodes.addAll(names);
+	}
+
+	/**
+	 * @return <code>true</code> if node has been used already or is prestarted,
+	 *         so remote call would not cause start of slave
+	 */
+	public synchronized boolean isStarted(String name) {
+		AgentNode agent = agents.get(name);
+		return startedNodes.contains(name) || prestarts.containsKey(name) || (agent != null && agent.isAttached());
+	}
+
+	/**
+	 * Measures round trip time and load average for nodes (in parallel).
+	 * Results are cached for the rest of the build, nodes which have failed
+	 * probe are omitted from result.
+	 * <p>
+	 * Probe is a remote call, so it would start slaves which are not started yet,
+	 * see {@link #isStarted(String)}.
+	 */
+	public Map<String, NodeProbe> probe(Collection<ViNode> nodes, int concurrency) {
+		Map<String, NodeProbe> result = new TreeMap<String, NodeProbe>();
+		Map<String, Future<NodeProbe>> futures = new TreeMap<String, Future<NodeProbe>>();
+		ExecutorService pool = null;
+		synchronized(this) {
+			for(final ViNode node: nodes) {
+				String name = node.toString();
+				NodeProbe cached = probes.get(name);
+				if (cached != null) {
+					result.put(name, cached);
+				}
+				else {
+					if (pool == null) {
+						pool = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("GridAnt-Probe"));
+					}
+					final AgentNode agent = agents.get(name);
+					futures.put(name, pool.submit(new Callable<NodeProbe>() {
+						@Override
+						public NodeProbe call() {
+							return probeNode(node, agent);
+						}
+					}));
+				}
+			}
+		}
+		if (pool != null) {
+			pool.shutdown();
+		}
+		for(Map.Entry<String, Future<NodeProbe>> e: futures.entrySet()) {
+			NodeProbe probe;
+			try {
+				probe = e.getValue().get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted");
+			} catch (ExecutionException ex) {
+				probe = new NodeProbe(e.getKey());
+				probe.error = ex.getCause();
+			}
+			if (probe.error != null) {
+				System.out.println("Probe failed for " + e.getKey() + ": " + probe.error);
+			}
+			synchronized(this) {
+				probes.put(e.getKey(), probe);
+			}
+			result.put(e.getKey(), probe);
+		}
+		Iterator<NodeProbe> it = result.values().iterator();
+		while(it.hasNext()) {
+			if (it.next().error != null) {
+				it.remove();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Probes nodes without starting slaves (in parallel). Round trip time is
+	 * best of few TCP connects to SSH port of node's host, load of such host
+	 * is not known. Nodes running on master host get zero RTT and master's load.
+	 * Nodes with unknown or unreachable host are omitted from result.
+	 * <p>
+	 * Results are not cached, node may be started and probed properly later.
+	 */
+	public Map<String, NodeProbe> probeCold(Collection<String> names, int concurrency) {
+		Map<String, NodeProbe> result = new TreeMap<String, NodeProbe>();
+		if (names.isEmpty()) {
+			return result;
+		}
+		Map<String, Future<NodeProbe>> futures = new TreeMap<String, Future<NodeProbe>>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(concurrency, names.size()), new DaemonThreadFactory("GridAnt-Probe"));
+		try {
+			for(final String name: names) {
+				NodeConfigurer configurer;
+				synchronized(this) {
+					configurer = declaredNodes.get(name);
+				}
+				final HostLocator locator = configurer instanceof HostLocator ? (HostLocator)configurer : null;
+				futures.put(name, pool.submit(new Callable<NodeProbe>() {
+					@Override
+					public NodeProbe call() {
+						return probeHost(name, locator);
+					}
+				}));
+			}
+			for(Map.Entry<String, Future<NodeProbe>> e: futures.entrySet()) {
+				NodeProbe probe = e.getValue().get();
+				if (probe.error != null) {
+					System.out.println("Probe failed for " + e.getKey() + ": " + probe.error);
+				}
+				else {
+					result.put(e.getKey(), probe);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+		return result;
+	}
+
+	private static NodeProbe probeHost(String name, HostLocator locator) {
+		NodeProbe probe = new NodeProbe(name);
+		probe.started = false;
+		if (locator == null) {
+			probe.error = new IllegalArgumentException("host of node is not known");
+			return probe;
+		}
+		String host = locator.getHost(name);
+		if (host == null) {
+			double[] load = new LoadProbe().call();
+			probe.loadAverage = load[0];
+			probe.cpus = (int)load[1];
+			return probe;
+		}
+		try {
+			long best = Long.MAX_VALUE;
+			for(int i = 0; i != NodeProbe.ROUNDS; ++i) {
+				Socket socket = new Socket();
+				try {
+					long start = System.nanoTime();
+					socket.connect(new InetSocketAddress(host, SSH_PORT), CONNECT_TIMEOUT_MS);
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				finally {
+					socket.close();
+				}
+			}
+			probe.rttMicros = best / 1000;
+		}
+		catch(IOException e) {
+			probe.error = e;
+		}
+		return probe;
+	}
+
+	private static NodeProbe probeNode(ViNode node, AgentNode agent) {
+		NodeProbe probe = new NodeProbe(node.toString());
+		try {
+			// first call may include node start up, so it is not measured
+			exec(node, agent, new LoadProbe());
+			long best = Long.MAX_VALUE;
+			double[] load = null;
+			for(int i = 0; i != NodeProbe.ROUNDS; ++i) {
+				long start = System.nanoTime();
+				load = exec(node, agent, new LoadProbe());
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			probe.rttMicros = best / 1000;
+			probe.loadAverage = load[0];
+			probe.cpus = (int)load[1];
+		}
+		catch(Exception e) {
+			probe.error = e;
+		}
+		return probe;
+	}
+
+	/**
+	 * Executes task in agent if node runs in agent, in Nanocloud node otherwise.
+	 */
+	static <T> T exec(ViNode node, AgentNode agent, Callable<T> task) {
+		return agent != null ? agent.exec(task) : node.exec(task);
+	}
+
+	/**
+	 * Result of node probe. RTT is a best of few remote calls.
+	 */
+	public static class NodeProbe {
+		
+		static final int ROUNDS = 3;
+		
+		final String name;
+		long rttMicros;
+		double loadAverage = -1;
+		int cpus = 1;
+		/** <code>false</code> if node was probed without starting slave */
+		boolean started = true;
+		Throwable error;
+		
+		NodeProbe(String name) {
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public long getRttMicros() {
+			return rttMicros;
+		}
+		
+		/**
+		 * @return system load average or negative value if it is not available on node
+		 */
+		public double getLoadAverage() {
+			return loadAverage;
+		}
+		
+		/**
+		 * @return load average per CPU, unknown load is treated as full load
+		 */
+		public double getLoadPerCpu() {
+			return loadAverage < 0 ? 1d : loadAverage / Math.max(1, cpus);
+		}
+
+		public boolean isStarted() {
+			return started;
+		}
+
+		@Override
+		public String toString() {
+			return name + (started ? " rtt " : " connect ") + (rttMicros / 1000d) + "ms, load " + (loadAverage < 0 ? "n/a" : String.format("%.2f/%d", loadAverage, cpus))
+					+ (started ? "" : " (not started)");
+		}
+	}
+
+	private static class LoadProbe implements Callable<double[]>, Serializable {
+		
+		private static final long serialVersionUID = 20140720L;
+		
+		@Override
+		public double[] call() {
+			OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+			return new double[]{os.getSystemLoadAverage(), os.getAvailableProcessors()};
+		}
+	}
+
+	public static class NodeStartInfo {
+		
+		final String name;
+		String hostname;
+		long launchTimeMs;
+		long firstCallMs;
+		Exception error;
+		
+		NodeStartInfo(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getHostname() {
+			return hostname;
+		}
+
+		/** Time to establish connection, replicate classpath and start slave JVM */
+		public long getLaunchTimeMs() {
+			return launchTimeMs;
+		}
+
+		/** Round trip time of first remote call */
+		public long getFirstCallMs() {
+			return firstCallMs;
+		}
+
+		public Exception getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			if (error != null) {
+				return name + " failed to start: " + error;
+			}
+			else {
+				return name + " (" + hostname + ") launch " + launchTimeMs + "ms, first call " + firstCallMs + "ms";
+			}
+		}
+	}
+
+	static class HostnameProbe implements Callable<String>, Serializable {
+
+		private static final long serialVersionUID = 20140720L;
+
+		@Override
+		public String call() {
+			return RemoteExecTask.getLocalhost();
+		}
+	}
+	
+	static class DaemonThreadFactory implements ThreadFactory {
+		
+		private final String name;
+		private int counter;
+		
+		public DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setName(name + "-" + (counter++));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+	
+	/**
+	 * Configurers should implement {@link #equals(Object)}, equal configurers
+	 * allow repeated declaration of same node.
+	 */
+	public interface NodeConfigurer {
+		
+		public void configure(ViNode node);
+		
+	}
+	
+	/**
+	 * Implemented by configurers, which know host of node before slave is started.
+	 */
+	interface HostLocator {
+
+		/**
+		 * @return host name, <code>null</code> if node runs on master host
+		 */
+		public String getHost(String name);
+
+	}
+
+	/**
+	 * Implemented by configurers of nodes, which may run in persistent agent JVM.
+	 */
+	interface AgentFactory {
+		
+		/**
+		 * @param nodeProps properties set for node by <code>&lt;prop&gt;</code> elements
+		 * @return agent for configured node or <code>null</code> if agent mode is not enabled
+		 */
+		public AgentNode createAgent(String name, ViNode node, Map<String, String> nodeProps);
+		
+	}
+	
+	/**
+	 * Log sinks are shared between all <code>&lt;remotely&gt;</code> invocations
+	 * using same log file and closed on context shutdown.
+	 */
+	synchronized AsyncLogSink getLogSink(String nodeName, File file) throws IOException {
+		File key = file.getAbsoluteFile();
+		AsyncLogSink sink = logSinks.get(key);
+		if (sink == null) {
+			sink = new AsyncLogSink(nodeName, key);
+			logSinks.put(key, sink);
+		}
+		return sink;
+	}
+	
+	/**
+	 * Grace period for node shutdown, node will be killed if it
+	 * hasn't stopped within this time.
+	 */
+	public synchronized void setShutdownTimeout(long timeoutMs) {
+		this.shutdownTimeoutMs = timeoutMs;
+	}
 	
 	public void shutdown() {
-	    try {
-	        nodeset.shutdown();
-	    }
-	    catch(Exception e) {
-	        System.out.println("Error on slave shutdown: " + e);
-	    }
+		List<ViNode> nodes;
+		List<AgentNode> detached;
+		long timeout;
+		synchronized(this) {
+			nodes = new ArrayList<ViNode>();
+			for(Map.Entry<String, ViNode> e: activeNodes.entrySet()) {
+				AgentNode agent = agents.get(e.getKey());
+				// node of agent is used only to launch remote agent
+				if (agent == null || agent.isLauncherUsed()) {
+					nodes.add(e.getValue());
+				}
+			}
+			activeNodes.clear();
+			detached = new ArrayList<AgentNode>(agents.values());
+			agents.clear();
+			timeout = shutdownTimeoutMs;
+		}
+		detachAgents(detached);
+		// single deadline for stopping, killing and cloud clean up
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		if (!nodes.isEmpty()) {
+			shutdownNodes(nodes, timeout, deadline);
+		}
+		try {
+			runBounded(new Runnable() {
+				@Override
+				public void run() {
+					nodeset.shutdown();
+				}
+			}, deadline);
+		}
+		catch(Exception e) {
+			System.out.println("Error on slave shutdown: " + e);
+		}
+		closeLogSinks();
+	}
+
+	/**
+	 * Agents are left running for next build, they terminate by idle timeout.
+	 */
+	private static void detachAgents(List<AgentNode> agents) {
+		int n = 0;
+		for(AgentNode agent: agents) {
+			if (agent.isAttached()) {
+				agent.detach();
+				++n;
+			}
+		}
+		if (n > 0) {
+			System.out.println("Detached from " + n + " agent(s), they are left running for next build");
+		}
+	}
+
+	/**
+	 * Stops nodes concurrently, each node gets own thread, so slow nodes
+	 * do not delay graceful stop of others. Nodes not stopped within grace
+	 * period are killed in parallel. Part of timeout is reserved for kill
+	 * and cloud clean up, so whole shutdown fits into deadline.
+	 */
+	private static void shutdownNodes(List<ViNode> nodes, long timeoutMs, long deadline) {
+		ExecutorService pool = Executors.newCachedThreadPool(new DaemonThreadFactory("GridAnt-Shutdown"));
+		List<NodeStopInfo> infos = new ArrayList<NodeStopInfo>();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		long reserve = TimeUnit.MILLISECONDS.toNanos(Math.min(KILL_TIMEOUT_MS, timeoutMs / 4));
+		long graceDeadline = deadline - reserve;
+		long killDeadline = deadline - reserve / 2;
+		for(final ViNode node: nodes) {
+			final NodeStopInfo info = new NodeStopInfo(node.toString());
+			infos.add(info);
+			futures.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					long t = System.nanoTime();
+					try {
+						node.shutdown();
+					}
+					finally {
+						info.stopMs = (System.nanoTime() - t) / 1000000;
+					}
+				}
+			}));
+		}
+		List<NodeStopInfo> killed = new ArrayList<NodeStopInfo>();
+		List<Future<?>> kills = new ArrayList<Future<?>>();
+		for(int i = 0; i != nodes.size(); ++i) {
+			NodeStopInfo info = infos.get(i);
+			try {
+				futures.get(i).get(Math.max(0, graceDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				info.timeMs = info.stopMs;
+			}
+			catch(TimeoutException e) {
+				futures.get(i).cancel(true);
+				info.killed = true;
+				killed.add(info);
+				kills.add(pool.submit(killTask(nodes.get(i), info, start)));
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch(ExecutionException e) {
+				info.timeMs = info.stopMs;
+				info.error = e.getCause();
+			}
+		}
+		for(int i = 0; i != kills.size(); ++i) {
+			NodeStopInfo info = killed.get(i);
+			try {
+				kills.get(i).get(Math.max(0, killDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}
+			catch(TimeoutException e) {
+				kills.get(i).cancel(true);
+				info.timeMs = (System.nanoTime() - start) / 1000000;
+				info.error = e;
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch(ExecutionException e) {
+				info.error = e.getCause();
+			}
+		}
+		pool.shutdownNow();
+		reportShutdown(infos, (System.nanoTime() - start) / 1000000);
+	}
+
+	private static Runnable killTask(final ViNode node, final NodeStopInfo info, final long start) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					node.kill();
+				}
+				finally {
+					info.timeMs = (System.nanoTime() - start) / 1000000;
+				}
+			}
+		};
+	}
+
+	/** Upper bound of time reserved for killing of nodes */
+	private static final long KILL_TIMEOUT_MS = 5000;
+
+	private static final int SSH_PORT = 22;
+
+	private static final int CONNECT_TIMEOUT_MS = 3000;
+
+	/**
+	 * Runs action in daemon thread, giving up at deadline ({@link System#nanoTime()}).
+	 */
+	private static void runBounded(Runnable action, long deadline) throws Exception {
+		ExecutorService exec = Executors.newSingleThreadExecutor(new DaemonThreadFactory("GridAnt-Shutdown"));
+		try {
+			exec.submit(action).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		catch(ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+		}
+		finally {
+			exec.shutdownNow();
+		}
+	}
+
+	private static void reportShutdown(List<NodeStopInfo> infos, long totalMs) {
+		Collections.sort(infos, new Comparator<NodeStopInfo>() {
+			@Override
+			public int compare(NodeStopInfo o1, NodeStopInfo o2) {
+				return Long.valueOf(o2.timeMs).compareTo(o1.timeMs);
+			}
+		});
+		int clean = 0;
+		for(NodeStopInfo info: infos) {
+			if (!info.killed && info.error == null) {
+				++clean;
+			}
+		}
+		System.out.println("Shutdown of " + infos.size() + " node(s) took " + totalMs + "ms, " + clean + " stopped cleanly, " + (infos.size() - clean) + " killed or failed");
+		int shown = 0;
+		for(NodeStopInfo info: infos) {
+			// problematic nodes are always listed, only few slowest clean ones
+			if (info.killed || info.error != null || shown++ < 5) {
+				System.out.println("  " + info);
+			}
+		}
+	}
+
+	private static class NodeStopInfo {
+		
+		final String name;
+		/** Written by shutdown thread */
+		volatile long stopMs;
+		/** Written by kill thread for killed nodes */
+		volatile long timeMs;
+		boolean killed;
+		Throwable error;
+		
+		NodeStopInfo(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public String toString() {
+			if (killed) {
+				return name + " hasn't stopped in " + timeMs + "ms and was killed" + (error == null ? "" : ", kill failed: " + error);
+			}
+			else if (error != null) {
+				return name + " failed to stop in " + timeMs + "ms: " + error;
+			}
+			else {
+				return name + " stopped in " + timeMs + "ms";
+			}
+		}
+	}
+
+	private synchronized void closeLogSinks() {
+		for(AsyncLogSink sink: logSinks.values()) {
+			try {
+				sink.close();
+			}
+			catch(IOException e) {
+				System.out.println("Error closing log " + sink.getFile().getPath() + ": " + e);
+			}
+		}
+		logSinks.clear();
 	}
 	
     @Override
@@ -74,6 +992,19 @@ public class CloudContext implements BuildListener {
         shutdown();
     }
 
+    @Override
+    public void subBuildStarted(BuildEvent event) {
+        // do nothing
+    }
+
+    @Override
+    public void subBuildFinished(BuildEvent event) {
+        if (event.getProject() == owner) {
+            // context was created by child project
+            shutdown();
+        }
+    }
+
     @Override
     public void targetStarted(BuildEvent event) {
         // do nothing
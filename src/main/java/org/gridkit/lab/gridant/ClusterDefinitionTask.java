@@ -1,7 +1,14 @@
 package org.gridkit.lab.gridant;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
@@ -26,11 +33,20 @@ public class ClusterDefinitionTask extends Task {
 	
 	private String basePath;
 	private String javaPath;
-//	private String jarCachePath;
+	private String jarCachePath;
 	private String type;
+	private boolean prestart;
+	private int prestartThreads = 16;
+	private ClasspathFilter classpathFilter;
+	private long shutdownTimeout = -1;
+	private boolean agent;
+	private String agentDir;
+	private long agentIdleTimeout = AgentNode.DEFAULT_IDLE_TIMEOUT_SEC;
+	private List<String> agentSsh = Collections.singletonList("ssh");
 	
 	private List<ConfigOption> configOptions = new ArrayList<ConfigOption>(); 
 	private List<ServerDeclaration> serverDeclarations = new ArrayList<ServerDeclaration>(); 
+	private List<InventoryDeclaration> inventories = new ArrayList<InventoryDeclaration>(); 
 
 	public void setType(String type) {
 		new DefaultType().addText(type);
@@ -43,6 +59,88 @@ public class ClusterDefinitionTask extends Task {
 	public void setBasepath(String path) {
 		new BasePath().addText(path);
 	}
+
+	/**
+	 * Location of jar cache on remote hosts. Jars are cached by content hash,
+	 * so unchanged jars are not uploaded again. Default is <code>/tmp/.telecontrol</code>.
+	 */
+	public void setJarcache(String path) {
+		new JarCachePath().addText(path);
+	}
+
+	/**
+	 * If <code>true</code> all declared nodes will be started in background
+	 * right away instead of on first use.
+	 */
+	public void setPrestart(boolean prestart) {
+		this.prestart = prestart;
+	}
+
+	/**
+	 * Limits number of nodes being started simultaneously by prestart.
+	 */
+	public void setPrestartThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("'prestartthreads' should be positive");
+		}
+		this.prestartThreads = threads;
+	}
+	
+	/**
+	 * Grace period (in seconds) for slave shutdown at the end of build.
+	 * Slaves which haven't stopped in time are killed. Default is 30 seconds.
+	 */
+	public void setShutdowntimeout(long seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("'shutdowntimeout' should not be negative");
+		}
+		this.shutdownTimeout = seconds;
+	}
+	
+	/**
+	 * If <code>true</code> slaves run in persistent agent JVMs, which
+	 * are reused by next builds (unless classpath has changed).
+	 * Not applicable to "in-process" nodes.
+	 */
+	public void setAgent(boolean agent) {
+		this.agent = agent;
+	}
+
+	/**
+	 * Master side directory keeping addresses of agents between builds.
+	 * Default is <code>~/.gridant/agents</code>.
+	 */
+	public void setAgentdir(String path) {
+		this.agentDir = getProject().resolveFile(path).getPath();
+	}
+
+	/**
+	 * Agent terminates after being idle (no builds attached) for this time (in seconds).
+	 * Default is 600 seconds.
+	 */
+	public void setAgentidletimeout(long seconds) {
+		if (seconds < 1) {
+			throw new IllegalArgumentException("'agentidletimeout' should be positive");
+		}
+		this.agentIdleTimeout = seconds;
+	}
+
+	/**
+	 * SSH client command (with options) used to open tunnel to remote agents,
+	 * which listen on loopback interface only. Default is <code>ssh</code>.
+	 */
+	public void setAgentssh(String command) {
+		List<String> cmd = new ArrayList<String>();
+		for(String token: command.trim().split("\\s+")) {
+			if (token.length() > 0) {
+				cmd.add(token);
+			}
+		}
+		if (cmd.isEmpty()) {
+			throw new IllegalArgumentException("'agentssh' should not be empty");
+		}
+		this.agentSsh = cmd;
+	}
 	
 	public void addConfiguredServer(ServerDeclaration server) {
 		if (server.id == null) {
@@ -51,6 +149,14 @@ public class ClusterDefinitionTask extends Task {
 		serverDeclarations.add(server);
 	}
 
+	public void addConfiguredInventory(InventoryDeclaration inventory) {
+		if (inventory.file == null) {
+			throw new IllegalArgumentException("No inventory file is specified");
+		}
+		inventory.file = getProject().resolveFile(getProject().replaceProperties(inventory.file)).getPath();
+		inventories.add(inventory);
+	}
+
 	public void addConfiguredProp(ConfigOption option) {
 		if (option.propName == null) {
 			throw new IllegalArgumentException("No property name specified");
@@ -69,23 +175,95 @@ public class ClusterDefinitionTask extends Task {
 	public DefaultType createType() {
 		return new DefaultType();
 	}
+
+	public JarCachePath createJarcache() {
+		return new JarCachePath();
+	}
+
+	/**
+	 * Nested <code>&lt;classpath&gt;</code> element enables classpath filtering,
+	 * only entries matching its patterns will be replicated to slaves.
+	 */
+	public ClasspathSpec createClasspath() {
+		if (classpathFilter == null) {
+			classpathFilter = new ClasspathFilter();
+		}
+		return new ClasspathSpec();
+	}
 	
 	@Override
 	public void execute() throws BuildException {
 		CloudContext ctx = CloudContext.ensureInstance(getProject());
-		for(ServerDeclaration sd: serverDeclarations) {
-			ViNode node = ctx.initNode(sd.id);
-			if (sd.hostName != null) {
-				RemoteNodeProps.at(node).setRemoteHost(sd.hostName);
+		if (shutdownTimeout >= 0) {
+			ctx.setShutdownTimeout(TimeUnit.SECONDS.toMillis(shutdownTimeout));
+		}
+		List<ServerDeclaration> servers = new ArrayList<ServerDeclaration>(serverDeclarations);
+		for(InventoryDeclaration inventory: inventories) {
+			servers.addAll(inventory.load());
+		}
+		for(ServerDeclaration sd: servers) {
+			ctx.declareNode(sd.id, new NodeSetup(sd));
+		}
+		for(ConfigOption option: configOptions) {
+			ctx.setNodeProp(option.nodePattern, option.propName, option.value);
+		}
+		if (prestart) {
+			List<String> names = new ArrayList<String>();
+			for(ServerDeclaration sd: servers) {
+				names.add(sd.id);
 			}
-			String ntype = this.type;
+			ctx.prestart(names, prestartThreads);
+		}
+	}
+
+	/**
+	 * Captures effective node configuration. Configuration is applied lazily,
+	 * then node is used first time.
+	 */
+	private class NodeSetup implements CloudContext.NodeConfigurer, CloudContext.AgentFactory, CloudContext.HostLocator {
+		
+		private final String hostName;
+		private final String type;
+		private final String basePath;
+		private final String javaPath;
+		private final String jarCachePath;
+		private final ClasspathFilter classpathFilter;
+		/** <code>null</code> if agent mode is disabled */
+		private final String agentDir;
+		private final long agentIdleTimeout;
+		private final List<String> agentSsh;
+		
+		public NodeSetup(ServerDeclaration sd) {
+			this.hostName = sd.hostName;
+			String ntype = ClusterDefinitionTask.this.type;
 			if (sd.type != null) {
 				ntype = sd.type;
 			}
 			if (ntype == null) {
 				ntype = TYPE_REMOTE;
 			}
-			setType(node, ntype);
+			this.type = ntype;
+			this.basePath = ClusterDefinitionTask.this.basePath;
+			this.javaPath = ClusterDefinitionTask.this.javaPath;
+			this.jarCachePath = sd.jarCachePath != null ? sd.jarCachePath : ClusterDefinitionTask.this.jarCachePath;
+			this.classpathFilter = ClusterDefinitionTask.this.classpathFilter;
+			if (agent && !TYPE_IN_PROCESS.equals(ntype)) {
+				String dir = ClusterDefinitionTask.this.agentDir;
+				this.agentDir = dir != null ? dir : new File(new File(System.getProperty("user.home"), ".gridant"), "agents").getPath();
+			}
+			else {
+				this.agentDir = null;
+			}
+			this.agentIdleTimeout = ClusterDefinitionTask.this.agentIdleTimeout;
+			this.agentSsh = ClusterDefinitionTask.this.agentSsh;
+		}
+
+		@Override
+		public void configure(ViNode node) {
+			if (hostName != null) {
+				RemoteNodeProps.at(node).setRemoteHost(hostName);
+			}
+			setType(node, type);
 			
 			if (basePath != null) {
 				node.setProp(GridAntProps.REMOTE_ANT_BASE_DIR, basePath);
@@ -98,15 +276,65 @@ public class ClusterDefinitionTask extends Task {
 			else {
 				RemoteNodeProps.at(node).setRemoteJavaExec("java");
 			}
-			RemoteNodeProps.at(node).setRemoteJarCachePath("/tmp/.telecontrol");
+			RemoteNodeProps.at(node).setRemoteJarCachePath(jarCachePath != null ? jarCachePath : "/tmp/.telecontrol");
 			RemoteNodeProps.at(node).setSshConfig("?~/ssh-credentials.prop");
+			if (classpathFilter != null && !classpathFilter.isEmpty() && !TYPE_IN_PROCESS.equals(type)) {
+				classpathFilter.apply(node);
+			}
 		}
-		for(ConfigOption option: configOptions) {
-			ctx.getNodeSet().node(option.nodePattern).setProp(option.propName, option.value);
+
+		@Override
+		public String getHost(String name) {
+			if (TYPE_REMOTE.equals(type)) {
+				return hostName != null ? hostName : name;
+			}
+			else {
+				return null;
+			}
+		}
+
+		@Override
+		public AgentNode createAgent(String name, ViNode node, Map<String, String> nodeProps) {
+			if (agentDir == null) {
+				return null;
+			}
+			// same order as applied to node, so <prop> may override base dir
+			Map<String, String> props = new LinkedHashMap<String, String>();
+			if (basePath != null) {
+				props.put(GridAntProps.REMOTE_ANT_BASE_DIR, basePath);
+			}
+			props.putAll(nodeProps);
+			List<File> classpath = AgentNode.agentClasspath(classpathFilter);
+			if (TYPE_LOCAL.equals(type)) {
+				return AgentNode.local(name, new File(agentDir), classpath, props, agentIdleTimeout);
+			}
+			else {
+				if (javaPath != null) {
+					// agent should be replaced if other JVM is requested
+					props.put(GridAntProps.AGENT_JAVA_PATH, javaPath);
+				}
+				return AgentNode.remote(name, new File(agentDir), hostName != null ? hostName : name, node, agentSsh, classpath, props, agentIdleTimeout);
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(new Object[]{hostName, type, basePath, javaPath, jarCachePath, classpathFilter, agentDir, agentIdleTimeout, agentSsh});
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof NodeSetup)) {
+				return false;
+			}
+			NodeSetup that = (NodeSetup) obj;
+			return Arrays.equals(
+					new Object[]{hostName, type, basePath, javaPath, jarCachePath, classpathFilter, agentDir, agentIdleTimeout, agentSsh},
+					new Object[]{that.hostName, that.type, that.basePath, that.javaPath, that.jarCachePath, that.classpathFilter, that.agentDir, that.agentIdleTimeout, that.agentSsh});
 		}
 	}
 
-	private void setType(ViNode node, String ntype) {
+	private static void setType(ViNode node, String ntype) {
 		if (TYPE_LOCAL.equals(ntype)) {
 			ViProps.at(node).setLocalType();
 		}
@@ -141,6 +369,44 @@ public class ClusterDefinitionTask extends Task {
 		}
 	}
 
+	public class JarCachePath {
+		
+		public void addText(String path) {
+			if (jarCachePath != null) {
+				throw new RuntimeException("'jarcache' is already set");
+			}
+			jarCachePath = getProject().replaceProperties(path);
+		}
+	}
+
+	public class ClasspathSpec {
+		
+		public void addConfiguredInclude(ClasspathInclude include) {
+			if (include.pattern == null) {
+				throw new IllegalArgumentException("Pattern required for <include> element");
+			}
+			classpathFilter.addInclude(getProject().replaceProperties(include.pattern));
+		}
+	}
+
+	public static class ClasspathInclude {
+		
+		String pattern;
+		
+		public void setPattern(String pattern) {
+			this.pattern = pattern;
+		}
+		
+		public void addText(String pattern) {
+			if (pattern.trim().length() > 0) {
+				if (this.pattern != null) {
+					throw new IllegalStateException("You cannot add text 'pattern' is already set");
+				}
+				this.pattern = pattern;
+			}
+		}
+	}
+
 	public class DefaultType {
 		
 		public void addText(String value) {
@@ -157,7 +423,7 @@ public class ClusterDefinitionTask extends Task {
 		String hostName;
 //		String basePath;
 //		String javaPath;
-//		String jarCachePath;
+		String jarCachePath;
 		String type;
 		
 		public void setId(String id) {
@@ -173,12 +439,56 @@ public class ClusterDefinitionTask extends Task {
 			this.hostName = host;
 		}
 
+		public void setJarcache(String path) {
+			this.jarCachePath = path;
+		}
+
 		public void setType(String type) {
 			checkType(type);
 			this.type = type;
 		}		
 	}
 	
+	public static class InventoryDeclaration {
+		
+		String file;
+		String format;
+		String type;
+		
+		public void setFile(String file) {
+			this.file = file;
+		}
+
+		public void setFormat(String format) {
+			if (!Inventory.FORMAT_CSV.equalsIgnoreCase(format) && !Inventory.FORMAT_PROPERTIES.equalsIgnoreCase(format)) {
+				throw new IllegalArgumentException("Unknown inventory format '" + format + "'");
+			}
+			this.format = format;
+		}
+
+		public void setType(String type) {
+			checkType(type);
+			this.type = type;
+		}
+		
+		List<ServerDeclaration> load() {
+			try {
+				List<ServerDeclaration> list = Inventory.load(new File(file), format);
+				if (type != null) {
+					for(ServerDeclaration sd: list) {
+						if (sd.type == null) {
+							sd.type = type;
+						}
+					}
+				}
+				return list;
+			}
+			catch(IOException e) {
+				throw new BuildException("Failed to read inventory " + file, e);
+			}
+		}
+	}
+	
 	public static class ConfigOption {
 		
 		String nodePattern = "**";
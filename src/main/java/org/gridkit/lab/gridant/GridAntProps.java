@@ -4,7 +4,13 @@ public class GridAntProps {
 
 	public static final String REMOTE_ANT_BASE_DIR = "org.grikit.lab.gridant.ANT_BASE_DIR";
 
+	/** Java executable used to launch agent JVM */
+	public static final String AGENT_JAVA_PATH = "org.gridkit.lab.gridant.AGENT_JAVA_PATH";
+
 	public static final String SLAVE_HOSTNAME = "slave.hostname";
 	public static final String SLAVE_ID = "slave.id";
+
+	/** Master side file to persist source signatures used by &lt;syncdown&gt; between builds */
+	public static final String SYNC_SIGNATURE_CACHE = "gridant.syncdown.signaturecache";
 	
 }
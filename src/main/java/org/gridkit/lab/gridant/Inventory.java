@@ -0,0 +1,146 @@
+package org.gridkit.lab.gridant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.gridkit.lab.gridant.ClusterDefinitionTask.ServerDeclaration;
+
+/**
+ * Parser for host inventory files.
+ * <p>
+ * CSV format, one node per line: <code>id[,host[,type]]</code>.
+ * If host is omitted, id is used as host name.
+ * Lines starting with <code>#</code> are ignored.
+ * <p>
+ * Properties format: <code>id=host</code>.
+ * <p>
+ * Both id and host may contain numeric ranges, e.g. <code>app[001-400]</code>.
+ * Zero padding of range start defines padding of generated numbers.
+ * If both id and host contain ranges, they should produce same number of names.
+ */
+class Inventory {
+
+	public static final String FORMAT_CSV = "csv";
+	public static final String FORMAT_PROPERTIES = "properties";
+
+	private static final Pattern RANGE = Pattern.compile("\\[(\\d+)-(\\d+)\\]");
+
+	public static List<ServerDeclaration> load(File file, String format) throws IOException {
+		if (format == null) {
+			format = file.getName().endsWith(".properties") ? FORMAT_PROPERTIES : FORMAT_CSV;
+		}
+		if (FORMAT_PROPERTIES.equalsIgnoreCase(format)) {
+			return loadProperties(file);
+		}
+		else {
+			return loadCsv(file);
+		}
+	}
+
+	private static List<ServerDeclaration> loadCsv(File file) throws IOException {
+		List<ServerDeclaration> result = new ArrayList<ServerDeclaration>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			int n = 0;
+			while(true) {
+				String line = reader.readLine();
+				if (line == null) {
+					break;
+				}
+				++n;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] row = line.split(",");
+				String id = row[0].trim();
+				String host = row.length > 1 && row[1].trim().length() > 0 ? row[1].trim() : id;
+				String type = row.length > 2 && row[2].trim().length() > 0 ? row[2].trim() : null;
+				if (row.length > 3) {
+					throw new IOException(file.getName() + ":" + n + " too many columns");
+				}
+				if (type != null) {
+					ClusterDefinitionTask.checkType(type);
+				}
+				add(result, id, host, type);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	private static List<ServerDeclaration> loadProperties(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream is = new FileInputStream(file);
+		try {
+			props.load(is);
+		}
+		finally {
+			is.close();
+		}
+		List<ServerDeclaration> result = new ArrayList<ServerDeclaration>();
+		for(String id: new TreeSet<String>(props.stringPropertyNames())) {
+			String host = props.getProperty(id).trim();
+			add(result, id.trim(), host.length() == 0 ? id.trim() : host, null);
+		}
+		return result;
+	}
+
+	private static void add(List<ServerDeclaration> result, String id, String host, String type) {
+		List<String> ids = expand(id);
+		List<String> hosts = expand(host);
+		if (hosts.size() != 1 && hosts.size() != ids.size()) {
+			throw new IllegalArgumentException("Range size mismatch between '" + id + "' and '" + host + "'");
+		}
+		for(int i = 0; i != ids.size(); ++i) {
+			ServerDeclaration sd = new ServerDeclaration();
+			sd.setId(ids.get(i));
+			sd.setHost(hosts.size() == 1 ? hosts.get(0) : hosts.get(i));
+			sd.type = type;
+			result.add(sd);
+		}
+	}
+
+	/**
+	 * Expands all numeric ranges in name.
+	 */
+	static List<String> expand(String name) {
+		Matcher m = RANGE.matcher(name);
+		if (!m.find()) {
+			return Collections.singletonList(name);
+		}
+		String prefix = name.substring(0, m.start());
+		List<String> tails = expand(name.substring(m.end()));
+		String from = m.group(1);
+		long start = Long.parseLong(from);
+		long end = Long.parseLong(m.group(2));
+		if (end < start) {
+			throw new IllegalArgumentException("Invalid range in '" + name + "'");
+		}
+		int width = from.startsWith("0") ? from.length() : 0;
+		List<String> result = new ArrayList<String>();
+		for(long i = start; i <= end; ++i) {
+			String num = String.valueOf(i);
+			while(num.length() < width) {
+				num = "0" + num;
+			}
+			for(String tail: tails) {
+				result.add(prefix + num + tail);
+			}
+		}
+		return result;
+	}
+}
@@ -1,27 +1,198 @@
 package org.gridkit.lab.gridant;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.Callable;
 
 import org.apache.tools.ant.DemuxInputStream;
 import org.apache.tools.ant.DemuxOutputStream;
 import org.apache.tools.ant.Project;
 
+/**
+ * Routes {@link System#out}, {@link System#err} and {@link System#in}
+ * to Ant project of current thread.
+ * <p>
+ * Routing streams are installed once and stay in place, {@link #activate(Project)}
+ * and {@link #restore(ProjectStreams)} only change thread local binding.
+ * This way multiple slave projects could run concurrently in same JVM
+ * (e.g. "in-process" or "local" nodes) without clobbering each other.
+ * <p>
+ * Binding is not inherited, so long living pooled threads never retain
+ * a project. Code starting worker threads on behalf of a project should
+ * pass binding explicitly using {@link #propagate(Runnable)}.
+ */
 public class OutputStreamHelper {
 
 	public static InputStream stdIn = System.in;
 	public static PrintStream stdOut = System.out;
 	public static PrintStream stdErr = System.err;
-	
-	public static void activate(Project project) {
-        System.setIn(new DemuxInputStream(project));
-        System.setOut(new PrintStream(new DemuxOutputStream(project, false)));
-        System.setErr(new PrintStream(new DemuxOutputStream(project, true)));
+
+	private static final ThreadLocal<ProjectStreams> CURRENT = new ThreadLocal<ProjectStreams>();
+
+	private static boolean installed;
+
+	/**
+	 * Binds current thread to project.
+	 * @return previous binding, which should be passed to {@link #restore(ProjectStreams)}
+	 */
+	public static ProjectStreams activate(Project project) {
+		install();
+		ProjectStreams previous = CURRENT.get();
+		CURRENT.set(new ProjectStreams(project));
+		return previous;
+	}
+
+	/**
+	 * Flushes streams of current binding and puts back previous one.
+	 */
+	public static void restore(ProjectStreams previous) {
+		ProjectStreams streams = CURRENT.get();
+		if (previous == null) {
+			CURRENT.remove();
+		}
+		else {
+			CURRENT.set(previous);
+		}
+		if (streams != null) {
+			streams.out.flush();
+			streams.err.flush();
+		}
+	}
+
+	/**
+	 * @return task which runs with binding of calling thread
+	 */
+	public static Runnable propagate(final Runnable task) {
+		final ProjectStreams streams = CURRENT.get();
+		if (streams == null) {
+			return task;
+		}
+		return new Runnable() {
+			@Override
+			public void run() {
+				ProjectStreams previous = bind(streams);
+				try {
+					task.run();
+				}
+				finally {
+					restore(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return task which runs with binding of calling thread
+	 */
+	public static <V> Callable<V> propagate(final Callable<V> task) {
+		final ProjectStreams streams = CURRENT.get();
+		if (streams == null) {
+			return task;
+		}
+		return new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				ProjectStreams previous = bind(streams);
+				try {
+					return task.call();
+				}
+				finally {
+					restore(previous);
+				}
+			}
+		};
+	}
+
+	private static ProjectStreams bind(ProjectStreams streams) {
+		ProjectStreams previous = CURRENT.get();
+		CURRENT.set(streams);
+		return previous;
+	}
+
+	private static synchronized void install() {
+		if (!installed) {
+			installed = true;
+			System.setIn(new RoutedInputStream(System.in));
+			System.setOut(new PrintStream(new RoutedOutputStream(System.out, false), true));
+			System.setErr(new PrintStream(new RoutedOutputStream(System.err, true), true));
+		}
 	}
 
-	public static void restore() {
-        System.setIn(stdIn);
-        System.setOut(stdOut);
-        System.setErr(stdErr);
+	/**
+	 * Opaque binding of thread to project streams.
+	 */
+	public static final class ProjectStreams {
+
+		final InputStream in;
+		final PrintStream out;
+		final PrintStream err;
+
+		private ProjectStreams(Project project) {
+			in = new DemuxInputStream(project);
+			out = new PrintStream(new DemuxOutputStream(project, false));
+			err = new PrintStream(new DemuxOutputStream(project, true));
+		}
+	}
+
+	private static class RoutedOutputStream extends OutputStream {
+
+		private final PrintStream fallback;
+		private final boolean isErr;
+
+		public RoutedOutputStream(PrintStream fallback, boolean isErr) {
+			this.fallback = fallback;
+			this.isErr = isErr;
+		}
+
+		private PrintStream target() {
+			ProjectStreams ps = CURRENT.get();
+			return ps == null ? fallback : isErr ? ps.err : ps.out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target().flush();
+		}
+	}
+
+	private static class RoutedInputStream extends InputStream {
+
+		private final InputStream fallback;
+
+		public RoutedInputStream(InputStream fallback) {
+			this.fallback = fallback;
+		}
+
+		private InputStream source() {
+			ProjectStreams ps = CURRENT.get();
+			return ps == null ? fallback : ps.in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return source().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return source().read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return source().available();
+		}
 	}
 }
@@ -11,6 +11,8 @@ import java.net.InetAddress;
 import java.net.URL;
 import java.rmi.Remote;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -50,6 +52,13 @@ public class RemoteExecTask extends Task implements TaskContainer {
 	private List<String> patterns = new ArrayList<String>();
 	private List<TaskData> tasks = new ArrayList<TaskData>();
 	private RemoteExecutionHost execHost;
+	private String logDir;
+	private int count;
+	private String prefer = PREFER_LOWEST_LATENCY;
+	private int probeThreads = 16;
+	
+	public static final String PREFER_LOWEST_LATENCY = "lowest-latency";
+	public static final String PREFER_LEAST_LOADED = "least-loaded";
 	
 	public static String getLocalhost() {
 		try {
@@ -77,6 +86,46 @@ public class RemoteExecTask extends Task implements TaskContainer {
 		}
 	}
 	
+	/**
+	 * If set, output of each slave is written to <code>&lt;logdir&gt;/&lt;node&gt;.log</code>
+	 * instead of master console.
+	 */
+	public void setLogdir(String logDir) {
+		this.logDir = logDir;
+	}
+	
+	/**
+	 * Limits execution to given number of nodes matching server pattern.
+	 * Nodes are chosen by probing, see {@link #setPrefer(String)}.
+	 */
+	public void setCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("'count' should be positive");
+		}
+		this.count = count;
+	}
+	
+	/**
+	 * Node selection criteria if <code>count</code> is set,
+	 * either <code>lowest-latency</code> (default) or <code>least-loaded</code>.
+	 */
+	public void setPrefer(String prefer) {
+		if (!PREFER_LOWEST_LATENCY.equalsIgnoreCase(prefer) && !PREFER_LEAST_LOADED.equalsIgnoreCase(prefer)) {
+			throw new IllegalArgumentException("Unknown 'prefer' value '" + prefer + "', should be " + PREFER_LOWEST_LATENCY + " or " + PREFER_LEAST_LOADED);
+		}
+		this.prefer = prefer.toLowerCase();
+	}
+	
+	/**
+	 * Limits number of nodes being probed simultaneously, default 16.
+	 */
+	public void setProbeThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("'probethreads' should be positive");
+		}
+		this.probeThreads = threads;
+	}
+	
 	@Override
 	public void addTask(Task task) {
 		tasks.add(new TaskData((UnknownElement)task));
@@ -89,45 +138,72 @@ public class RemoteExecTask extends Task implements TaskContainer {
 		
 		Map<String, ViNode> targets = new TreeMap<String, ViNode>();
 		for(String pattern: patterns) {
-			for(ViNode node: cc.getNodeSet().listNodes(pattern)) {
+			for(ViNode node: cc.resolveNodes(pattern)) {
 				String name = node.toString();
 				targets.put(name, node);
 			}
 		}
+		if (count > 0 && targets.size() > count) {
+			targets = selectNodes(cc, targets);
+		}
 		if (targets.isEmpty()) {
 			System.out.println("Target execution set '" + origPattern + "' has been resolved to empty list");
 		}
 		else {
+			Map<String, AgentNode> agents = new HashMap<String, AgentNode>();
+			List<ViNode> nodes = new ArrayList<ViNode>();
+			for(ViNode node: targets.values()) {
+				AgentNode agent = cc.getAgent(node.toString());
+				if (agent != null) {
+					agents.put(node.toString(), agent);
+				}
+				else {
+					nodes.add(node);
+				}
+			}
+
+			Map<String, String> hostnames = new HashMap<String, String>();
+			for(String name: targets.keySet()) {
+				CloudContext.NodeStartInfo info = cc.awaitPrestart(name);
+				if (info != null && info.getHostname() != null) {
+					hostnames.put(name, info.getHostname());
+				}
+			}
+			
 			// touch
-			cc.getNodeSet().nodes(patterns.toArray(new String[0])).touch();
+			if (!nodes.isEmpty()) {
+				ViGroup.group(nodes).touch();
+			}
+			AgentNode.attachAll(agents.values());
+			cc.markStarted(targets.keySet());
 			
 			List<Future<Void>> submissions = new ArrayList<Future<Void>>();
+			List<AsyncLogSink> sinks = new ArrayList<AsyncLogSink>();
 			
 			for(ViNode node: targets.values()) {
-				final String hostname = node.exec(new Callable<String>(){
-					@Override
-					public String call() throws Exception {
-						return getLocalhost();
-					}
-				});
-				final LatentProject slave = createSlaveProject(node.toString(), hostname);
-				final List<TaskData> script = tasks;
-				final String nodeName = node.toString();
-				final String sourceFile = filename(getLocation().getFileName());
-				final int sourceLine = getLocation().getLineNumber();
+				AgentNode agent = agents.get(node.toString());
+				String hn = hostnames.get(node.toString());
+				if (hn == null) {
+					hn = CloudContext.exec(node, agent, new CloudContext.HostnameProbe());
+				}
+				final String hostname = hn;
+				AsyncLogSink sink = null;
+				if (logDir != null) {
+					sink = openLogSink(cc, node.toString());
+					sinks.add(sink);
+				}
+				LatentProject slave = createSlaveProject(node.toString(), hostname, sink);
+				String nodeName = node.toString();
+				String sourceFile = filename(getLocation().getFileName());
+				int sourceLine = getLocation().getLineNumber();
 				
 //				node.setProp("gridkit.isolate.trace-classes", "true");
 				
-				Future<Void> future = node.submit(new Callable<Void>(){
-					@Override
-					public Void call() throws Exception {
-						executeRemoteTasks(slave, hostname, sourceFile, sourceLine, script);
-						System.out.flush();
-						System.err.flush();
-						return null;
-					}
-				});
-				System.out.println(" -> " + hostname + " (" + nodeName + ")");
+				RemoteScript rs = new RemoteScript(slave, hostname, sourceFile, sourceLine, tasks);
+				Future<Void> future = agent != null ? agent.submit(rs) : node.submit(rs);
+				if (sink == null) {
+					System.out.println(" -> " + hostname + " (" + nodeName + ")");
+				}
 				
 				submissions.add(future);
 			}
@@ -142,7 +218,98 @@ public class RemoteExecTask extends Task implements TaskContainer {
 	            throwUncheked(e);
 			    
 			}
-			ViGroup.group(targets.values()).x(CONSOLE).flush();
+			if (!nodes.isEmpty()) {
+				ViGroup.group(nodes).x(CONSOLE).flush();
+			}
+			if (!sinks.isEmpty()) {
+				long lines = 0;
+				for(AsyncLogSink sink: sinks) {
+					try {
+						sink.flush();
+					}
+					catch(IOException e) {
+						System.err.println("Failed to write log " + sink.getFile().getPath() + ": " + e);
+					}
+					lines += sink.getLineCount();
+				}
+				System.out.println("Output of " + sinks.size() + " node(s), " + lines + " lines total, is written to " + getProject().resolveFile(logDir).getPath());
+			}
+		}
+	}
+	
+	/**
+	 * Started (or prestarted) nodes are probed by remote call. Remote call would
+	 * start slave, so other nodes are probed by connect time to SSH port of their
+	 * host, their load is not known (treated as full). Nodes which could not be
+	 * probed are taken last, in name order.
+	 */
+	private Map<String, ViNode> selectNodes(CloudContext cc, Map<String, ViNode> targets) {
+		List<ViNode> started = new ArrayList<ViNode>();
+		List<String> cold = new ArrayList<String>();
+		for(ViNode node: targets.values()) {
+			if (cc.isStarted(node.toString())) {
+				started.add(node);
+			}
+			else {
+				cold.add(node.toString());
+			}
+		}
+		List<CloudContext.NodeProbe> probes = new ArrayList<CloudContext.NodeProbe>();
+		if (!started.isEmpty()) {
+			probes.addAll(cc.probe(started, probeThreads).values());
+		}
+		Map<String, CloudContext.NodeProbe> coldProbes = cc.probeCold(cold, probeThreads);
+		probes.addAll(coldProbes.values());
+		cold.removeAll(coldProbes.keySet());
+		Comparator<CloudContext.NodeProbe> cmp = PREFER_LEAST_LOADED.equals(prefer) ? LOAD_ORDER : RTT_ORDER;
+		Collections.sort(probes, cmp);
+		Map<String, ViNode> selected = new TreeMap<String, ViNode>();
+		for(CloudContext.NodeProbe probe: probes) {
+			if (selected.size() >= count) {
+				break;
+			}
+			selected.put(probe.getName(), targets.get(probe.getName()));
+		}
+		List<String> unprobed = new ArrayList<String>();
+		for(String name: cold) {
+			if (selected.size() >= count) {
+				break;
+			}
+			selected.put(name, targets.get(name));
+			unprobed.add(name);
+		}
+		System.out.println("Selected " + selected.size() + " of " + targets.size() + " node(s) matching '" + origPattern + "' by " + prefer + ", " + probes.size() + " probed");
+		for(CloudContext.NodeProbe probe: probes) {
+			System.out.println((selected.containsKey(probe.getName()) ? "  + " : "  - ") + probe);
+		}
+		for(String name: unprobed) {
+			System.out.println("  + " + name + " not probed");
+		}
+		return selected;
+	}
+	
+	private static final Comparator<CloudContext.NodeProbe> RTT_ORDER = new Comparator<CloudContext.NodeProbe>() {
+		@Override
+		public int compare(CloudContext.NodeProbe o1, CloudContext.NodeProbe o2) {
+			int c = Long.valueOf(o1.getRttMicros()).compareTo(o2.getRttMicros());
+			return c != 0 ? c : Double.compare(o1.getLoadPerCpu(), o2.getLoadPerCpu());
+		}
+	};
+
+	private static final Comparator<CloudContext.NodeProbe> LOAD_ORDER = new Comparator<CloudContext.NodeProbe>() {
+		@Override
+		public int compare(CloudContext.NodeProbe o1, CloudContext.NodeProbe o2) {
+			int c = Double.compare(o1.getLoadPerCpu(), o2.getLoadPerCpu());
+			return c != 0 ? c : Long.valueOf(o1.getRttMicros()).compareTo(o2.getRttMicros());
+		}
+	};
+	
+	private AsyncLogSink openLogSink(CloudContext cc, String nodeName) {
+		File file = new File(getProject().resolveFile(logDir), nodeName + ".log");
+		try {
+			return cc.getLogSink(nodeName, file);
+		} catch (IOException e) {
+			throw new BuildException("Cannot open log file " + file.getPath(), e);
 		}
 	}
 	
@@ -158,7 +325,7 @@ public class RemoteExecTask extends Task implements TaskContainer {
 		return fileName;
 	}
 
-	private LatentProject createSlaveProject(String id, String hostname) {
+	private LatentProject createSlaveProject(String id, String hostname, AsyncLogSink sink) {
 		try {
 			
 			if (execHost == null) {
@@ -178,7 +345,7 @@ public class RemoteExecTask extends Task implements TaskContainer {
 			slave.hostname = hostname;
 			slave.executor = execHost;
 			slave.buildFile = buildFile.toURI().toString();
-			slave.logger = new RemoteBuildLogger(createRemoteLogger(id), getProject());
+			slave.logger = new RemoteBuildLogger(sink == null ? createRemoteLogger(id) : createFileLogger(sink), getProject());
 			slave.props = new HashMap<String, String>();
 			for(String pname: getProject().getProperties().keySet()) {
 				Object vp = getProject().getProperty(pname);
@@ -284,6 +451,49 @@ public class RemoteExecTask extends Task implements TaskContainer {
     	
     	return logger;
     }
+
+    private static BuildLogger createFileLogger(AsyncLogSink sink) {
+    	BuildLogger logger = new DefaultLogger();
+    	
+    	PrintStream ps = new PrintStream(sink);
+    	logger.setMessageOutputLevel(Project.MSG_INFO);
+    	logger.setOutputPrintStream(ps);
+    	logger.setErrorPrintStream(ps);
+    	logger.setEmacsMode(false);
+    	
+    	return logger;
+    }
+	
+	/**
+	 * Script of <code>&lt;remotely&gt;</code> for one slave, executed either
+	 * by Nanocloud node or by agent.
+	 */
+	private static class RemoteScript implements Callable<Void>, Serializable {
+		
+		private static final long serialVersionUID = 20140427L;
+		
+		private final LatentProject slave;
+		private final String hostname;
+		private final String sourceFile;
+		private final int sourceLine;
+		private final List<TaskData> script;
+		
+		public RemoteScript(LatentProject slave, String hostname, String sourceFile, int sourceLine, List<TaskData> script) {
+			this.slave = slave;
+			this.hostname = hostname;
+			this.sourceFile = sourceFile;
+			this.sourceLine = sourceLine;
+			this.script = script;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			executeRemoteTasks(slave, hostname, sourceFile, sourceLine, script);
+			System.out.flush();
+			System.err.flush();
+			return null;
+		}
+	}
 	
 	private static void executeRemoteTasks(LatentProject lp, String hostname, String buildSource, int sourceLine, List<TaskData> script) {
 	    Project project = lp.getProject();
@@ -300,9 +510,13 @@ public class RemoteExecTask extends Task implements TaskContainer {
 		
 		project.addTarget(target);
 		
-		OutputStreamHelper.activate(project);
-		project.executeTarget(targetName);
-		OutputStreamHelper.restore();
+		OutputStreamHelper.ProjectStreams previous = OutputStreamHelper.activate(project);
+		try {
+			project.executeTarget(targetName);
+		}
+		finally {
+			OutputStreamHelper.restore(previous);
+		}
 	}
 
 	private static class TaskData implements Serializable {
@@ -0,0 +1,155 @@
+package org.gridkit.lab.gridant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local port forwarding by system <code>ssh</code> client.
+ * <p>
+ * Remote agents listen on loopback interface of their host only,
+ * master reaches them through a tunnel kept open while agent is attached.
+ * Client configuration (<code>~/.ssh/config</code>, keys, ssh agent) is used
+ * for authentication, password prompts are disabled.
+ */
+class SshTunnel {
+
+	private static final long START_TIMEOUT_MS = 30000;
+
+	private static final int MAX_OUTPUT = 4 << 10;
+
+	private final String host;
+	private final int remotePort;
+	private final int localPort;
+	private final Process process;
+	private final StringBuffer output = new StringBuffer();
+
+	/**
+	 * @param sshCommand client command with options, e.g. <code>[ssh, -l, builder]</code>
+	 */
+	public static SshTunnel open(List<String> sshCommand, String host, int remotePort) throws IOException {
+		SshTunnel tunnel = new SshTunnel(sshCommand, host, remotePort, freePort());
+		try {
+			tunnel.awaitForwarding();
+		}
+		catch(IOException e) {
+			tunnel.close();
+			throw e;
+		}
+		return tunnel;
+	}
+
+	private SshTunnel(List<String> sshCommand, String host, int remotePort, int localPort) throws IOException {
+		this.host = host;
+		this.remotePort = remotePort;
+		this.localPort = localPort;
+		List<String> cmd = new ArrayList<String>(sshCommand);
+		cmd.add("-N");
+		cmd.add("-o");
+		cmd.add("BatchMode=yes");
+		cmd.add("-o");
+		cmd.add("ExitOnForwardFailure=yes");
+		cmd.add("-L");
+		cmd.add("127.0.0.1:" + localPort + ":127.0.0.1:" + remotePort);
+		cmd.add(host);
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true);
+		process = pb.start();
+		process.getOutputStream().close();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				collectOutput();
+			}
+		};
+		reader.setName("GridAnt-SshTunnel-" + host);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getRemotePort() {
+		return remotePort;
+	}
+
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	public boolean isAlive() {
+		try {
+			process.exitValue();
+			return false;
+		}
+		catch(IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	public void close() {
+		process.destroy();
+	}
+
+	private void awaitForwarding() throws IOException {
+		long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+		while(true) {
+			if (!isAlive()) {
+				throw new IOException("SSH tunnel to " + host + " has failed: " + output.toString().trim());
+			}
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), localPort), 1000);
+				return;
+			}
+			catch(IOException e) {
+				// not listening yet
+			}
+			finally {
+				socket.close();
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new IOException("SSH tunnel to " + host + " hasn't started in " + START_TIMEOUT_MS + "ms: " + output.toString().trim());
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+	}
+
+	private void collectOutput() {
+		InputStream is = process.getInputStream();
+		byte[] buf = new byte[1024];
+		try {
+			int n;
+			while((n = is.read(buf)) >= 0) {
+				if (output.length() < MAX_OUTPUT) {
+					output.append(new String(buf, 0, n));
+				}
+			}
+		}
+		catch(IOException e) {
+			// process is terminated
+		}
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket ss = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		try {
+			return ss.getLocalPort();
+		}
+		finally {
+			ss.close();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gridkit.lab.gridant.jarsync.jarsync.DataBlock;
+import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
+import org.gridkit.lab.gridant.jarsync.jarsync.Offsets;
+import org.gridkit.lab.gridant.jarsync.jarsync.Rdiff;
+
+/**
+ * Archive aware patch for zip files.
+ * <p>
+ * A change in single entry shifts the rest of archive, and small
+ * deflated entries rarely contain whole rdiff block, so block matching
+ * finds little to reuse in jars. Instead, entries are matched by name and
+ * CRC against entry table of old archive, compressed data of unchanged
+ * entries (with local header, if it is same too) is copied from old archive,
+ * everything else (central directory, changed entries) is sent as literal.
+ * Result is byte identical.
+ * <p>
+ * Patch uses same deltas (and wire format) as rdiff patch, so it is applied
+ * the same way.
+ */
+class ArchiveDelta {
+
+    /** Smaller entries are sent as literals, copy command would not be cheaper */
+    static final int MIN_MATCH = 16;
+
+    /** Archive patch is used only if it reuses this share of archive, rdiff may be better otherwise */
+    static final double MIN_REUSE = 0.5;
+
+    private static final int LITERAL_CHUNK = 1 << 20;
+
+    private static final int MAX_COPY = 1 << 30;
+
+    /**
+     * @return patch for source archive or <code>null</code> if archive patch is not applicable
+     */
+    public static List<Delta> makeDeltas(File source, ZipIndex basis) throws IOException {
+        List<Range> plan = plan(source, basis);
+        if (plan == null) {
+            return null;
+        }
+        List<Delta> deltas = new ArrayList<Delta>();
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        try {
+            for(Range r: plan) {
+                long done = 0;
+                while(done < r.length) {
+                    if (r.basisOffset >= 0) {
+                        int len = (int)Math.min(MAX_COPY, r.length - done);
+                        deltas.add(new Offsets(r.basisOffset + done, r.offset + done, len));
+                        done += len;
+                    }
+                    else {
+                        byte[] data = new byte[(int)Math.min(LITERAL_CHUNK, r.length - done)];
+                        raf.seek(r.offset + done);
+                        raf.readFully(data);
+                        deltas.add(new DataBlock(r.offset + done, data));
+                        done += data.length;
+                    }
+                }
+            }
+        }
+        finally {
+            raf.close();
+        }
+        return deltas;
+    }
+
+    /**
+     * Writes patch in rdiff delta format, without holding it in memory.
+     * @return <code>false</code> (nothing is written) if archive patch is not applicable
+     */
+    public static boolean writeDeltas(File source, ZipIndex basis, OutputStream sink) throws IOException {
+        List<Range> plan = plan(source, basis);
+        if (plan == null) {
+            return false;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sink, 1 << 16));
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        try {
+            byte[] buf = new byte[LITERAL_CHUNK];
+            out.writeInt(Rdiff.DELTA_MAGIC);
+            for(Range r: plan) {
+                long done = 0;
+                while(done < r.length) {
+                    if (r.basisOffset >= 0) {
+                        int len = (int)Math.min(MAX_COPY, r.length - done);
+                        out.write(Rdiff.OP_COPY_N4_N4);
+                        out.writeInt((int)(r.basisOffset + done));
+                        out.writeInt(len);
+                        done += len;
+                    }
+                    else {
+                        int len = (int)Math.min(buf.length, r.length - done);
+                        raf.seek(r.offset + done);
+                        raf.readFully(buf, 0, len);
+                        out.write(Rdiff.OP_LITERAL_N4);
+                        out.writeInt(len);
+                        out.write(buf, 0, len);
+                        done += len;
+                    }
+                }
+            }
+            out.write(Rdiff.OP_END);
+            out.flush();
+        }
+        finally {
+            raf.close();
+        }
+        return true;
+    }
+
+    private static List<Range> plan(File source, ZipIndex basis) throws IOException {
+        final ZipIndex index = ZipIndex.read(source);
+        if (index == null) {
+            return null;
+        }
+        Map<String, Integer> basisEntries = new HashMap<String, Integer>();
+        for(int i = 0; i != basis.size(); ++i) {
+            basisEntries.put(basis.names[i], i);
+        }
+        List<Integer> order = new ArrayList<Integer>();
+        for(int i = 0; i != index.size(); ++i) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.valueOf(index.dataOffsets[o1]).compareTo(index.dataOffsets[o2]);
+            }
+        });
+
+        List<Range> plan = new ArrayList<Range>();
+        long pos = 0;
+        long reused = 0;
+        for(int i: order) {
+            Integer m = basisEntries.get(index.names[i]);
+            if (m == null || index.compressedSizes[i] < MIN_MATCH || !index.sameEntry(i, basis, m)) {
+                continue;
+            }
+            long offset = index.dataOffsets[i];
+            long length = index.compressedSizes[i];
+            long basisOffset = basis.dataOffsets[m];
+            if (index.sameHeader(i, basis, m)) {
+                // adjacent unchanged entries would be copied by single run
+                length += offset - index.headerOffsets[i];
+                offset = index.headerOffsets[i];
+                basisOffset = basis.headerOffsets[m];
+            }
+            if (offset < pos) {
+                continue;
+            }
+            if (offset > pos) {
+                plan.add(new Range(pos, offset - pos, -1));
+            }
+            plan.add(new Range(offset, length, basisOffset));
+            pos = offset + length;
+            reused += length;
+        }
+        if (pos < index.fileSize) {
+            plan.add(new Range(pos, index.fileSize - pos, -1));
+        }
+        if (reused < MIN_REUSE * index.fileSize) {
+            return null;
+        }
+        return plan;
+    }
+
+    /**
+     * Range of new file, either copied from basis or sent as literal.
+     */
+    private static class Range {
+
+        final long offset;
+        final long length;
+        /** -1 for literal */
+        final long basisOffset;
+
+        public Range(long offset, long length, long basisOffset) {
+            this.offset = offset;
+            this.length = length;
+            this.basisOffset = basisOffset;
+        }
+    }
+}
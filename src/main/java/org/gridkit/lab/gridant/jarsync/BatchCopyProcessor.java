@@ -22,10 +22,49 @@ public interface BatchCopyProcessor {
 		public void sourceExclude(String pattern);
 		
 		public void sourcePrune(String pattern);
+
+		/**
+		 * If enabled, files with same size and modification time
+		 * are considered identical without comparing content.
+		 * Disabled by default.
+		 */
+		public void quickCheck(boolean enabled);
+
+		/**
+		 * Number of worker threads used to process files during {@link #execute(FileSyncParty, CopyReporter)}.
+		 * Default is 1.
+		 */
+		public void threads(int threads);
+
+		/**
+		 * New files not larger than <code>threshold</code> bytes are transfered
+		 * in packs of up to <code>packSize</code> files, instead of file by file.
+		 * Zero threshold disables packing. Default is 4 KiB threshold and 256 files per pack.
+		 */
+		public void packSmallFiles(long threshold, int packSize);
+
+		/**
+		 * If enabled, new file missing at target is patched from the most similar
+		 * file in the same target directory (e.g. previous version of versioned jar),
+		 * instead of transfering it whole. Disabled by default.
+		 */
+		public void fuzzyBasis(boolean enabled);
+
+		/**
+		 * Limits rate (bytes per second) of file data sent from source for this batch,
+		 * 0 - unlimited (default). Should be set at source side, before batch
+		 * is passed to target.
+		 */
+		public void bandwidthLimit(long rate);
 		
 		public void prepare(CopyReporter reporter) throws IOException;
 
 		public void execute(FileSyncParty syncTarget, CopyReporter reporter) throws IOException;
+
+		/**
+		 * @return amount of data received from source by {@link #execute(FileSyncParty, CopyReporter)}
+		 */
+		public TransferStats getTransferStats();
 		
 	}
 	
@@ -0,0 +1,42 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * JVM wide pool of direct buffers used for file reads.
+ * Direct buffers are expensive to allocate and are not collected
+ * promptly, so they are reused.
+ */
+class BufferPool {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /** Limit of idle buffers kept in pool */
+    private static final int MAX_POOLED = 16;
+
+    private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * @return cleared buffer, at least of requested capacity
+     */
+    public static ByteBuffer acquire(int capacity) {
+        if (capacity > BUFFER_SIZE) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer bb = POOL.poll();
+        if (bb == null) {
+            bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        bb.clear();
+        return bb;
+    }
+
+    public static void release(ByteBuffer bb) {
+        // size() of concurrent queue is not exact, which is fine here
+        if (bb.isDirect() && bb.capacity() == BUFFER_SIZE && POOL.size() < MAX_POOLED) {
+            POOL.offer(bb);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.gridkit.lab.gridant.jarsync.jarsync.DataBlock;
+import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
+
+/**
+ * Adaptive compression of data sent between sync parties.
+ * <p>
+ * Data is deflated (fastest level) only if it shrinks noticeably,
+ * already compressed content (jars, images) is sent as is.
+ */
+class Compression {
+
+    /** Stream chunk size, each chunk is compressed or stored independently */
+    static final int CHUNK_SIZE = 64 << 10;
+
+    /** Data smaller than this is never compressed */
+    static final int MIN_SIZE = 256;
+
+    /** Compressed data should be at least 10% smaller than raw */
+    static final double MAX_RATIO = 0.9;
+
+    /** Stream gives up compression after that many incompressible chunks in a row */
+    static final int GIVE_UP_CHUNKS = 4;
+
+    /**
+     * @return deflated data or <code>null</code> if data does not compress
+     */
+    static byte[] deflate(byte[] data, int off, int len) {
+        if (len < MIN_SIZE) {
+            return null;
+        }
+        int limit = (int)(len * MAX_RATIO);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, off, len);
+            deflater.finish();
+            byte[] buf = new byte[limit];
+            int n = 0;
+            while(!deflater.finished()) {
+                if (n == buf.length) {
+                    return null;
+                }
+                n += deflater.deflate(buf, n, buf.length - n);
+            }
+            return Arrays.copyOf(buf, n);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate(byte[] data, int off, int len, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, off, len);
+            byte[] buf = new byte[rawLength];
+            int n = 0;
+            while(n < rawLength) {
+                int m = inflater.inflate(buf, n, rawLength - n);
+                if (m == 0 && (inflater.needsInput() || inflater.finished())) {
+                    throw new IOException("Compressed data is truncated");
+                }
+                n += m;
+            }
+            return buf;
+        }
+        catch(DataFormatException e) {
+            throw new IOException(e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Packs literal data of patch into single (possibly compressed) block.
+     */
+    static EncodedPatch encode(List<Delta> deltas) {
+        int total = 0;
+        for(Delta d: deltas) {
+            if (d instanceof DataBlock) {
+                total += d.getBlockLength();
+            }
+        }
+        EncodedPatch patch = new EncodedPatch();
+        patch.deltas = new Delta[deltas.size()];
+        patch.literalOffsets = new long[deltas.size()];
+        patch.literalLengths = new int[deltas.size()];
+        patch.rawLength = total;
+        byte[] literals = new byte[total];
+        int n = 0;
+        for(int i = 0; i != deltas.size(); ++i) {
+            Delta d = deltas.get(i);
+            if (d instanceof DataBlock) {
+                byte[] data = ((DataBlock)d).getData();
+                System.arraycopy(data, 0, literals, n, data.length);
+                patch.literalOffsets[i] = ((DataBlock)d).getOffset();
+                patch.literalLengths[i] = data.length;
+                n += data.length;
+            }
+            else {
+                patch.deltas[i] = d;
+            }
+        }
+        // cheap probe, so incompressible literals are not deflated as a whole
+        byte[] packed = null;
+        if (total <= 2 * CHUNK_SIZE || deflate(literals, 0, CHUNK_SIZE) != null) {
+            packed = deflate(literals, 0, total);
+        }
+        patch.compressed = packed != null;
+        patch.literals = packed != null ? packed : literals;
+        return patch;
+    }
+
+    static List<Delta> decode(EncodedPatch patch, TransferStats stats) throws IOException {
+        byte[] literals = patch.compressed ? inflate(patch.literals, 0, patch.literals.length, patch.rawLength) : patch.literals;
+        stats.add(patch.rawLength, patch.literals.length);
+        List<Delta> deltas = new ArrayList<Delta>(patch.deltas.length);
+        int n = 0;
+        for(int i = 0; i != patch.deltas.length; ++i) {
+            if (patch.deltas[i] != null) {
+                deltas.add(patch.deltas[i]);
+            }
+            else {
+                byte[] data = Arrays.copyOfRange(literals, n, n + patch.literalLengths[i]);
+                deltas.add(new DataBlock(patch.literalOffsets[i], data));
+                n += data.length;
+            }
+        }
+        return deltas;
+    }
+
+    static EncodedChunk encodeChunk(byte[] data, long fileSize, boolean compress) {
+        EncodedChunk chunk = new EncodedChunk();
+        chunk.fileSize = fileSize;
+        chunk.rawLength = data.length;
+        byte[] packed = compress ? deflate(data, 0, data.length) : null;
+        chunk.compressed = packed != null;
+        chunk.data = packed != null ? packed : data;
+        return chunk;
+    }
+
+    static byte[] decodeChunk(EncodedChunk chunk, TransferStats stats) throws IOException {
+        stats.add(chunk.rawLength, chunk.data.length);
+        return chunk.compressed ? inflate(chunk.data, 0, chunk.data.length, chunk.rawLength) : chunk.data;
+    }
+
+    /**
+     * Part of file, possibly compressed.
+     */
+    static class EncodedChunk implements Serializable {
+
+        private static final long serialVersionUID = 20140427L;
+
+        /** Size of whole file at the moment of read */
+        long fileSize;
+        boolean compressed;
+        int rawLength;
+        byte[] data;
+    }
+
+    /**
+     * Patch with literal data packed into single block.
+     */
+    static class EncodedPatch implements Serializable {
+
+        private static final long serialVersionUID = 20140427L;
+
+        /** Non literal deltas, <code>null</code> in place of literals */
+        Delta[] deltas;
+        long[] literalOffsets;
+        int[] literalLengths;
+        boolean compressed;
+        int rawLength;
+        byte[] literals;
+    }
+
+    /**
+     * Sending side of compressed stream.
+     * <p>
+     * Stream is a sequence of chunks. Chunk starts with raw length and
+     * wire length (4 byte each), chunk is deflated if wire length is
+     * less than raw length.
+     * <p>
+     * {@link #flush()} does not force partial chunk out,
+     * {@link #finish()} should be called once all data is written.
+     */
+    static class EncoderStream extends OutputStream {
+
+        private final DataOutputStream sink;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size;
+        private int incompressible;
+
+        public EncoderStream(OutputStream sink) {
+            // sink is likely remote, so each chunk should go as single write
+            this.sink = new DataOutputStream(new BufferedOutputStream(sink, CHUNK_SIZE + 8));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) {
+                writeChunk();
+            }
+            buffer[size++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if (size == buffer.length) {
+                    writeChunk();
+                }
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // chunks are sent only when full
+        }
+
+        public void finish() throws IOException {
+            if (size > 0) {
+                writeChunk();
+            }
+            sink.flush();
+        }
+
+        private void writeChunk() throws IOException {
+            byte[] packed = null;
+            if (incompressible < GIVE_UP_CHUNKS) {
+                packed = deflate(buffer, 0, size);
+                incompressible = packed == null ? incompressible + 1 : 0;
+            }
+            sink.writeInt(size);
+            if (packed == null) {
+                sink.writeInt(size);
+                sink.write(buffer, 0, size);
+            }
+            else {
+                sink.writeInt(packed.length);
+                sink.write(packed);
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Receiving side of compressed stream, see {@link EncoderStream}.
+     * Decoded data is written to target, target is not closed.
+     */
+    static class DecoderStream extends OutputStream {
+
+        private final OutputStream target;
+        private final TransferStats stats;
+        private final byte[] header = new byte[8];
+        private int headerLen;
+        private int rawLength;
+        private byte[] chunk;
+        private int chunkLen;
+
+        public DecoderStream(OutputStream target, TransferStats stats) {
+            this.target = target;
+            this.stats = stats;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if (chunk == null) {
+                    int n = Math.min(header.length - headerLen, len);
+                    System.arraycopy(b, off, header, headerLen, n);
+                    headerLen += n;
+                    off += n;
+                    len -= n;
+                    if (headerLen == header.length) {
+                        headerLen = 0;
+                        rawLength = decodeInt(header, 0);
+                        int wireLength = decodeInt(header, 4);
+                        if (rawLength < 0 || wireLength < 0 || wireLength > rawLength) {
+                            throw new IOException("Corrupted stream");
+                        }
+                        chunk = new byte[wireLength];
+                        chunkLen = 0;
+                        if (wireLength == 0) {
+                            writeChunk();
+                        }
+                    }
+                }
+                else {
+                    int n = Math.min(chunk.length - chunkLen, len);
+                    System.arraycopy(b, off, chunk, chunkLen, n);
+                    chunkLen += n;
+                    off += n;
+                    len -= n;
+                    if (chunkLen == chunk.length) {
+                        writeChunk();
+                    }
+                }
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            byte[] wire = chunk;
+            chunk = null;
+            if (wire.length < rawLength) {
+                target.write(inflate(wire, 0, wire.length, rawLength));
+            }
+            else {
+                target.write(wire);
+            }
+            stats.add(rawLength, 8 + wire.length);
+        }
+
+        /**
+         * Verifies that stream was not truncated.
+         */
+        public synchronized void finish() throws IOException {
+            if (chunk != null || headerLen > 0) {
+                throw new IOException("Stream is truncated");
+            }
+        }
+
+        private static int decodeInt(byte[] b, int off) {
+            return ((0xFF & b[off]) << 24) | ((0xFF & b[off + 1]) << 16) | ((0xFF & b[off + 2]) << 8) | (0xFF & b[off + 3]);
+        }
+    }
+}
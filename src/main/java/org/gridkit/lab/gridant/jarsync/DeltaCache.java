@@ -0,0 +1,174 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.gridkit.lab.gridant.jarsync.jarsync.ChecksumPair;
+import org.gridkit.lab.gridant.jarsync.jarsync.DataBlock;
+import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
+
+/**
+ * Master side cache of patches.
+ * <p>
+ * Nodes usually hold identical versions of a file, so patch is calculated
+ * once per distinct (source version, target digest) pair and shared by all
+ * nodes. Concurrent requests for same patch wait for a single computation.
+ * <p>
+ * Cache is bounded by total size of literal data, least recently used
+ * patches are evicted first.
+ */
+class DeltaCache {
+
+    private static final long DEFAULT_LIMIT = 256 << 20;
+
+    /** Files modified more recently than this are not cached */
+    private static final long RACY_WINDOW_MS = 2000;
+
+    private static final DeltaCache INSTANCE = new DeltaCache(DEFAULT_LIMIT);
+
+    public static DeltaCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final long limit;
+    /** Iteration order is access order */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalSize;
+
+    DeltaCache(long limit) {
+        this.limit = limit;
+    }
+
+    public interface DeltaSource {
+
+        public List<Delta> makeDeltas() throws IOException;
+
+    }
+
+    public List<Delta> getDeltas(File source, List<ChecksumPair> targetDigest, final DeltaSource computation) throws IOException {
+        long size = source.length();
+        long mtime = source.lastModified();
+        if (mtime > System.currentTimeMillis() - RACY_WINDOW_MS) {
+            return computation.makeDeltas();
+        }
+        String key = source.getAbsolutePath() + "|" + size + "|" + mtime + "|" + digestHash(targetDigest);
+        Entry entry;
+        boolean owner = false;
+        synchronized(this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(new Callable<List<Delta>>() {
+                    @Override
+                    public List<Delta> call() throws Exception {
+                        return computation.makeDeltas();
+                    }
+                });
+                entries.put(key, entry);
+                owner = true;
+            }
+        }
+        if (owner) {
+            entry.task.run();
+            synchronized(this) {
+                try {
+                    entry.size = sizeOf(entry.get());
+                    totalSize += entry.size;
+                    evict();
+                }
+                catch(IOException e) {
+                    entries.remove(key);
+                }
+                catch(RuntimeException e) {
+                    entries.remove(key);
+                }
+            }
+        }
+        return entry.get();
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while(totalSize > limit && it.hasNext()) {
+            Entry e = it.next();
+            if (e.task.isDone()) {
+                it.remove();
+                totalSize -= e.size;
+            }
+        }
+    }
+
+    private static long sizeOf(List<Delta> deltas) {
+        long size = 0;
+        for(Delta d: deltas) {
+            // literal data plus rough object overhead
+            size += 32;
+            if (d instanceof DataBlock) {
+                size += d.getBlockLength();
+            }
+        }
+        return size;
+    }
+
+    private static String digestHash(List<ChecksumPair> digest) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buf = new byte[4];
+            for(ChecksumPair cp: digest) {
+                int w = cp.getWeak();
+                buf[0] = (byte)(w >> 24);
+                buf[1] = (byte)(w >> 16);
+                buf[2] = (byte)(w >> 8);
+                buf[3] = (byte)w;
+                md.update(buf);
+                md.update(cp.getStrong());
+            }
+            StringBuilder sb = new StringBuilder();
+            for(byte b: md.digest()) {
+                sb.append(Integer.toHexString(0xF & (b >> 4)));
+                sb.append(Integer.toHexString(0xF & b));
+            }
+            return digest.size() + ":" + sb;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Entry {
+
+        final FutureTask<List<Delta>> task;
+        long size;
+
+        Entry(Callable<List<Delta>> computation) {
+            this.task = new FutureTask<List<Delta>>(computation);
+        }
+
+        List<Delta> get() throws IOException {
+            try {
+                return task.get();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            catch(ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException)e.getCause();
+                }
+                else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)e.getCause();
+                }
+                else {
+                    throw new IOException(e.getCause());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * File metadata used for quick (metadata only) comparison of files.
+ */
+public class FileInfo implements Serializable {
+
+    private static final long serialVersionUID = 20140427L;
+
+    public enum Type { FILE, DIRECTORY }
+
+    private static final Method TO_PATH;
+    private static final Method READ_ATTRIBUTES;
+    private static final Class<?> BASIC_ATTRIBUTES;
+    private static final Object NO_LINK_OPTIONS;
+    private static final Method IS_REGULAR_FILE;
+    private static final Method IS_DIRECTORY;
+    private static final Method SIZE;
+    private static final Method LAST_MODIFIED_TIME;
+    private static final Method TO_MILLIS;
+
+    static {
+        Method toPath = null;
+        Method readAttributes = null;
+        Class<?> basicAttributes = null;
+        Object noLinkOptions = null;
+        Method isRegularFile = null;
+        Method isDirectory = null;
+        Method size = null;
+        Method lastModifiedTime = null;
+        Method toMillis = null;
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> filesClass = Class.forName("java.nio.file.Files");
+            Class<?> linkOptionClass = Class.forName("java.nio.file.LinkOption");
+            basicAttributes = Class.forName("java.nio.file.attribute.BasicFileAttributes");
+            toPath = File.class.getMethod("toPath");
+            noLinkOptions = Array.newInstance(linkOptionClass, 0);
+            readAttributes = filesClass.getMethod("readAttributes", pathClass, Class.class, noLinkOptions.getClass());
+            isRegularFile = basicAttributes.getMethod("isRegularFile");
+            isDirectory = basicAttributes.getMethod("isDirectory");
+            size = basicAttributes.getMethod("size");
+            lastModifiedTime = basicAttributes.getMethod("lastModifiedTime");
+            toMillis = Class.forName("java.nio.file.attribute.FileTime").getMethod("toMillis");
+        }
+        catch(Exception e) {
+            // Java 6
+            readAttributes = null;
+        }
+        TO_PATH = toPath;
+        READ_ATTRIBUTES = readAttributes;
+        BASIC_ATTRIBUTES = basicAttributes;
+        NO_LINK_OPTIONS = noLinkOptions;
+        IS_REGULAR_FILE = isRegularFile;
+        IS_DIRECTORY = isDirectory;
+        SIZE = size;
+        LAST_MODIFIED_TIME = lastModifiedTime;
+        TO_MILLIS = toMillis;
+    }
+
+    /**
+     * @return metadata of file or <code>null</code> if file does not exist
+     */
+    public static FileInfo stat(File file) {
+        if (READ_ATTRIBUTES != null) {
+            return readAttributes(file);
+        }
+        // java.io reads each attribute by separate system call
+        if (file.isFile()) {
+            return new FileInfo(Type.FILE, file.length(), file.lastModified());
+        }
+        else if (file.isDirectory()) {
+            return new FileInfo(Type.DIRECTORY, 0, file.lastModified());
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * All attributes are read by single system call (Java 7+ NIO, called by reflection).
+     */
+    private static FileInfo readAttributes(File file) {
+        try {
+            Object attrs = READ_ATTRIBUTES.invoke(null, TO_PATH.invoke(file), BASIC_ATTRIBUTES, NO_LINK_OPTIONS);
+            long lastModified = (Long) TO_MILLIS.invoke(LAST_MODIFIED_TIME.invoke(attrs));
+            if ((Boolean) IS_REGULAR_FILE.invoke(attrs)) {
+                return new FileInfo(Type.FILE, (Long) SIZE.invoke(attrs), lastModified);
+            }
+            else if ((Boolean) IS_DIRECTORY.invoke(attrs)) {
+                return new FileInfo(Type.DIRECTORY, 0, lastModified);
+            }
+            else {
+                return null;
+            }
+        }
+        catch(InvocationTargetException e) {
+            // file does not exist or is not accessible
+            return null;
+        }
+        catch(IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final Type type;
+    private final long size;
+    private final long lastModified;
+
+    public FileInfo(Type type, long size, long lastModified) {
+        this.type = type;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isFile() {
+        return type == Type.FILE;
+    }
+
+    public boolean isDirectory() {
+        return type == Type.DIRECTORY;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Files are considered same if they have same size and modification time.
+     * Modification time is compared with one second precision, as many file
+     * systems do not keep milliseconds.
+     */
+    public boolean isSameFile(FileInfo that) {
+        return that != null
+                && type == Type.FILE && that.type == Type.FILE
+                && size == that.size
+                && lastModified / 1000 == that.lastModified / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return type + "[size=" + size + ", mtime=" + lastModified + "]";
+    }
+}
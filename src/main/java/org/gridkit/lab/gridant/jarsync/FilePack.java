@@ -0,0 +1,180 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Framed stream of several files, used to transfer many small files
+ * in single remote call.
+ * <p>
+ * Stream is a sequence of frames, one per requested file in request order.
+ * Frame is a 8 byte (big endian) length followed by file content. Length
+ * <code>-1</code> denotes file which cannot be read, such frame has no content.
+ */
+class FilePack {
+
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /**
+     * Writes files into sink as framed stream. Files are expected to be small,
+     * each file is read into memory before writing its frame.
+     */
+    public static void pack(List<File> files, OutputStream sink) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(sink, BUFFER_SIZE));
+        for(File file: files) {
+            byte[] data = file.isFile() ? read(file) : null;
+            if (data == null) {
+                dos.writeLong(-1);
+            }
+            else {
+                dos.writeLong(data.length);
+                dos.write(data);
+            }
+        }
+        dos.flush();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        long len = file.length();
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("File is too big: " + file.getPath());
+        }
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(file);
+        }
+        catch(IOException e) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[(int)len];
+            int n = 0;
+            while(n < data.length) {
+                int m = fis.read(data, n, data.length - n);
+                if (m < 0) {
+                    // file was truncated after length check
+                    byte[] tail = new byte[n];
+                    System.arraycopy(data, 0, tail, 0, n);
+                    return tail;
+                }
+                n += m;
+            }
+            return data;
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Stream side of unpacking. Files are written to target
+     * as frames arrive, so whole pack is never held in memory.
+     */
+    public static class Unpacker extends OutputStream {
+
+        private final List<String> paths;
+        private final FileSyncParty target;
+        private final boolean[] received;
+
+        private final byte[] header = new byte[8];
+        private int headerLen;
+        private int index;
+        private long remaining;
+        private OutputStream current;
+
+        /**
+         * @param paths target paths, one per frame
+         */
+        public Unpacker(List<String> paths, FileSyncParty target) {
+            this.paths = paths;
+            this.target = target;
+            this.received = new boolean[paths.size()];
+        }
+
+        /**
+         * @return <code>true</code> if file at given position was completely written to target
+         */
+        public boolean isReceived(int n) {
+            return received[n];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if (current == null) {
+                    if (index >= paths.size()) {
+                        throw new IOException("Unexpected data after last file in pack");
+                    }
+                    int n = Math.min(header.length - headerLen, len);
+                    System.arraycopy(b, off, header, headerLen, n);
+                    headerLen += n;
+                    off += n;
+                    len -= n;
+                    if (headerLen == header.length) {
+                        headerLen = 0;
+                        startEntry(decodeLong(header));
+                    }
+                }
+                else {
+                    int n = (int)Math.min(remaining, len);
+                    current.write(b, off, n);
+                    remaining -= n;
+                    off += n;
+                    len -= n;
+                    if (remaining == 0) {
+                        finishEntry();
+                    }
+                }
+            }
+        }
+
+        private void startEntry(long size) throws IOException {
+            if (size < 0) {
+                // file is not available at source
+                ++index;
+            }
+            else {
+                current = target.openFileForWrite(paths.get(index));
+                remaining = size;
+                if (remaining == 0) {
+                    finishEntry();
+                }
+            }
+        }
+
+        private void finishEntry() throws IOException {
+            OutputStream os = current;
+            current = null;
+            os.close();
+            received[index++] = true;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (current != null) {
+                // incomplete frame
+                OutputStream os = current;
+                current = null;
+                os.close();
+            }
+        }
+
+        private static long decodeLong(byte[] b) {
+            long v = 0;
+            for(int i = 0; i != 8; ++i) {
+                v = (v << 8) | (0xFF & b[i]);
+            }
+            return v;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.gridkit.lab.gridant.jarsync;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.SortedMap;
 
 import org.gridkit.lab.gridant.jarsync.jarsync.ChecksumPair;
 import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
@@ -19,19 +20,109 @@ public interface FileSyncParty {
     public List<String> listDirectories(String path);
     
     public List<String> listFiles(String path);
+
+    /**
+     * Scans whole subtree in single pass. Keys are paths relative to root of party,
+     * directory paths end with <code>/</code>, service files are not included.
+     * @param path directory to scan, empty string for root
+     * @param threads number of threads to scan subdirectories concurrently
+     */
+    public SortedMap<String, FileInfo> scan(String path, int threads);
+
+    /**
+     * @return file metadata or <code>null</code> if file does not exist
+     */
+    public FileInfo stat(String path);
+
+    public void setLastModified(String path, long lastModified) throws IOException;
     
     public List<ChecksumPair> readChecksums(String path) throws IOException;
+
+    /**
+     * Bulk version of {@link #readChecksums(String)}.
+     */
+    public List<List<ChecksumPair>> readChecksums(List<String> paths) throws IOException;
     
+    /**
+     * @return hex MD5 hashes of whole files, <code>null</code> for missing files
+     */
+    public List<String> readHashes(List<String> paths) throws IOException;
+
     public boolean makePath(String path) throws IOException;
+
+    /**
+     * Creates file with same content as existing one. Hard link is used if allowed
+     * and supported, otherwise content is copied.
+     * @return <code>true</code> if hard link was created
+     */
+    public boolean duplicateFile(String existingPath, String path, boolean allowLink) throws IOException;
     
     public OutputStream openFileForWrite(String path) throws IOException;
 
     public void streamFile(String path, OutputStream sink) throws IOException;
+
+    /**
+     * Reads part of file.
+     * @return data read, shorter than requested at the end of file
+     */
+    public byte[] readChunk(String path, long offset, int length) throws IOException;
+
+    /**
+     * Writes several files into sink as single framed stream (see {@link FilePack}).
+     * Intended for small files, which are too costly to transfer one by one.
+     */
+    public void streamFiles(List<String> paths, OutputStream sink) throws IOException;
     
     public List<Delta> preparePatch(String path, List<ChecksumPair> digest) throws IOException;
 
-    public void applyPatch(String path, List<Delta> deltas) throws IOException;
+    /**
+     * Bulk version of {@link #preparePatch(String, List)}.
+     */
+    public List<List<Delta>> preparePatches(List<String> paths, List<List<ChecksumPair>> digests) throws IOException;
+
+    /**
+     * Writes new version of file at <code>path</code>, using file at <code>basisPath</code>
+     * as a source of matched blocks. Usually both paths are the same.
+     */
+    public void applyPatch(String path, String basisPath, List<Delta> deltas) throws IOException;
+
+    /**
+     * Writes patch for file in rdiff delta format into sink, as it is calculated.
+     * Unlike {@link #preparePatch(String, List)}, patch is never held in memory.
+     */
+    public void streamPatch(String path, List<ChecksumPair> digest, OutputStream sink) throws IOException;
+
+    /**
+     * Opens stream applying patch in rdiff delta format (produced by {@link #streamPatch(String, List, OutputStream)})
+     * to the file at <code>basisPath</code>, result is written to <code>path</code>.
+     * File is replaced once stream is closed, {@link OutputStream#close()} would fail if patch was incomplete.
+     */
+    public OutputStream openPatchForWrite(String path, String basisPath) throws IOException;
     
+    /**
+     * @return entry table of zip archive, <code>null</code> if file is not a zip archive (or zip64)
+     */
+    public ZipIndex readArchiveIndex(String path) throws IOException;
+
+    /**
+     * Archive aware version of {@link #preparePatches(List, List)}, unchanged entries
+     * are copied from archive described by index (see {@link ArchiveDelta}).
+     * Result has <code>null</code> for files, which are not archives or where archive
+     * patch does not pay off.
+     */
+    public List<List<Delta>> prepareArchivePatches(List<String> paths, List<ZipIndex> indexes) throws IOException;
+
+    /**
+     * Archive aware version of {@link #streamPatch(String, List, OutputStream)}.
+     * @return <code>false</code> (nothing is written) if archive patch is not applicable
+     */
+    public boolean streamArchivePatch(String path, ZipIndex index, OutputStream sink) throws IOException;
+
+    /**
+     * Renames file, creating parent directories if required.
+     */
+    public void moveFile(String fromPath, String toPath) throws IOException;
+
     public void eraseFile(String path) throws IOException;
 
     public void eraseDirectory(String path) throws IOException;    
@@ -0,0 +1,125 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.gridkit.lab.gridant.jarsync.jarsync.Rdiff;
+
+/**
+ * Passes through patch in rdiff delta format, counting bytes of literal
+ * data (same as size of data blocks of in memory patch).
+ * Stream is validated by receiving side ({@link PatchWriter}), so malformed
+ * commands are just passed through.
+ */
+class LiteralCountingStream extends FilterOutputStream {
+
+    private static final int S_MAGIC = 0;
+    private static final int S_OP = 1;
+    private static final int S_PARAM = 2;
+    private static final int S_LITERAL = 3;
+    private static final int S_END = 4;
+
+    private int state = S_MAGIC;
+    private boolean literalParam;
+    private int skip = 4;
+    private long param;
+    private long literalRemaining;
+    private long literalBytes;
+
+    public LiteralCountingStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * @return literal bytes written so far
+     */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        int end = off + len;
+        while(off < end) {
+            switch(state) {
+                case S_MAGIC: {
+                    int n = Math.min(skip, end - off);
+                    skip -= n;
+                    off += n;
+                    if (skip == 0) {
+                        state = S_OP;
+                    }
+                    break;
+                }
+                case S_OP:
+                    onOp(b[off++]);
+                    break;
+                case S_PARAM:
+                    param = (param << 8) | (0xFF & b[off++]);
+                    if (--skip == 0) {
+                        if (literalParam && param > 0) {
+                            literalRemaining = param;
+                            state = S_LITERAL;
+                        }
+                        else {
+                            state = S_OP;
+                        }
+                    }
+                    break;
+                case S_LITERAL: {
+                    int n = (int)Math.min(literalRemaining, end - off);
+                    literalRemaining -= n;
+                    literalBytes += n;
+                    off += n;
+                    if (literalRemaining == 0) {
+                        state = S_OP;
+                    }
+                    break;
+                }
+                default:
+                    // data after end of patch, rejected by receiver
+                    return;
+            }
+        }
+    }
+
+    private void onOp(byte op) {
+        param = 0;
+        switch(op) {
+            case Rdiff.OP_END:
+                state = S_END;
+                return;
+            case Rdiff.OP_LITERAL_N1:
+                expect(1, true);
+                return;
+            case Rdiff.OP_LITERAL_N2:
+                expect(2, true);
+                return;
+            case Rdiff.OP_LITERAL_N4:
+                expect(4, true);
+                return;
+            case Rdiff.OP_LITERAL_N8:
+                expect(8, true);
+                return;
+            case Rdiff.OP_COPY_N4_N4:
+                expect(8, false);
+                return;
+            default:
+                // bad command, rejected by receiver
+                state = S_END;
+        }
+    }
+
+    private void expect(int bytes, boolean literal) {
+        state = S_PARAM;
+        skip = bytes;
+        literalParam = literal;
+    }
+}
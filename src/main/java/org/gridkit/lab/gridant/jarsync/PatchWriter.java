@@ -0,0 +1,291 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.gridkit.lab.gridant.jarsync.jarsync.DataBlock;
+import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
+import org.gridkit.lab.gridant.jarsync.jarsync.Offsets;
+import org.gridkit.lab.gridant.jarsync.jarsync.Rdiff;
+
+/**
+ * Applies patch in rdiff delta format (see {@link Rdiff#makeDeltas(java.util.List, java.io.InputStream, OutputStream)})
+ * as it is written to this stream.
+ * <p>
+ * New file is written sequentially to temporary file, which replaces target
+ * on {@link #close()}. If patch stream was incomplete, temporary file
+ * is removed and {@link #close()} throws {@link IOException}.
+ * Memory footprint does not depend on file size.
+ * <p>
+ * Also provides single pass rebuild for in memory patches.
+ */
+class PatchWriter extends OutputStream {
+
+    private static final int S_MAGIC = 0;
+    private static final int S_OP = 1;
+    private static final int S_PARAM = 2;
+    private static final int S_LITERAL = 3;
+    private static final int S_END = 4;
+
+    private final File target;
+    private final File tmpFile;
+    private final RandomAccessFile basis;
+    private final FileOutputStream out;
+
+    private int state = S_MAGIC;
+    private int op;
+    private final byte[] field = new byte[8];
+    private int fieldLen;
+    private int fieldNeed = 4;
+    private long literalRemaining;
+    private boolean closed;
+
+    /**
+     * @param basis existing version of file (may be absent)
+     * @param tmpFile temporary file to write new version to
+     * @param target file to be replaced by new version
+     */
+    public PatchWriter(File basis, File tmpFile, File target) throws IOException {
+        this.target = target;
+        this.tmpFile = tmpFile;
+        this.basis = basis.isFile() ? new RandomAccessFile(basis, "r") : null;
+        try {
+            this.out = new FileOutputStream(tmpFile);
+        }
+        catch(IOException e) {
+            if (this.basis != null) {
+                this.basis.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes new version of file using patch in single pass.
+     * Deltas are ordered by write offset and adjacent matched blocks are
+     * coalesced, so matched data is copied by few large {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} calls.
+     */
+    public static void rebuild(File basis, List<Delta> deltas, File outFile) throws IOException {
+        List<Delta> sorted = new ArrayList<Delta>(deltas);
+        Collections.sort(sorted, new Comparator<Delta>() {
+            @Override
+            public int compare(Delta o1, Delta o2) {
+                return Long.valueOf(o1.getWriteOffset()).compareTo(o2.getWriteOffset());
+            }
+        });
+        RandomAccessFile src = basis.isFile() ? new RandomAccessFile(basis, "r") : null;
+        try {
+            FileOutputStream fos = new FileOutputStream(outFile);
+            try {
+                FileChannel dst = fos.getChannel();
+                int i = 0;
+                while(i < sorted.size()) {
+                    Delta d = sorted.get(i++);
+                    if (d instanceof Offsets) {
+                        Offsets o = (Offsets) d;
+                        long oldOffset = o.getOldOffset();
+                        long newOffset = o.getNewOffset();
+                        long length = o.getBlockLength();
+                        // coalesce run of adjacent blocks
+                        while(i < sorted.size() && sorted.get(i) instanceof Offsets) {
+                            Offsets next = (Offsets) sorted.get(i);
+                            if (next.getOldOffset() == oldOffset + length && next.getNewOffset() == newOffset + length) {
+                                length += next.getBlockLength();
+                                ++i;
+                            }
+                            else {
+                                break;
+                            }
+                        }
+                        dst.position(newOffset);
+                        copy(src, oldOffset, length, dst, outFile);
+                    }
+                    else {
+                        DataBlock db = (DataBlock) d;
+                        dst.position(db.getWriteOffset());
+                        ByteBuffer bb = ByteBuffer.wrap(db.getData());
+                        while(bb.hasRemaining()) {
+                            dst.write(bb);
+                        }
+                    }
+                }
+            }
+            finally {
+                fos.close();
+            }
+        }
+        finally {
+            if (src != null) {
+                src.close();
+            }
+        }
+    }
+
+    private static void copy(RandomAccessFile basis, long offset, long length, FileChannel dst, File target) throws IOException {
+        if (basis == null || offset + length > basis.length()) {
+            throw new IOException("Patch refers to data beyond end of basis file: " + target.getPath());
+        }
+        FileChannel src = basis.getChannel();
+        while(length > 0) {
+            long n = src.transferTo(offset, length, dst);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Replaces target with temporary file. Rename is atomic where
+     * file system allows to rename over existing file.
+     */
+    public static void replace(File tmpFile, File target) throws IOException {
+        if (!tmpFile.renameTo(target)) {
+            // some platforms cannot rename over existing file
+            target.delete();
+            if (!tmpFile.renameTo(target)) {
+                tmpFile.delete();
+                throw new IOException("Cannot replace file: " + target.getPath());
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        while(len > 0) {
+            switch(state) {
+                case S_MAGIC:
+                case S_PARAM: {
+                    int n = Math.min(fieldNeed - fieldLen, len);
+                    System.arraycopy(b, off, field, fieldLen, n);
+                    fieldLen += n;
+                    off += n;
+                    len -= n;
+                    if (fieldLen == fieldNeed) {
+                        onField();
+                    }
+                    break;
+                }
+                case S_OP:
+                    onOp(0xFF & b[off]);
+                    ++off;
+                    --len;
+                    break;
+                case S_LITERAL: {
+                    int n = (int)Math.min(literalRemaining, len);
+                    out.write(b, off, n);
+                    literalRemaining -= n;
+                    off += n;
+                    len -= n;
+                    if (literalRemaining == 0) {
+                        state = S_OP;
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unexpected data after end of patch");
+            }
+        }
+    }
+
+    private void onOp(int op) throws IOException {
+        this.op = op;
+        switch(op) {
+            case Rdiff.OP_END:
+                state = S_END;
+                return;
+            case Rdiff.OP_LITERAL_N1:
+                expect(1);
+                return;
+            case Rdiff.OP_LITERAL_N2:
+                expect(2);
+                return;
+            case Rdiff.OP_LITERAL_N4:
+                expect(4);
+                return;
+            case Rdiff.OP_LITERAL_N8:
+                expect(8);
+                return;
+            case Rdiff.OP_COPY_N4_N4:
+                expect(8);
+                return;
+            default:
+                throw new IOException("Bad delta command: 0x" + Integer.toHexString(op));
+        }
+    }
+
+    private void expect(int bytes) {
+        state = S_PARAM;
+        fieldLen = 0;
+        fieldNeed = bytes;
+    }
+
+    private void onField() throws IOException {
+        if (state == S_MAGIC) {
+            if ((int)decode(0, 4) != Rdiff.DELTA_MAGIC) {
+                throw new IOException("Bad delta header: 0x" + Integer.toHexString((int)decode(0, 4)));
+            }
+            state = S_OP;
+        }
+        else if (op == Rdiff.OP_COPY_N4_N4) {
+            copy(decode(0, 4), decode(4, 4));
+            state = S_OP;
+        }
+        else {
+            literalRemaining = decode(0, fieldNeed);
+            state = literalRemaining > 0 ? S_LITERAL : S_OP;
+        }
+    }
+
+    /** Unsigned big endian integer from field buffer */
+    private long decode(int off, int len) {
+        long v = 0;
+        for(int i = 0; i != len; ++i) {
+            v = (v << 8) | (0xFF & field[off + i]);
+        }
+        return v;
+    }
+
+    private void copy(long offset, long length) throws IOException {
+        copy(basis, offset, length, out.getChannel(), target);
+    }
+
+    /**
+     * Replaces target file with patched version, if patch is complete.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        }
+        finally {
+            if (basis != null) {
+                basis.close();
+            }
+        }
+        if (state != S_END) {
+            tmpFile.delete();
+            throw new IOException("Patch is incomplete: " + target.getPath());
+        }
+        replace(tmpFile, target);
+    }
+}
@@ -1,26 +1,84 @@
 package org.gridkit.lab.gridant.jarsync;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import org.gridkit.lab.gridant.jarsync.Compression.DecoderStream;
+import org.gridkit.lab.gridant.jarsync.Compression.EncodedChunk;
+import org.gridkit.lab.gridant.jarsync.Compression.EncodedPatch;
+import org.gridkit.lab.gridant.jarsync.Compression.EncoderStream;
 import org.gridkit.lab.gridant.jarsync.jarsync.ChecksumPair;
 import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
 import org.gridkit.vicluster.telecontrol.ssh.OutputStreamRemoteAdapter;
 
+/**
+ * Remote proxy of {@link FileSyncParty}.
+ * <p>
+ * File content and patch literals are compressed (if they compress well)
+ * on the way from remote party.
+ * <p>
+ * Bulk data (file content and patch literals) sent by remote party is
+ * throttled by per proxy limit and by JVM wide limit ({@link TokenBucket#getMasterBucket()}),
+ * control calls are never delayed.
+ */
 public class RemoteFileSyncSlave implements FileSyncParty, Serializable {
 
     private static final long serialVersionUID = 20140426L;
+
+    /** Whole files are transfered by chunks of this size */
+    static final int TRANSFER_CHUNK = BufferPool.BUFFER_SIZE;
+
+    /** Number of chunks requested concurrently per file */
+    static final int TRANSFER_WINDOW = 4;
+
+    private static final ExecutorService TRANSFER_POOL = Executors.newCachedThreadPool(new TransferThreadFactory());
     
     @SuppressWarnings("unused")
     private transient FileSyncParty originalTarget;
-    private final FileSyncParty proxyTarget;
+    private transient RemoteSkeleton skeleton;
+    private final RFileSyncSlave proxyTarget;
+    private transient TransferStats stats;
     
     public RemoteFileSyncSlave(FileSyncParty target) {
         this.originalTarget = target;
-        this.proxyTarget = new RemoteSkeleton(target);
+        this.skeleton = new RemoteSkeleton(target);
+        this.proxyTarget = skeleton;
+    }
+
+    /**
+     * Limits rate of bulk data sent through this proxy. Could be set only
+     * at the side of wrapped party, before proxy is passed to remote side.
+     * @param rate bytes per second, 0 - unlimited
+     */
+    public void setBandwidthLimit(long rate) {
+        if (skeleton == null) {
+            throw new IllegalStateException("Bandwidth limit could be set only at source side");
+        }
+        skeleton.bucket.setRate(rate);
+    }
+
+    /**
+     * @return statistics of data received through this proxy
+     */
+    public synchronized TransferStats getTransferStats() {
+        if (stats == null) {
+            stats = new TransferStats();
+        }
+        return stats;
     }
 
     public String resolvePath(String path) {
@@ -35,28 +93,166 @@ public class RemoteFileSyncSlave implements FileSyncParty, Serializable {
         return proxyTarget.listFiles(path);
     }
 
+    public SortedMap<String, FileInfo> scan(String path, int threads) {
+        return proxyTarget.scan(path, threads);
+    }
+
+    public FileInfo stat(String path) {
+        return proxyTarget.stat(path);
+    }
+
+    public void setLastModified(String path, long lastModified) throws IOException {
+        proxyTarget.setLastModified(path, lastModified);
+    }
+
     public List<ChecksumPair> readChecksums(String path) throws IOException {
         return proxyTarget.readChecksums(path);
     }
 
+    public List<List<ChecksumPair>> readChecksums(List<String> paths) throws IOException {
+        return proxyTarget.readChecksums(paths);
+    }
+
+    public List<String> readHashes(List<String> paths) throws IOException {
+        return proxyTarget.readHashes(paths);
+    }
+
     public boolean makePath(String path) throws IOException {
         return proxyTarget.makePath(path);
     }
 
+    public boolean duplicateFile(String existingPath, String path, boolean allowLink) throws IOException {
+        return proxyTarget.duplicateFile(existingPath, path, allowLink);
+    }
+
     public OutputStream openFileForWrite(String path) throws IOException {
         return proxyTarget.openFileForWrite(path);
     }
     
+    /**
+     * File is transfered by chunks, several chunks are requested concurrently,
+     * so transfer is not bound by round trip time.
+     */
     public void streamFile(String path, OutputStream sink) throws IOException {
-        proxyTarget.streamFile(path, new OutputStreamRemoteAdapter(sink));
+        EncodedChunk first = proxyTarget.readEncodedChunk(path, 0, TRANSFER_CHUNK, true);
+        byte[] data = Compression.decodeChunk(first, getTransferStats());
+        sink.write(data);
+        long size = first.fileSize;
+        long written = data.length;
+        long next = data.length;
+        int incompressible = first.compressed ? 0 : 1;
+        LinkedList<Future<EncodedChunk>> window = new LinkedList<Future<EncodedChunk>>();
+        try {
+            while(written < size) {
+                while(window.size() < TRANSFER_WINDOW && next < size) {
+                    int len = (int)Math.min(TRANSFER_CHUNK, size - next);
+                    window.add(requestChunk(path, next, len, incompressible < Compression.GIVE_UP_CHUNKS));
+                    next += len;
+                }
+                EncodedChunk chunk = get(window.removeFirst());
+                byte[] part = Compression.decodeChunk(chunk, getTransferStats());
+                if (part.length != Math.min(TRANSFER_CHUNK, size - written)) {
+                    throw new IOException("File was changed during transfer: " + path);
+                }
+                sink.write(part);
+                written += part.length;
+                incompressible = chunk.compressed ? 0 : incompressible + 1;
+            }
+        }
+        finally {
+            for(Future<EncodedChunk> f: window) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    private Future<EncodedChunk> requestChunk(final String path, final long offset, final int length, final boolean compress) {
+        return TRANSFER_POOL.submit(new Callable<EncodedChunk>() {
+            @Override
+            public EncodedChunk call() throws IOException {
+                return proxyTarget.readEncodedChunk(path, offset, length, compress);
+            }
+        });
+    }
+
+    private static EncodedChunk get(Future<EncodedChunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            else {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    public byte[] readChunk(String path, long offset, int length) throws IOException {
+        return Compression.decodeChunk(proxyTarget.readEncodedChunk(path, offset, length, true), getTransferStats());
+    }
+
+    public void streamFiles(List<String> paths, OutputStream sink) throws IOException {
+        DecoderStream decoder = new DecoderStream(sink, getTransferStats());
+        proxyTarget.streamEncodedFiles(paths, new OutputStreamRemoteAdapter(decoder));
+        decoder.finish();
     }
 
     public List<Delta> preparePatch(String path, List<ChecksumPair> digest) throws IOException {
-        return proxyTarget.preparePatch(path, digest);
+        return Compression.decode(proxyTarget.prepareEncodedPatch(path, digest), getTransferStats());
+    }
+
+    public List<List<Delta>> preparePatches(List<String> paths, List<List<ChecksumPair>> digests) throws IOException {
+        List<EncodedPatch> patches = proxyTarget.prepareEncodedPatches(paths, digests);
+        List<List<Delta>> result = new ArrayList<List<Delta>>(patches.size());
+        for(EncodedPatch patch: patches) {
+            result.add(Compression.decode(patch, getTransferStats()));
+        }
+        return result;
+    }
+
+    public ZipIndex readArchiveIndex(String path) throws IOException {
+        return proxyTarget.readArchiveIndex(path);
     }
 
-    public void applyPatch(String path, List<Delta> deltas) throws IOException {
-        proxyTarget.applyPatch(path, deltas);
+    public List<List<Delta>> prepareArchivePatches(List<String> paths, List<ZipIndex> indexes) throws IOException {
+        List<EncodedPatch> patches = proxyTarget.prepareEncodedArchivePatches(paths, indexes);
+        List<List<Delta>> result = new ArrayList<List<Delta>>(patches.size());
+        for(EncodedPatch patch: patches) {
+            result.add(patch == null ? null : Compression.decode(patch, getTransferStats()));
+        }
+        return result;
+    }
+
+    public boolean streamArchivePatch(String path, ZipIndex index, OutputStream sink) throws IOException {
+        DecoderStream decoder = new DecoderStream(sink, getTransferStats());
+        boolean done = proxyTarget.streamEncodedArchivePatch(path, index, new OutputStreamRemoteAdapter(decoder));
+        decoder.finish();
+        return done;
+    }
+
+    public void applyPatch(String path, String basisPath, List<Delta> deltas) throws IOException {
+        proxyTarget.applyPatch(path, basisPath, deltas);
+    }
+
+    public void streamPatch(String path, List<ChecksumPair> digest, OutputStream sink) throws IOException {
+        DecoderStream decoder = new DecoderStream(sink, getTransferStats());
+        proxyTarget.streamEncodedPatch(path, digest, new OutputStreamRemoteAdapter(decoder));
+        decoder.finish();
+    }
+
+    public OutputStream openPatchForWrite(String path, String basisPath) throws IOException {
+        return proxyTarget.openPatchForWrite(path, basisPath);
+    }
+
+    public void moveFile(String fromPath, String toPath) throws IOException {
+        proxyTarget.moveFile(fromPath, toPath);
     }
 
     public void eraseFile(String path) throws IOException {
@@ -67,18 +263,60 @@ public class RemoteFileSyncSlave implements FileSyncParty, Serializable {
         proxyTarget.eraseDirectory(path);
     }
 
+    private static class TransferThreadFactory implements ThreadFactory {
+
+        private int counter;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setName("jarsync-transfer-" + (counter++));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     private static interface RFileSyncSlave extends FileSyncParty, Remote {
-        
+
+        public EncodedChunk readEncodedChunk(String path, long offset, int length, boolean compress) throws IOException;
+
+        public void streamEncodedFiles(List<String> paths, OutputStream sink) throws IOException;
+
+        public EncodedPatch prepareEncodedPatch(String path, List<ChecksumPair> digest) throws IOException;
+
+        public List<EncodedPatch> prepareEncodedPatches(List<String> paths, List<List<ChecksumPair>> digests) throws IOException;
+
+        public void streamEncodedPatch(String path, List<ChecksumPair> digest, OutputStream sink) throws IOException;
+
+        public List<EncodedPatch> prepareEncodedArchivePatches(List<String> paths, List<ZipIndex> indexes) throws IOException;
+
+        public boolean streamEncodedArchivePatch(String path, ZipIndex index, OutputStream sink) throws IOException;
+
     }
-    
+
     private static class RemoteSkeleton implements RFileSyncSlave {
         
         private final FileSyncParty slave;
+        private final TokenBucket bucket = new TokenBucket(0);
 
         public RemoteSkeleton(FileSyncParty slave) {
             this.slave = slave;
         }
 
+        private void throttle(long bytes) throws InterruptedIOException {
+            bucket.acquire(bytes);
+            TokenBucket.getMasterBucket().acquire(bytes);
+        }
+
+        private List<EncodedPatch> throttle(List<EncodedPatch> patches) throws InterruptedIOException {
+            long size = 0;
+            for(EncodedPatch patch: patches) {
+                size += patch == null ? 0 : patch.literals.length;
+            }
+            throttle(size);
+            return patches;
+        }
+
         public String resolvePath(String path) {
             return slave.resolvePath(path);
         }
@@ -91,14 +329,38 @@ public class RemoteFileSyncSlave implements FileSyncParty, Serializable {
             return slave.listFiles(path);
         }
 
+        public SortedMap<String, FileInfo> scan(String path, int threads) {
+            return slave.scan(path, threads);
+        }
+
+        public FileInfo stat(String path) {
+            return slave.stat(path);
+        }
+
+        public void setLastModified(String path, long lastModified) throws IOException {
+            slave.setLastModified(path, lastModified);
+        }
+
         public List<ChecksumPair> readChecksums(String path) throws IOException {
             return slave.readChecksums(path);
         }
 
+        public List<List<ChecksumPair>> readChecksums(List<String> paths) throws IOException {
+            return slave.readChecksums(paths);
+        }
+
+        public List<String> readHashes(List<String> paths) throws IOException {
+            return slave.readHashes(paths);
+        }
+
         public boolean makePath(String path) throws IOException {
             return slave.makePath(path);
         }
 
+        public boolean duplicateFile(String existingPath, String path, boolean allowLink) throws IOException {
+            return slave.duplicateFile(existingPath, path, allowLink);
+        }
+
         public OutputStream openFileForWrite(String path) throws IOException {
             return new OutputStreamRemoteAdapter(slave.openFileForWrite(path));
         }
@@ -107,12 +369,99 @@ public class RemoteFileSyncSlave implements FileSyncParty, Serializable {
             slave.streamFile(path, sink);
         }
 
+        public void streamFiles(List<String> paths, OutputStream sink) throws IOException {
+            slave.streamFiles(paths, sink);
+        }
+
+        public byte[] readChunk(String path, long offset, int length) throws IOException {
+            return slave.readChunk(path, offset, length);
+        }
+
+        public EncodedChunk readEncodedChunk(String path, long offset, int length, boolean compress) throws IOException {
+            FileInfo info = slave.stat(path);
+            byte[] data = slave.readChunk(path, offset, length);
+            EncodedChunk chunk = Compression.encodeChunk(data, info == null ? 0 : info.getSize(), compress);
+            throttle(chunk.data.length);
+            return chunk;
+        }
+
+        public void streamEncodedFiles(List<String> paths, OutputStream sink) throws IOException {
+            EncoderStream encoder = new EncoderStream(new ThrottledOutputStream(sink));
+            slave.streamFiles(paths, encoder);
+            encoder.finish();
+        }
+
         public List<Delta> preparePatch(String path, List<ChecksumPair> digest) throws IOException {
             return slave.preparePatch(path, digest);
         }
 
-        public void applyPatch(String path, List<Delta> deltas) throws IOException {
-            slave.applyPatch(path, deltas);
+        public List<List<Delta>> preparePatches(List<String> paths, List<List<ChecksumPair>> digests) throws IOException {
+            return slave.preparePatches(paths, digests);
+        }
+
+        public EncodedPatch prepareEncodedPatch(String path, List<ChecksumPair> digest) throws IOException {
+            EncodedPatch patch = Compression.encode(slave.preparePatch(path, digest));
+            throttle(patch.literals.length);
+            return patch;
+        }
+
+        public List<EncodedPatch> prepareEncodedPatches(List<String> paths, List<List<ChecksumPair>> digests) throws IOException {
+            List<List<Delta>> patches = slave.preparePatches(paths, digests);
+            List<EncodedPatch> result = new ArrayList<EncodedPatch>(patches.size());
+            for(List<Delta> patch: patches) {
+                result.add(Compression.encode(patch));
+            }
+            return throttle(result);
+        }
+
+        public ZipIndex readArchiveIndex(String path) throws IOException {
+            return slave.readArchiveIndex(path);
+        }
+
+        public List<List<Delta>> prepareArchivePatches(List<String> paths, List<ZipIndex> indexes) throws IOException {
+            return slave.prepareArchivePatches(paths, indexes);
+        }
+
+        public List<EncodedPatch> prepareEncodedArchivePatches(List<String> paths, List<ZipIndex> indexes) throws IOException {
+            List<List<Delta>> patches = slave.prepareArchivePatches(paths, indexes);
+            List<EncodedPatch> result = new ArrayList<EncodedPatch>(patches.size());
+            for(List<Delta> patch: patches) {
+                result.add(patch == null ? null : Compression.encode(patch));
+            }
+            return throttle(result);
+        }
+
+        public boolean streamArchivePatch(String path, ZipIndex index, OutputStream sink) throws IOException {
+            return slave.streamArchivePatch(path, index, sink);
+        }
+
+        public boolean streamEncodedArchivePatch(String path, ZipIndex index, OutputStream sink) throws IOException {
+            EncoderStream encoder = new EncoderStream(new ThrottledOutputStream(sink));
+            boolean done = slave.streamArchivePatch(path, index, encoder);
+            encoder.finish();
+            return done;
+        }
+
+        public void applyPatch(String path, String basisPath, List<Delta> deltas) throws IOException {
+            slave.applyPatch(path, basisPath, deltas);
+        }
+
+        public void streamPatch(String path, List<ChecksumPair> digest, OutputStream sink) throws IOException {
+            slave.streamPatch(path, digest, sink);
+        }
+
+        public void streamEncodedPatch(String path, List<ChecksumPair> digest, OutputStream sink) throws IOException {
+            EncoderStream encoder = new EncoderStream(new ThrottledOutputStream(sink));
+            slave.streamPatch(path, digest, encoder);
+            encoder.finish();
+        }
+
+        public OutputStream openPatchForWrite(String path, String basisPath) throws IOException {
+            return new OutputStreamRemoteAdapter(slave.openPatchForWrite(path, basisPath));
+        }
+
+        public void moveFile(String fromPath, String toPath) throws IOException {
+            slave.moveFile(fromPath, toPath);
         }
 
         public void eraseFile(String path) throws IOException {
@@ -122,5 +471,24 @@ public class RemoteFileSyncSlave implements FileSyncParty, Serializable {
         public void eraseDirectory(String path) throws IOException {
             slave.eraseDirectory(path);
         }
+
+        private class ThrottledOutputStream extends FilterOutputStream {
+
+            public ThrottledOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                throttle(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throttle(len);
+                out.write(b, off, len);
+            }
+        }
     }
 }
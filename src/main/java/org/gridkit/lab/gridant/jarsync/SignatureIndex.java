@@ -0,0 +1,402 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.gridkit.lab.gridant.jarsync.jarsync.ChecksumPair;
+import org.gridkit.lab.gridant.jarsync.jarsync.Rdiff;
+
+/**
+ * Master side index of source file signatures (and whole file hashes).
+ * <p>
+ * Signatures are keyed by absolute path, size, modification time and
+ * file key (inode, where Java 7 file API is available), so same file synchronized to many nodes (or by many builds, if index
+ * is persisted) is read and hashed once. Concurrent requests for same
+ * file wait for a single computation.
+ * <p>
+ * Files modified within last few seconds are not cached, as their
+ * modification time cannot be trusted to reflect subsequent changes.
+ * File key catches files replaced by other file with same size and
+ * modification time (e.g. moved over or restored from archive).
+ */
+class SignatureIndex {
+
+    private static final int MAGIC = 0x4A534932; // JSI2
+
+    /** Files modified more recently than this are not cached */
+    private static final long RACY_WINDOW_MS = 2000;
+
+    private static final SignatureIndex TRANSIENT = new SignatureIndex(null);
+    private static final Map<File, SignatureIndex> PERSISTENT = new HashMap<File, SignatureIndex>();
+
+    private static final Method TO_PATH;
+    private static final Method READ_ATTRIBUTES;
+    private static final Method FILE_KEY;
+    private static final Class<?> BASIC_ATTRIBUTES;
+    private static final Object NO_LINK_OPTIONS;
+
+    static {
+        Method toPath = null;
+        Method readAttributes = null;
+        Method fileKey = null;
+        Class<?> basicAttributes = null;
+        Object noLinkOptions = null;
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> filesClass = Class.forName("java.nio.file.Files");
+            Class<?> linkOptionClass = Class.forName("java.nio.file.LinkOption");
+            basicAttributes = Class.forName("java.nio.file.attribute.BasicFileAttributes");
+            toPath = File.class.getMethod("toPath");
+            readAttributes = filesClass.getMethod("readAttributes", pathClass, Class.class, Array.newInstance(linkOptionClass, 0).getClass());
+            fileKey = basicAttributes.getMethod("fileKey");
+            noLinkOptions = Array.newInstance(linkOptionClass, 0);
+        }
+        catch(Exception e) {
+            // Java 6
+            toPath = null;
+            readAttributes = null;
+            fileKey = null;
+            basicAttributes = null;
+            noLinkOptions = null;
+        }
+        TO_PATH = toPath;
+        READ_ATTRIBUTES = readAttributes;
+        FILE_KEY = fileKey;
+        BASIC_ATTRIBUTES = basicAttributes;
+        NO_LINK_OPTIONS = noLinkOptions;
+    }
+
+    /**
+     * @param storage file to persist index between builds, or <code>null</code> for in-memory index
+     * @return JVM wide index instance for given storage
+     */
+    public static synchronized SignatureIndex getInstance(File storage) {
+        if (storage == null) {
+            return TRANSIENT;
+        }
+        storage = storage.getAbsoluteFile();
+        SignatureIndex index = PERSISTENT.get(storage);
+        if (index == null) {
+            index = new SignatureIndex(storage);
+            index.load();
+            PERSISTENT.put(storage, index);
+        }
+        return index;
+    }
+
+    private final File storage;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /** Whole file hashes, these are not persisted */
+    private final ConcurrentMap<String, HashEntry> hashes = new ConcurrentHashMap<String, HashEntry>();
+    private volatile boolean dirty;
+
+    SignatureIndex(File storage) {
+        this.storage = storage;
+    }
+
+    public List<ChecksumPair> getSignatures(final File file, final Rdiff rdiff) throws IOException {
+        String key = file.getAbsolutePath();
+        long size = file.length();
+        long mtime = file.lastModified();
+        String fileKey = fileKey(file);
+        while(true) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.mtime == mtime && entry.fileKey.equals(fileKey)) {
+                return entry.get();
+            }
+            Entry fresh = new Entry(size, mtime, fileKey, new Callable<List<ChecksumPair>>() {
+                @Override
+                public List<ChecksumPair> call() throws Exception {
+                    return compute(file, rdiff);
+                }
+            });
+            boolean installed = entry == null ? entries.putIfAbsent(key, fresh) == null : entries.replace(key, entry, fresh);
+            if (!installed) {
+                // lost the race, retry
+                continue;
+            }
+            long started = System.currentTimeMillis();
+            fresh.task.run();
+            try {
+                List<ChecksumPair> result = fresh.get();
+                if (file.length() != size || file.lastModified() != mtime || !fileKey(file).equals(fileKey) || mtime > started - RACY_WINDOW_MS) {
+                    // file is changing, do not cache
+                    entries.remove(key, fresh);
+                }
+                else {
+                    dirty = true;
+                }
+                return result;
+            }
+            catch(IOException e) {
+                entries.remove(key, fresh);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return hex MD5 hash of whole file content
+     */
+    public String getHash(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long size = file.length();
+        long mtime = file.lastModified();
+        String fileKey = fileKey(file);
+        HashEntry entry = hashes.get(key);
+        if (entry != null && entry.size == size && entry.mtime == mtime && entry.fileKey.equals(fileKey)) {
+            return entry.hash;
+        }
+        long started = System.currentTimeMillis();
+        String hash = computeHash(file);
+        if (file.length() == size && file.lastModified() == mtime && fileKey(file).equals(fileKey) && mtime <= started - RACY_WINDOW_MS) {
+            hashes.put(key, new HashEntry(size, mtime, fileKey, hash));
+        }
+        return hash;
+    }
+
+    /**
+     * @return string form of file key (inode on Unix), or empty string if it is not available
+     */
+    static String fileKey(File file) {
+        if (FILE_KEY == null) {
+            return "";
+        }
+        try {
+            Object attrs = READ_ATTRIBUTES.invoke(null, TO_PATH.invoke(file), BASIC_ATTRIBUTES, NO_LINK_OPTIONS);
+            Object key = FILE_KEY.invoke(attrs);
+            return key == null ? "" : key.toString();
+        }
+        catch(Exception e) {
+            // file is missing or not accessible, size and mtime checks will handle it
+            return "";
+        }
+    }
+
+    static String computeHash(File file) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                byte[] buf = new byte[1 << 16];
+                int n;
+                while((n = fis.read(buf)) >= 0) {
+                    md.update(buf, 0, n);
+                }
+            }
+            finally {
+                fis.close();
+            }
+            StringBuilder sb = new StringBuilder();
+            for(byte b: md.digest()) {
+                sb.append(Integer.toHexString(0xF & (b >> 4)));
+                sb.append(Integer.toHexString(0xF & b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Forgets signatures of file, should be called if file is modified
+     * without changing its size or modification time.
+     */
+    public void invalidate(File file) {
+        entries.remove(file.getAbsolutePath());
+        hashes.remove(file.getAbsolutePath());
+    }
+
+    private static List<ChecksumPair> compute(File file, Rdiff rdiff) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            List<ChecksumPair> digest = rdiff.makeSignatures(fis);
+            return digest == null ? Collections.<ChecksumPair>emptyList() : Collections.unmodifiableList(new ArrayList<ChecksumPair>(digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Writes index to storage file, if there are any changes since last save.
+     */
+    public synchronized void save() throws IOException {
+        if (storage == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        if (storage.getParentFile() != null) {
+            storage.getParentFile().mkdirs();
+        }
+        File tmp = new File(storage.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try {
+            dos.writeInt(MAGIC);
+            for(Map.Entry<String, Entry> e: entries.entrySet()) {
+                Entry entry = e.getValue();
+                if (!entry.task.isDone()) {
+                    continue;
+                }
+                File file = new File(e.getKey());
+                if (file.length() != entry.size || file.lastModified() != entry.mtime || !fileKey(file).equals(entry.fileKey)) {
+                    // file was changed or removed
+                    entries.remove(e.getKey(), entry);
+                    continue;
+                }
+                List<ChecksumPair> sigs;
+                try {
+                    sigs = entry.get();
+                }
+                catch(IOException ex) {
+                    continue;
+                }
+                dos.writeBoolean(true);
+                dos.writeUTF(e.getKey());
+                dos.writeLong(entry.size);
+                dos.writeLong(entry.mtime);
+                dos.writeUTF(entry.fileKey);
+                dos.writeInt(sigs.size());
+                for(ChecksumPair cp: sigs) {
+                    byte[] strong = cp.getStrong();
+                    dos.writeInt(cp.getWeak());
+                    dos.writeByte(strong.length);
+                    dos.write(strong);
+                    dos.writeLong(cp.getOffset());
+                    dos.writeInt(cp.getLength());
+                    dos.writeInt(cp.getSequence());
+                }
+            }
+            dos.writeBoolean(false);
+        }
+        finally {
+            dos.close();
+        }
+        storage.delete();
+        if (!tmp.renameTo(storage)) {
+            throw new IOException("Cannot write " + storage.getPath());
+        }
+    }
+
+    private void load() {
+        if (!storage.isFile()) {
+            return;
+        }
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(storage), 1 << 16));
+            try {
+                if (dis.readInt() != MAGIC) {
+                    throw new IOException("Bad header");
+                }
+                while(dis.readBoolean()) {
+                    String path = dis.readUTF();
+                    long size = dis.readLong();
+                    long mtime = dis.readLong();
+                    String fileKey = dis.readUTF();
+                    int n = dis.readInt();
+                    List<ChecksumPair> sigs = new ArrayList<ChecksumPair>(n);
+                    for(int i = 0; i != n; ++i) {
+                        int weak = dis.readInt();
+                        byte[] strong = new byte[dis.readUnsignedByte()];
+                        dis.readFully(strong);
+                        long offset = dis.readLong();
+                        int length = dis.readInt();
+                        int seq = dis.readInt();
+                        sigs.add(new ChecksumPair(weak, strong, offset, length, seq));
+                    }
+                    entries.put(path, new Entry(size, mtime, fileKey, Collections.unmodifiableList(sigs)));
+                }
+            }
+            finally {
+                dis.close();
+            }
+        }
+        catch(IOException e) {
+            System.out.println("Signature index " + storage.getPath() + " is ignored: " + e);
+            entries.clear();
+        }
+    }
+
+    private static class HashEntry {
+
+        final long size;
+        final long mtime;
+        final String fileKey;
+        final String hash;
+
+        HashEntry(long size, long mtime, String fileKey, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+            this.hash = hash;
+        }
+    }
+
+    private static class Entry {
+
+        final long size;
+        final long mtime;
+        final String fileKey;
+        final FutureTask<List<ChecksumPair>> task;
+
+        Entry(long size, long mtime, String fileKey, Callable<List<ChecksumPair>> computation) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+            this.task = new FutureTask<List<ChecksumPair>>(computation);
+        }
+
+        Entry(long size, long mtime, String fileKey, final List<ChecksumPair> sigs) {
+            this(size, mtime, fileKey, new Callable<List<ChecksumPair>>() {
+                @Override
+                public List<ChecksumPair> call() {
+                    return sigs;
+                }
+            });
+            task.run();
+        }
+
+        List<ChecksumPair> get() throws IOException {
+            try {
+                return task.get();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            catch(ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException)e.getCause();
+                }
+                else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)e.getCause();
+                }
+                else {
+                    throw new IOException(e.getCause());
+                }
+            }
+        }
+    }
+}
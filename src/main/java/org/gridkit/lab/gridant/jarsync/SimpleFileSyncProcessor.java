@@ -7,13 +7,21 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.gridkit.lab.gridant.jarsync.jarsync.ChecksumPair;
 import org.gridkit.lab.gridant.jarsync.jarsync.DataBlock;
@@ -21,6 +29,33 @@ import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
 
 class SimpleFileSyncProcessor implements BatchCopyProcessor {
 
+    /** Limit of files per single bulk call */
+    static final int MAX_FILES_PER_CALL = 256;
+
+    /** Limit of source data (by file size) per single bulk call */
+    static final long MAX_BYTES_PER_CALL = 16 << 20;
+
+    /** Files larger than this are patched by streaming, instead of building patch in memory */
+    static final long STREAM_PATCH_SIZE = 16 << 20;
+
+    /** Smaller files are not checked for duplicates */
+    static final long DEDUP_MIN_SIZE = 16 << 10;
+
+    /** Files not larger than this are packed for transfer by default */
+    static final long DEFAULT_PACK_THRESHOLD = 4 << 10;
+
+    /** Default limit of files per pack */
+    static final int DEFAULT_PACK_SIZE = 256;
+
+    /** Number of threads used to scan source tree */
+    static final int SCAN_THREADS = 4;
+
+    /** Smaller new files are not patched from similar files */
+    static final long FUZZY_MIN_SIZE = 16 << 10;
+
+    /** Minimal similarity of file names (0 to 1) for fuzzy basis */
+    static final double FUZZY_MIN_SIMILARITY = 0.5;
+
 	@Override
 	public CopyBatch startBatch(FileSyncParty source) {
 		return new Batch(source);
@@ -47,28 +82,26 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
 
 
         private transient FileSyncParty source;
-		private FileSyncParty remoteSource;
+		private RemoteFileSyncSlave remoteSource;
 		private Set<String> remainder = new TreeSet<String>();
 		private Map<String, Action> actions = new TreeMap<String, Action>();
 		private AntPathMatcher pathMatcher = new AntPathMatcher();
 		private List<String> targetExcludes = new ArrayList<String>(); 
+		private boolean quickCheck;
+		private int threads = 1;
+		private long packThreshold = DEFAULT_PACK_THRESHOLD;
+		private int packSize = DEFAULT_PACK_SIZE;
+		private boolean fuzzyBasis;
 
 		public Batch(FileSyncParty source) {
 			this.source = source;
 			this.remoteSource = new RemoteFileSyncSlave(source);
-			collectTree("");
+			collectTree();
 		}
 		
 		
-		private void collectTree(String path) {
-			for(String f: source.listDirectories(path)) {
-				String child = path + f + "/";
-                remainder.add(child);
-                collectTree(child);
-			}
-			for(String f: source.listFiles(path)) {
-			    remainder.add(path + f);
-			}
+		private void collectTree() {
+		    remainder.addAll(source.scan("", SCAN_THREADS).keySet());
 		}
 
 		@Override
@@ -157,11 +190,49 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
 			actions.keySet().removeAll(paths);
 		}
 		
+		@Override
+		public void quickCheck(boolean enabled) {
+		    quickCheck = enabled;
+		}
+
+		@Override
+		public void threads(int threads) {
+		    if (threads < 1) {
+		        throw new IllegalArgumentException("Thread count should be positive");
+		    }
+		    this.threads = threads;
+		}
+
+		@Override
+		public void packSmallFiles(long threshold, int packSize) {
+		    if (threshold < 0) {
+		        throw new IllegalArgumentException("Pack threshold should not be negative");
+		    }
+		    if (packSize < 1) {
+		        throw new IllegalArgumentException("Pack size should be positive");
+		    }
+		    this.packThreshold = threshold;
+		    this.packSize = packSize;
+		}
+
+		@Override
+		public void fuzzyBasis(boolean enabled) {
+		    fuzzyBasis = enabled;
+		}
+
+		@Override
+		public void bandwidthLimit(long rate) {
+		    if (rate < 0) {
+		        throw new IllegalArgumentException("Bandwidth limit should not be negative");
+		    }
+		    remoteSource.setBandwidthLimit(rate);
+		}
+
 		@Override
         public void prepare(final CopyReporter reporter) throws IOException {
 		    ErrorChecker delegate = new ErrorChecker(reporter);
             for(Action action: actions.values()) {
-                action.prepare(source, reporter);                
+                action.prepare(source, quickCheck, reporter);                
             }
             if (delegate.error) {
                 throw new IOException("Batch prepare has failed");
@@ -203,12 +274,662 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
 				throw new RuntimeException("Target path collision detected");
 			}
 			else {
-				for(Action action: alist) {
-					action.perform(remoteSource, syncTarget, reporter);
-				}
+			    List<CopyAction> files = new ArrayList<CopyAction>();
+			    List<Action> others = new ArrayList<Action>();
+			    for(Action action: alist) {
+			        if (action instanceof CopyAction && !action.getSourcePath().endsWith("/")) {
+			            files.add((CopyAction) action);
+			        }
+			        else {
+			            others.add(action);
+			        }
+			    }
+			    syncFiles(files, others, syncTarget, reporter);
 			}
 		}
 
+		@Override
+		public TransferStats getTransferStats() {
+		    return remoteSource.getTransferStats();
+		}
+
+		/**
+		 * Files are synchronized in few phases, each phase is using
+		 * bulk calls to source instead of per file round trips.
+		 * Within phase, files (or chunks) are processed concurrently.
+		 * <ul>
+		 * <li>target files are checked locally</li>
+		 * <li>target files to be removed, but matching new files, are put aside</li>
+		 * <li>similar target files are chosen as basis for new files (if enabled)</li>
+		 * <li>prunes and directories are processed</li>
+		 * <li>source digests are requested for files which failed quick check</li>
+		 * <li>patches are requested for modified files (entry by entry for archives), large files are patched by streaming</li>
+		 * <li>files put aside are moved to new location</li>
+		 * <li>new files duplicating other target files are identified</li>
+		 * <li>new files are transfered, small files are packed into single stream</li>
+		 * <li>duplicates are linked or copied locally at target</li>
+		 * </ul>
+		 * Reports are forwarded ordered by target path. After each phase, reports
+		 * preceding first unfinished file are forwarded, so report is produced
+		 * while synchronization progresses.
+		 */
+		private void syncFiles(List<CopyAction> files, List<Action> others, final FileSyncParty syncTarget, CopyReporter out) throws IOException {
+		    // files are ordered by target path
+		    final SortedReporter reporter = new SortedReporter(out);
+		    ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads, new WorkerFactory()) : null;
+		    List<String> stashes = new ArrayList<String>();
+		    try {
+		        List<Job> jobs = new ArrayList<Job>();
+		        for(final CopyAction a: files) {
+		            jobs.add(new Job() {
+		                @Override
+		                public void run() throws IOException {
+		                    a.plan(syncTarget, reporter);
+		                }
+		            });
+		        }
+		        runAll(pool, jobs);
+
+		        // files to be moved and bases to be removed are put aside before prune
+		        List<String> removed = listRemoved(others, syncTarget);
+		        findMoves(files, removed, syncTarget, stashes);
+		        if (fuzzyBasis) {
+		            findBases(pool, files, removed, syncTarget, stashes);
+		        }
+
+		        // prunes and directories go first, so they cannot clash with new files
+		        for(Action action: others) {
+		            action.perform(remoteSource, syncTarget, reporter);
+		        }
+		        // prunes may report any path, so nothing is forwarded before this point
+		        reporter.flush(firstPending(files));
+
+		        List<CopyAction> needDigest = new ArrayList<CopyAction>();
+		        for(CopyAction a: files) {
+		            if (a.step == Step.DIGEST) {
+		                needDigest.add(a);
+		            }
+		        }
+		        jobs.clear();
+		        for(final List<CopyAction> chunk: split(needDigest)) {
+		            jobs.add(new Job() {
+		                @Override
+		                public void run() throws IOException {
+		                    List<String> paths = new ArrayList<String>();
+		                    for(CopyAction a: chunk) {
+		                        paths.add(a.sourcePath);
+		                    }
+		                    List<List<ChecksumPair>> digests = remoteSource.readChecksums(paths);
+		                    for(int i = 0; i != chunk.size(); ++i) {
+		                        chunk.get(i).compare(digests.get(i), syncTarget, reporter);
+		                    }
+		                }
+		            });
+		        }
+		        runAll(pool, jobs);
+		        reporter.flush(firstPending(files));
+
+		        List<CopyAction> needPatch = new ArrayList<CopyAction>();
+		        jobs.clear();
+		        for(final CopyAction a: files) {
+		            if (a.step == Step.PATCH) {
+		                if (a.isLarge()) {
+		                    jobs.add(new Job() {
+		                        @Override
+		                        public void run() throws IOException {
+		                            a.streamPatch(remoteSource, syncTarget, reporter);
+		                        }
+		                    });
+		                }
+		                else {
+		                    needPatch.add(a);
+		                }
+		            }
+		        }
+		        for(final List<CopyAction> chunk: split(needPatch)) {
+		            jobs.add(new Job() {
+		                @Override
+		                public void run() throws IOException {
+		                    patchChunk(chunk, syncTarget, reporter);
+		                }
+		            });
+		        }
+		        runAll(pool, jobs);
+		        reporter.flush(firstPending(files));
+
+		        jobs.clear();
+		        for(final CopyAction a: files) {
+		            if (a.step == Step.MOVE) {
+		                jobs.add(new Job() {
+		                    @Override
+		                    public void run() throws IOException {
+		                        a.move(syncTarget, reporter);
+		                    }
+		                });
+		            }
+		        }
+		        runAll(pool, jobs);
+		        reporter.flush(firstPending(files));
+
+		        findDuplicates(files);
+
+		        List<CopyAction> needPack = new ArrayList<CopyAction>();
+		        jobs.clear();
+		        for(final CopyAction a: files) {
+		            if (a.step == Step.COPY) {
+		                if (a.sourceInfo != null && a.sourceInfo.getSize() <= packThreshold) {
+		                    needPack.add(a);
+		                }
+		                else {
+		                    jobs.add(new Job() {
+		                        @Override
+		                        public void run() throws IOException {
+		                            a.copy(remoteSource, syncTarget, reporter);
+		                        }
+		                    });
+		                }
+		            }
+		        }
+		        for(final List<CopyAction> chunk: split(needPack, packSize)) {
+		            jobs.add(new Job() {
+		                @Override
+		                public void run() throws IOException {
+		                    copyPacked(chunk, syncTarget, reporter);
+		                }
+		            });
+		        }
+		        runAll(pool, jobs);
+		        reporter.flush(firstPending(files));
+
+		        jobs.clear();
+		        for(final CopyAction a: files) {
+		            if (a.step == Step.DEDUP) {
+		                jobs.add(new Job() {
+		                    @Override
+		                    public void run() throws IOException {
+		                        a.duplicate(remoteSource, syncTarget, reporter);
+		                    }
+		                });
+		            }
+		        }
+		        runAll(pool, jobs);
+		    }
+		    finally {
+		        if (pool != null) {
+		            pool.shutdown();
+		        }
+		        reporter.flush(null);
+		        // stashes of moved files are gone at this point
+		        for(String stash: stashes) {
+		            try {
+		                if (syncTarget.stat(stash) != null) {
+		                    syncTarget.eraseFile(stash);
+		                }
+		            }
+		            catch(IOException e) {
+		                // ignore
+		            }
+		        }
+		    }
+		}
+
+		/**
+		 * @return target path of first file not synchronized yet, <code>null</code> if all are done
+		 */
+		private String firstPending(List<CopyAction> files) {
+		    for(CopyAction a: files) {
+		        if (a.step != Step.DONE) {
+		            return a.getTargetPath();
+		        }
+		    }
+		    return null;
+		}
+
+		/**
+		 * Archives are patched entry by entry, if possible,
+		 * other files (and archives where it does not work) by rdiff patch.
+		 */
+		private void patchChunk(List<CopyAction> chunk, FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    List<CopyAction> archives = new ArrayList<CopyAction>();
+		    List<CopyAction> plain = new ArrayList<CopyAction>();
+		    for(CopyAction a: chunk) {
+		        if (a.readArchiveIndex(syncTarget)) {
+		            archives.add(a);
+		        }
+		        else {
+		            plain.add(a);
+		        }
+		    }
+		    if (!archives.isEmpty()) {
+		        List<String> paths = new ArrayList<String>();
+		        List<ZipIndex> indexes = new ArrayList<ZipIndex>();
+		        for(CopyAction a: archives) {
+		            paths.add(a.sourcePath);
+		            indexes.add(a.targetIndex);
+		        }
+		        List<List<Delta>> patches = remoteSource.prepareArchivePatches(paths, indexes);
+		        for(int i = 0; i != archives.size(); ++i) {
+		            if (patches.get(i) == null) {
+		                plain.add(archives.get(i));
+		            }
+		            else {
+		                archives.get(i).patch(patches.get(i), syncTarget, reporter);
+		            }
+		        }
+		    }
+		    if (!plain.isEmpty()) {
+		        List<String> paths = new ArrayList<String>();
+		        List<List<ChecksumPair>> digests = new ArrayList<List<ChecksumPair>>();
+		        for(CopyAction a: plain) {
+		            paths.add(a.sourcePath);
+		            digests.add(a.targetDigest);
+		        }
+		        List<List<Delta>> patches = remoteSource.preparePatches(paths, digests);
+		        for(int i = 0; i != plain.size(); ++i) {
+		            plain.get(i).patch(patches.get(i), syncTarget, reporter);
+		        }
+		    }
+		}
+
+		/**
+		 * @return target files, which would be removed by prunes
+		 */
+		private List<String> listRemoved(List<Action> others, FileSyncParty syncTarget) {
+		    List<String> removed = new ArrayList<String>();
+		    for(Action a: others) {
+		        if (a instanceof TargetClean) {
+		            TargetClean tc = (TargetClean) a;
+		            if (tc.isDir) {
+		                for(Map.Entry<String, FileInfo> e: syncTarget.scan(tc.targetPath, threads).entrySet()) {
+		                    if (e.getValue().isFile()) {
+		                        removed.add(e.getKey());
+		                    }
+		                }
+		            }
+		            else {
+		                removed.add(tc.targetPath);
+		            }
+		        }
+		    }
+		    return removed;
+		}
+
+		/**
+		 * Renames target file to free service name in target root.
+		 */
+		private String stash(FileSyncParty syncTarget, String path, List<String> stashes) throws IOException {
+		    String stash;
+		    int n = stashes.size();
+		    do {
+		        stash = SimpleSyncSlave.SERVICE_PREFIX + "-stash-" + (n++);
+		    }
+		    while(syncTarget.stat(stash) != null);
+		    syncTarget.moveFile(path, stash);
+		    stashes.add(stash);
+		    return stash;
+		}
+
+		/**
+		 * Matches new files against target files to be removed, using whole
+		 * file hashes. Matched target files are moved aside (as service files),
+		 * so they survive prune and would be moved to new location instead of
+		 * transfer.
+		 */
+		private void findMoves(List<CopyAction> files, List<String> removed, FileSyncParty syncTarget, List<String> stashes) throws IOException {
+		    Set<Long> sizes = new HashSet<Long>();
+		    for(CopyAction a: files) {
+		        if (a.step == Step.COPY && a.sourceInfo != null && a.sourceInfo.getSize() > 0) {
+		            sizes.add(a.sourceInfo.getSize());
+		        }
+		    }
+		    if (sizes.isEmpty()) {
+		        return;
+		    }
+		    List<String> candidates = new ArrayList<String>();
+		    Set<Long> candidateSizes = new HashSet<Long>();
+		    for(String path: removed) {
+		        FileInfo info = syncTarget.stat(path);
+		        if (info != null && info.isFile() && sizes.contains(info.getSize())) {
+		            candidates.add(path);
+		            candidateSizes.add(info.getSize());
+		        }
+		    }
+		    if (candidates.isEmpty()) {
+		        return;
+		    }
+		    Map<String, List<String>> removedByHash = new HashMap<String, List<String>>();
+		    List<String> targetHashes = syncTarget.readHashes(candidates);
+		    for(int i = 0; i != candidates.size(); ++i) {
+		        String hash = targetHashes.get(i);
+		        if (hash != null) {
+		            if (!removedByHash.containsKey(hash)) {
+		                removedByHash.put(hash, new ArrayList<String>());
+		            }
+		            removedByHash.get(hash).add(candidates.get(i));
+		        }
+		    }
+		    List<CopyAction> sources = new ArrayList<CopyAction>();
+		    for(CopyAction a: files) {
+		        if (a.step == Step.COPY && a.sourceInfo != null && candidateSizes.contains(a.sourceInfo.getSize())) {
+		            sources.add(a);
+		        }
+		    }
+		    for(List<CopyAction> chunk: split(sources)) {
+		        List<String> paths = new ArrayList<String>();
+		        for(CopyAction a: chunk) {
+		            paths.add(a.sourcePath);
+		        }
+		        List<String> hashes = remoteSource.readHashes(paths);
+		        for(int i = 0; i != chunk.size(); ++i) {
+		            chunk.get(i).sourceHash = hashes.get(i);
+		        }
+		    }
+		    for(CopyAction a: sources) {
+		        List<String> matched = a.sourceHash == null ? null : removedByHash.get(a.sourceHash);
+		        if (matched != null && !matched.isEmpty()) {
+		            String from = matched.remove(0);
+		            try {
+		                a.stash = stash(syncTarget, from, stashes);
+		                a.step = Step.MOVE;
+		                removed.remove(from);
+		            }
+		            catch(IOException e) {
+		                // file would be transfered
+		            }
+		        }
+		    }
+		}
+
+		/**
+		 * For new files, chooses most similar file in same target directory as a patch basis.
+		 * Only files not managed by batch are considered, so basis cannot be modified concurrently.
+		 * Bases to be removed by prune are put aside.
+		 */
+		private void findBases(ExecutorService pool, List<CopyAction> files, List<String> removed, final FileSyncParty syncTarget, List<String> stashes) throws IOException {
+		    Set<String> managed = new HashSet<String>();
+		    for(CopyAction a: files) {
+		        managed.add(a.targetPath);
+		    }
+		    Map<String, String> stashed = new HashMap<String, String>();
+		    Map<String, List<String>> dirs = new HashMap<String, List<String>>();
+		    List<Job> jobs = new ArrayList<Job>();
+		    for(final CopyAction a: files) {
+		        if (a.step != Step.COPY || a.targetInfo != null || a.sourceInfo == null || a.sourceInfo.getSize() < FUZZY_MIN_SIZE) {
+		            continue;
+		        }
+		        int n = a.targetPath.lastIndexOf('/');
+		        String dir = n < 0 ? "" : a.targetPath.substring(0, n + 1);
+		        String name = a.targetPath.substring(n + 1);
+		        List<String> siblings = dirs.get(dir);
+		        if (siblings == null) {
+		            siblings = syncTarget.listFiles(dir);
+		            dirs.put(dir, siblings);
+		        }
+		        String basis = null;
+		        double bestScore = 0;
+		        for(String sibling: siblings) {
+		            String path = dir + sibling;
+		            if (managed.contains(path)) {
+		                continue;
+		            }
+		            double similarity = nameSimilarity(name, sibling);
+		            if (similarity < FUZZY_MIN_SIMILARITY) {
+		                continue;
+		            }
+		            FileInfo info = syncTarget.stat(path);
+		            if (info == null || !info.isFile() || info.getSize() == 0) {
+		                continue;
+		            }
+		            long min = Math.min(info.getSize(), a.sourceInfo.getSize());
+		            long max = Math.max(info.getSize(), a.sourceInfo.getSize());
+		            double score = similarity + (double)min / max;
+		            if (score > bestScore) {
+		                basis = path;
+		                bestScore = score;
+		            }
+		        }
+		        if (basis == null) {
+		            continue;
+		        }
+		        if (removed.contains(basis)) {
+		            if (!stashed.containsKey(basis)) {
+		                try {
+		                    stashed.put(basis, stash(syncTarget, basis, stashes));
+		                }
+		                catch(IOException e) {
+		                    continue;
+		                }
+		            }
+		            basis = stashed.get(basis);
+		        }
+		        final String basisPath = basis;
+		        jobs.add(new Job() {
+		            @Override
+		            public void run() throws IOException {
+		                a.useBasis(basisPath, syncTarget);
+		            }
+		        });
+		    }
+		    runAll(pool, jobs);
+		}
+
+		/**
+		 * @return portion of name covered by common prefix and suffix,
+		 *         0 if extensions are different
+		 */
+		static double nameSimilarity(String a, String b) {
+		    String extA = a.lastIndexOf('.') < 0 ? "" : a.substring(a.lastIndexOf('.'));
+		    String extB = b.lastIndexOf('.') < 0 ? "" : b.substring(b.lastIndexOf('.'));
+		    if (!extA.equalsIgnoreCase(extB)) {
+		        return 0;
+		    }
+		    int len = Math.min(a.length(), b.length());
+		    int prefix = 0;
+		    while(prefix < len && a.charAt(prefix) == b.charAt(prefix)) {
+		        ++prefix;
+		    }
+		    int suffix = 0;
+		    while(suffix < len - prefix && a.charAt(a.length() - 1 - suffix) == b.charAt(b.length() - 1 - suffix)) {
+		        ++suffix;
+		    }
+		    return (double)(prefix + suffix) / Math.max(a.length(), b.length());
+		}
+
+		/**
+		 * Finds new files, which have same content as some file already
+		 * present at target (or as other new file). Such files are not
+		 * transfered, but duplicated at target.
+		 * <p>
+		 * Whole file hashes are calculated at source, target file is known
+		 * to have same content as its source once it is synchronized.
+		 * Retained target files are not considered, as they could be
+		 * modified outside of synchronization.
+		 */
+		private void findDuplicates(List<CopyAction> files) throws IOException {
+		    Set<Long> sizes = new HashSet<Long>();
+		    for(CopyAction a: files) {
+		        if (a.step == Step.COPY && a.sourceInfo != null && a.sourceInfo.getSize() >= DEDUP_MIN_SIZE) {
+		            sizes.add(a.sourceInfo.getSize());
+		        }
+		    }
+		    if (sizes.isEmpty()) {
+		        return;
+		    }
+		    List<CopyAction> candidates = new ArrayList<CopyAction>();
+		    Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		    for(CopyAction a: files) {
+		        if ((a.step == Step.COPY || a.step == Step.DONE) && a.sourceInfo != null && sizes.contains(a.sourceInfo.getSize())) {
+		            candidates.add(a);
+		            Integer n = counts.get(a.sourceInfo.getSize());
+		            counts.put(a.sourceInfo.getSize(), n == null ? 1 : n + 1);
+		        }
+		    }
+		    // files with unique size cannot have duplicates
+		    for(Iterator<CopyAction> it = candidates.iterator(); it.hasNext();) {
+		        if (counts.get(it.next().sourceInfo.getSize()) < 2) {
+		            it.remove();
+		        }
+		    }
+		    // some hashes may be already known from move detection
+		    List<CopyAction> unhashed = new ArrayList<CopyAction>();
+		    for(CopyAction a: candidates) {
+		        if (a.sourceHash == null) {
+		            unhashed.add(a);
+		        }
+		    }
+		    for(List<CopyAction> chunk: split(unhashed)) {
+		        List<String> paths = new ArrayList<String>();
+		        for(CopyAction a: chunk) {
+		            paths.add(a.sourcePath);
+		        }
+		        List<String> hashes = remoteSource.readHashes(paths);
+		        for(int i = 0; i != chunk.size(); ++i) {
+		            chunk.get(i).sourceHash = hashes.get(i);
+		        }
+		    }
+		    Map<String, CopyAction> origins = new HashMap<String, CopyAction>();
+		    // synchronized files are available right away, so they are preferred
+		    for(CopyAction a: candidates) {
+		        if (a.step == Step.DONE && a.sourceHash != null && !origins.containsKey(a.sourceHash)) {
+		            origins.put(a.sourceHash, a);
+		        }
+		    }
+		    for(CopyAction a: candidates) {
+		        if (a.step == Step.COPY && a.sourceHash != null) {
+		            CopyAction origin = origins.get(a.sourceHash);
+		            if (origin == null) {
+		                origins.put(a.sourceHash, a);
+		            }
+		            else {
+		                a.origin = origin;
+		                a.step = Step.DEDUP;
+		            }
+		        }
+		    }
+		}
+
+		/**
+		 * Transfers new files as single framed stream, files are
+		 * written to target as stream arrives.
+		 */
+		private void copyPacked(List<CopyAction> chunk, FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    List<String> paths = new ArrayList<String>();
+		    List<String> targets = new ArrayList<String>();
+		    for(CopyAction a: chunk) {
+		        paths.add(a.sourcePath);
+		        targets.add(a.targetPath);
+		    }
+		    FilePack.Unpacker unpacker = new FilePack.Unpacker(targets, syncTarget);
+		    IOException error = null;
+		    try {
+		        remoteSource.streamFiles(paths, unpacker);
+		    }
+		    catch(IOException e) {
+		        error = e;
+		    }
+		    finally {
+		        unpacker.close();
+		    }
+		    for(int i = 0; i != chunk.size(); ++i) {
+		        CopyAction a = chunk.get(i);
+		        if (unpacker.isReceived(i)) {
+		            try {
+		                a.copied(syncTarget, reporter);
+		            }
+		            catch(IOException e) {
+		                if (error == null) {
+		                    error = e;
+		                }
+		            }
+		        }
+		        else {
+		            IOException e = error != null ? error : new IOException("Cannot read source file: " + a.sourcePath);
+		            a.error(e, reporter);
+		            if (error == null) {
+		                error = e;
+		            }
+		        }
+		    }
+		    if (error != null) {
+		        throw error;
+		    }
+		}
+
+		/**
+		 * Runs jobs using pool (or in current thread if pool is <code>null</code>).
+		 * All jobs are completed before first error is rethrown.
+		 */
+		private void runAll(ExecutorService pool, List<Job> jobs) throws IOException {
+		    if (pool == null) {
+		        for(Job job: jobs) {
+		            job.run();
+		        }
+		        return;
+		    }
+		    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		    for(final Job job: jobs) {
+		        futures.add(pool.submit(new Callable<Void>() {
+		            @Override
+		            public Void call() throws Exception {
+		                job.run();
+		                return null;
+		            }
+		        }));
+		    }
+		    Throwable error = null;
+		    for(Future<Void> f: futures) {
+		        try {
+		            f.get();
+		        } catch (InterruptedException e) {
+		            Thread.currentThread().interrupt();
+		            throw new IOException("Interrupted");
+		        } catch (ExecutionException e) {
+		            if (error == null) {
+		                error = e.getCause();
+		            }
+		        }
+		    }
+		    if (error instanceof IOException) {
+		        throw (IOException) error;
+		    }
+		    else if (error instanceof RuntimeException) {
+		        throw (RuntimeException) error;
+		    }
+		    else if (error instanceof Error) {
+		        throw (Error) error;
+		    }
+		    else if (error != null) {
+		        throw new IOException(error);
+		    }
+		}
+
+		/**
+		 * Splits actions into chunks limited by file count and data size.
+		 */
+		private List<List<CopyAction>> split(List<CopyAction> actions) {
+		    return split(actions, MAX_FILES_PER_CALL);
+		}
+
+		private List<List<CopyAction>> split(List<CopyAction> actions, int maxFiles) {
+		    List<List<CopyAction>> result = new ArrayList<List<CopyAction>>();
+		    List<CopyAction> chunk = new ArrayList<CopyAction>();
+		    long size = 0;
+		    for(CopyAction a: actions) {
+		        long fsize = a.sourceInfo == null ? 0 : a.sourceInfo.getSize();
+		        if (!chunk.isEmpty() && (chunk.size() >= maxFiles || size + fsize > MAX_BYTES_PER_CALL)) {
+		            result.add(chunk);
+		            chunk = new ArrayList<CopyAction>();
+		            size = 0;
+		        }
+		        chunk.add(a);
+		        size += fsize;
+		    }
+		    if (!chunk.isEmpty()) {
+		        result.add(chunk);
+		    }
+		    return result;
+		}
+
 		private void eraseTarget(FileSyncParty syncTarget) {
 		    SortedSet<String> retained = new TreeSet<String>();
 		    SortedSet<String> deleted = new TreeSet<String>();
@@ -216,7 +937,7 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
 		    for(Action a: actions.values()) {
 		        created.add(a.getTargetPath());
 		    }
-            eraseTarget(retained, deleted, created, syncTarget, null);
+            eraseTarget(retained, deleted, created, syncTarget);
             while(!deleted.isEmpty()) {
                 String del = deleted.first();
                 deleted.remove(del);
@@ -241,33 +962,39 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
 
 
 
-        private void eraseTarget(SortedSet<String> retained, SortedSet<String> deleted, SortedSet<String> created, FileSyncParty syncTarget, String path) {
-            fileLoop:
-            for(String file : syncTarget.listFiles(path)) {
-                String fpath = path == null ? file : path + "/" + file;
-                if (created.contains(fpath)) {
-                    continue;
+        private void eraseTarget(SortedSet<String> retained, SortedSet<String> deleted, SortedSet<String> created, FileSyncParty syncTarget) {
+            // target tree is scanned at once, parent directory precedes its content in sorted order
+            List<String> retainedDirs = new ArrayList<String>();
+            pathLoop:
+            for(String fpath : syncTarget.scan("", threads).keySet()) {
+                for(String dir: retainedDirs) {
+                    if (fpath.startsWith(dir)) {
+                        continue pathLoop;
+                    }
                 }
-                for(String exclude: targetExcludes) {
-                    if (pathMatcher.match(exclude, fpath)) {
-                        retained.add(fpath);
-                        continue fileLoop;
+                if (fpath.endsWith("/")) {
+                    for(String exclude: targetExcludes) {
+                        if (exclude.equals(fpath + "**")) {
+                            retained.add(fpath);
+                            retainedDirs.add(fpath);
+                            continue pathLoop;
+                        }
                     }
+                    deleted.add(fpath);
                 }
-                deleted.add(fpath);
-            }            
-            dirLoop:
-            for(String file : syncTarget.listDirectories(path)) {
-                String fpath = path == null ? file : path + "/" + file;
-                for(String exclude: targetExcludes) {
-                    if (exclude.equals(fpath + "/**")) {
-                        retained.add(fpath + "/");
-                        continue dirLoop;
+                else {
+                    if (created.contains(fpath)) {
+                        continue;
+                    }
+                    for(String exclude: targetExcludes) {
+                        if (pathMatcher.match(exclude, fpath)) {
+                            retained.add(fpath);
+                            continue pathLoop;
+                        }
                     }
+                    deleted.add(fpath);
                 }
-                eraseTarget(retained, deleted, created, syncTarget, fpath);
-                deleted.add(fpath + "/");
-            }            
+            }
         }
 
 
@@ -314,7 +1041,7 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
 	    
 	    String getTargetPath();
 
-        void prepare(FileSyncParty syncSource, CopyReporter reporter);
+        void prepare(FileSyncParty syncSource, boolean quickCheck, CopyReporter reporter);
 
         void perform(FileSyncParty syncSource, FileSyncParty syncTarget, CopyReporter reporter) throws IOException;
 	    
@@ -346,7 +1073,7 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
         }
 
 	    @Override
-        public void prepare(FileSyncParty syncSource, CopyReporter reporter) {
+        public void prepare(FileSyncParty syncSource, boolean quickCheck, CopyReporter reporter) {
             // do nothing
         }
 
@@ -369,7 +1096,18 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
         
         private String sourcePath;
 		private String targetPath;
+		private FileInfo sourceInfo;
+		private boolean quickCheck;
 		private List<ChecksumPair> digest;
+
+		private transient Step step;
+		private transient FileInfo targetInfo;
+		private transient List<ChecksumPair> targetDigest;
+		private transient String sourceHash;
+		private transient String stash;
+		private transient String basisPath;
+		private transient ZipIndex targetIndex;
+		private transient CopyAction origin;
 		
 		public CopyAction(String path) {
 			this.sourcePath = path;
@@ -390,10 +1128,15 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
 		}
 		
 		@Override
-		public void prepare(FileSyncParty syncSource, CopyReporter reporter) {
+		public void prepare(FileSyncParty syncSource, boolean quickCheck, CopyReporter reporter) {
 		    if (!sourcePath.endsWith("/")) {
 		        try {
-                    this.digest = syncSource.readChecksums(sourcePath);
+		            this.quickCheck = quickCheck;
+		            this.sourceInfo = syncSource.stat(sourcePath);
+		            if (!quickCheck) {
+		                // with quick check, digest is requested only for modified files
+		                this.digest = syncSource.readChecksums(sourcePath);
+		            }
                 } catch (IOException e) {
                     reporter.report(sourcePath, "", "ERROR: " + e);
                 }
@@ -402,45 +1145,298 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
 		
 		@Override
 		public void perform(FileSyncParty syncSource, FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
-			try {
-				if (sourcePath.endsWith("/")) {
-			        reporter.report(sourcePath, targetPath, "<dir>");
-				}
-				else {
-				    List<ChecksumPair> digest = syncTarget.readChecksums(targetPath);
-				    if (digest.isEmpty()) {
-    					OutputStream os = syncTarget.openFileForWrite(targetPath);
-    					syncSource.streamFile(sourcePath, os);
-    					os.close();
-    					reporter.report(sourcePath, targetPath, "<copy>");
-				    }
-				    else {
-				        if (this.digest.equals(digest)) {
-				            // files are identical
-				            reporter.report(sourcePath, targetPath, String.format("<match>"));
-				        }
-				        else {
-    				        List<Delta> deltas = syncSource.preparePatch(sourcePath, digest);
-    				        long dataSize = dataSize(deltas);
-    				        long fileSize = fileLength(this.digest);
-    				        boolean trim = isOffsetOnly(deltas);
-    				        syncTarget.applyPatch(targetPath, deltas);
-    				        if (trim) {
-    				            reporter.report(sourcePath, targetPath, String.format("<shuffle>"));
-    				        }
-    				        else {
-    				            reporter.report(sourcePath, targetPath, String.format("<rewrite %02.0f%%>", 100f * dataSize / fileSize));
-    				        }
-				        }
-				    }
-				}
-			} catch (RuntimeException e) {
-				reporter.report(sourcePath, targetPath, "Error: " + e.toString());
-				throw e;
-			} catch (IOException e) {
-				reporter.report(sourcePath, targetPath, "Error: " + e.toString());
-				throw e;
+			if (sourcePath.endsWith("/")) {
+			    reporter.report(sourcePath, targetPath, "<dir>");
 			}
+			else {
+			    plan(syncTarget, reporter);
+			    if (step == Step.DIGEST) {
+			        List<ChecksumPair> sourceDigest;
+			        try {
+			            sourceDigest = syncSource.readChecksums(sourcePath);
+			        }
+			        catch(IOException e) {
+			            throw error(e, reporter);
+			        }
+			        compare(sourceDigest, syncTarget, reporter);
+			    }
+			    if (step == Step.PATCH && isLarge()) {
+			        streamPatch(syncSource, syncTarget, reporter);
+			    }
+			    else if (step == Step.PATCH) {
+			        List<Delta> deltas;
+			        try {
+			            deltas = syncSource.preparePatch(sourcePath, targetDigest);
+			        }
+			        catch(IOException e) {
+			            throw error(e, reporter);
+			        }
+			        patch(deltas, syncTarget, reporter);
+			    }
+			    else if (step == Step.COPY) {
+			        copy(syncSource, syncTarget, reporter);
+			    }
+			}
+		}
+
+		/**
+		 * Examines target file, identifies next step of synchronization.
+		 */
+		void plan(FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    try {
+		        targetInfo = syncTarget.stat(targetPath);
+		        if (quickCheck && sourceInfo != null && sourceInfo.isSameFile(targetInfo)) {
+		            step = Step.DONE;
+		            reporter.report(sourcePath, targetPath, String.format("<match>"));
+		            return;
+		        }
+		        targetDigest = syncTarget.readChecksums(targetPath);
+		        if (targetDigest.isEmpty()) {
+		            step = Step.COPY;
+		        }
+		        else if (digest == null) {
+		            step = Step.DIGEST;
+		        }
+		        else {
+		            compare(digest, syncTarget, reporter);
+		        }
+		    }
+		    catch(IOException e) {
+		        throw error(e, reporter);
+		    }
+		    catch(RuntimeException e) {
+		        throw error(e, reporter);
+		    }
+		}
+
+		/**
+		 * Uses other target file as a basis for patch, target file itself is missing.
+		 */
+		void useBasis(String path, FileSyncParty syncTarget) throws IOException {
+		    List<ChecksumPair> basisDigest = syncTarget.readChecksums(path);
+		    if (basisDigest.isEmpty()) {
+		        return;
+		    }
+		    basisPath = path;
+		    targetDigest = basisDigest;
+		    step = digest == null ? Step.DIGEST : Step.PATCH;
+		}
+
+		/**
+		 * Reads entry table of target archive, which is required for archive patch.
+		 * @return <code>false</code> if file is not an archive, rdiff patch should be used then
+		 */
+		boolean readArchiveIndex(FileSyncParty syncTarget) {
+		    if (!ZipIndex.isArchiveName(sourcePath)) {
+		        return false;
+		    }
+		    try {
+		        targetIndex = syncTarget.readArchiveIndex(basis());
+		    }
+		    catch(IOException e) {
+		        // rdiff patch would report the problem
+		        targetIndex = null;
+		    }
+		    return targetIndex != null;
+		}
+
+		private String basis() {
+		    return basisPath == null ? targetPath : basisPath;
+		}
+
+		void compare(List<ChecksumPair> sourceDigest, FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    try {
+		        digest = sourceDigest;
+		        if (basisPath == null && sourceDigest.equals(targetDigest)) {
+		            // files are identical
+		            step = Step.DONE;
+		            preserveTime(syncTarget, targetInfo);
+		            reporter.report(sourcePath, targetPath, String.format("<match>"));
+		        }
+		        else {
+		            step = Step.PATCH;
+		        }
+		    }
+		    catch(IOException e) {
+		        throw error(e, reporter);
+		    }
+		    catch(RuntimeException e) {
+		        throw error(e, reporter);
+		    }
+		}
+
+		void patch(List<Delta> deltas, FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    try {
+		        long dataSize = dataSize(deltas);
+		        long fileSize = fileLength(digest);
+		        boolean trim = isOffsetOnly(deltas);
+		        syncTarget.applyPatch(targetPath, basis(), deltas);
+		        preserveTime(syncTarget, null);
+		        step = Step.DONE;
+		        if (trim) {
+		            reporter.report(sourcePath, targetPath, String.format("<shuffle>"));
+		        }
+		        else {
+		            reporter.report(sourcePath, targetPath, String.format("<rewrite %02.0f%%>", 100f * dataSize / fileSize));
+		        }
+		    }
+		    catch(IOException e) {
+		        throw error(e, reporter);
+		    }
+		    catch(RuntimeException e) {
+		        throw error(e, reporter);
+		    }
+		}
+
+		/**
+		 * Patch of large file is applied as it is calculated, without holding it in memory.
+		 */
+		void streamPatch(FileSyncParty syncSource, FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    try {
+		        LiteralCountingStream os = new LiteralCountingStream(syncTarget.openPatchForWrite(targetPath, basis()));
+		        boolean complete = false;
+		        try {
+		            if (!readArchiveIndex(syncTarget) || !syncSource.streamArchivePatch(sourcePath, targetIndex, os)) {
+		                // nothing was written, so same stream is used for rdiff patch
+		                syncSource.streamPatch(sourcePath, targetDigest, os);
+		            }
+		            complete = true;
+		        }
+		        finally {
+		            if (complete) {
+		                os.close();
+		            }
+		            else {
+		                try {
+		                    os.close();
+		                }
+		                catch(IOException e) {
+		                    // incomplete patch is discarded
+		                }
+		            }
+		        }
+		        preserveTime(syncTarget, null);
+		        step = Step.DONE;
+		        long dataSize = os.getLiteralBytes();
+		        if (dataSize == 0) {
+		            reporter.report(sourcePath, targetPath, String.format("<shuffle>"));
+		        }
+		        else {
+		            reporter.report(sourcePath, targetPath, String.format("<rewrite %02.0f%%>", 100f * dataSize / fileLength(digest)));
+		        }
+		    }
+		    catch(IOException e) {
+		        throw error(e, reporter);
+		    }
+		    catch(RuntimeException e) {
+		        throw error(e, reporter);
+		    }
+		}
+
+		/**
+		 * Moves identical file, which was put aside, to target path.
+		 * If move fails, file would be transfered.
+		 */
+		void move(FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    try {
+		        syncTarget.moveFile(stash, targetPath);
+		        stash = null;
+		    }
+		    catch(IOException e) {
+		        step = Step.COPY;
+		        return;
+		    }
+		    try {
+		        preserveTime(syncTarget, syncTarget.stat(targetPath));
+		        step = Step.DONE;
+		        reporter.report(sourcePath, targetPath, "<move>");
+		    }
+		    catch(IOException e) {
+		        throw error(e, reporter);
+		    }
+		    catch(RuntimeException e) {
+		        throw error(e, reporter);
+		    }
+		}
+
+		/**
+		 * Creates file from identical file at target. If origin was
+		 * not synchronized, falls back to normal copy.
+		 */
+		void duplicate(FileSyncParty syncSource, FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    if (origin.step != Step.DONE) {
+		        copy(syncSource, syncTarget, reporter);
+		        return;
+		    }
+		    try {
+		        // linked files share modification time, so link is used only if it is same at source
+		        boolean sameTime = sourceInfo.getLastModified() / 1000 == origin.sourceInfo.getLastModified() / 1000;
+		        if (!syncTarget.duplicateFile(origin.targetPath, targetPath, sameTime)) {
+		            preserveTime(syncTarget, syncTarget.stat(targetPath));
+		        }
+		        // time of link is not touched, it would change time of origin as well
+		        step = Step.DONE;
+		        reporter.report(sourcePath, targetPath, "<dedup>");
+		    }
+		    catch(IOException e) {
+		        throw error(e, reporter);
+		    }
+		    catch(RuntimeException e) {
+		        throw error(e, reporter);
+		    }
+		}
+
+		boolean isLarge() {
+		    return sourceInfo != null && sourceInfo.getSize() > STREAM_PATCH_SIZE;
+		}
+
+		void copy(FileSyncParty syncSource, FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    try {
+		        OutputStream os = syncTarget.openFileForWrite(targetPath);
+		        syncSource.streamFile(sourcePath, os);
+		        os.close();
+		    }
+		    catch(IOException e) {
+		        throw error(e, reporter);
+		    }
+		    catch(RuntimeException e) {
+		        throw error(e, reporter);
+		    }
+		    copied(syncTarget, reporter);
+		}
+
+		/**
+		 * Completes action, once file content was written to target.
+		 */
+		void copied(FileSyncParty syncTarget, CopyReporter reporter) throws IOException {
+		    try {
+		        preserveTime(syncTarget, null);
+		        step = Step.DONE;
+		        reporter.report(sourcePath, targetPath, "<copy>");
+		    }
+		    catch(IOException e) {
+		        throw error(e, reporter);
+		    }
+		    catch(RuntimeException e) {
+		        throw error(e, reporter);
+		    }
+		}
+
+		<E extends Exception> E error(E e, CopyReporter reporter) {
+		    reporter.report(sourcePath, targetPath, "Error: " + e.toString());
+		    return e;
+		}
+
+		/**
+		 * Copies source modification time to target, so quick check
+		 * would work on next synchronization.
+		 */
+		private void preserveTime(FileSyncParty syncTarget, FileInfo targetInfo) throws IOException {
+		    if (sourceInfo != null) {
+		        if (targetInfo == null || targetInfo.getLastModified() != sourceInfo.getLastModified()) {
+		            syncTarget.setLastModified(targetPath, sourceInfo.getLastModified());
+		        }
+		    }
 		}
 
         private boolean isOffsetOnly(List<Delta> deltas) {
@@ -474,6 +1470,74 @@ class SimpleFileSyncProcessor implements BatchCopyProcessor {
 		}        
 	}	
 	
+	private static interface Job {
+
+	    public void run() throws IOException;
+
+	}
+
+	private static class WorkerFactory implements ThreadFactory {
+
+	    private int counter;
+
+	    @Override
+	    public synchronized Thread newThread(Runnable r) {
+	        Thread t = new Thread(r);
+	        t.setName("jarsync-worker-" + (counter++));
+	        t.setDaemon(true);
+	        return t;
+	    }
+	}
+
+	private static enum Step {
+	    DIGEST,
+	    PATCH,
+	    MOVE,
+	    COPY,
+	    DEDUP,
+	    DONE
+	}
+
+	/**
+	 * Buffers reports and forwards them ordered by target path,
+	 * so report is independent of execution order.
+	 * Reports are forwarded once preceding paths are complete.
+	 */
+	private static class SortedReporter implements CopyReporter {
+
+	    private final CopyReporter delegate;
+	    private final List<String[]> reports = new ArrayList<String[]>();
+
+	    public SortedReporter(CopyReporter delegate) {
+	        this.delegate = delegate;
+	    }
+
+	    @Override
+	    public synchronized void report(String source, String destination, String remark) {
+	        reports.add(new String[]{source, destination, remark});
+	    }
+
+	    /**
+	     * Forwards reports for paths before <code>bound</code>.
+	     * @param bound first incomplete path, <code>null</code> to forward all reports
+	     */
+	    public synchronized void flush(String bound) {
+	        // sort is stable, so several reports for same path keep their order
+	        Collections.sort(reports, new Comparator<String[]>() {
+	            @Override
+	            public int compare(String[] o1, String[] o2) {
+	                return o1[1].compareTo(o2[1]);
+	            }
+	        });
+	        int n = 0;
+	        while(n < reports.size() && (bound == null || reports.get(n)[1].compareTo(bound) < 0)) {
+	            String[] r = reports.get(n++);
+	            delegate.report(r[0], r[1], r[2]);
+	        }
+	        reports.subList(0, n).clear();
+	    }
+	}
+
 	static long fileLength(List<ChecksumPair> digest) {
 	    if (digest.isEmpty()) {
 	        return 0;
@@ -1,14 +1,32 @@
 package org.gridkit.lab.gridant.jarsync;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.gridkit.lab.gridant.jarsync.jarsync.ChecksumPair;
 import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
@@ -16,8 +34,57 @@ import org.gridkit.lab.gridant.jarsync.jarsync.Rdiff;
 
 class SimpleSyncSlave implements FileSyncParty {
 
+    /** Name prefix of service files (temporary files, signature index), such files are not synchronized */
+    static final String SERVICE_PREFIX = ".jarsync";
+
+    static final String INDEX_FILE = SERVICE_PREFIX + "-index";
+
+    private static final Method TO_PATH;
+    private static final Method CREATE_LINK;
+
+    /** Upper bound of scan threads, shared by all concurrent scans in JVM */
+    static final int MAX_SCAN_THREADS = 8;
+
+    private static final ExecutorService SCAN_POOL = newScanPool();
+
+    static {
+        Method toPath = null;
+        Method createLink = null;
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> filesClass = Class.forName("java.nio.file.Files");
+            toPath = File.class.getMethod("toPath");
+            createLink = filesClass.getMethod("createLink", pathClass, pathClass);
+        }
+        catch(Exception e) {
+            // Java 6
+            toPath = null;
+            createLink = null;
+        }
+        TO_PATH = toPath;
+        CREATE_LINK = createLink;
+    }
+
+    private static ExecutorService newScanPool() {
+        final AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_SCAN_THREADS, MAX_SCAN_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("jarsync-scan-" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // idle pool holds no threads
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     private Rdiff rdiff;
     private File basePath;
+    private SignatureIndex signatureIndex;
+    private DeltaCache deltaCache;
     
     public SimpleSyncSlave(String path) {
         this.basePath = new File(path);
@@ -30,6 +97,23 @@ class SimpleSyncSlave implements FileSyncParty {
         this.basePath = basePath;
         this.rdiff = new Rdiff(); 
     }
+
+    /**
+     * @param signatureIndex shared index used to avoid rehashing of unchanged files
+     */
+    public SimpleSyncSlave(File basePath, SignatureIndex signatureIndex) {
+        this(basePath);
+        this.signatureIndex = signatureIndex;
+    }
+
+    /**
+     * @param signatureIndex shared index used to avoid rehashing of unchanged files
+     * @param deltaCache shared cache of patches, used then same patch is requested by many nodes
+     */
+    public SimpleSyncSlave(File basePath, SignatureIndex signatureIndex, DeltaCache deltaCache) {
+        this(basePath, signatureIndex);
+        this.deltaCache = deltaCache;
+    }
     
     protected File resolve(String path) {
         if (path == null || path.equals(".") || path.length() == 0) {
@@ -76,7 +160,7 @@ class SimpleSyncSlave implements FileSyncParty {
         File[] files = base.listFiles();
         if (files != null) {
             for(File file: files) {
-                if (file.isFile()) {
+                if (file.isFile() && !file.getName().startsWith(SERVICE_PREFIX)) {
                     list.add(file.getName());
                 }
             }
@@ -85,12 +169,132 @@ class SimpleSyncSlave implements FileSyncParty {
         return list;
     }
 
+    /**
+     * Each directory is listed once by {@link File#listFiles()}. Attributes
+     * of entry are read by single call on Java 7+ (see {@link FileInfo#stat(File)}),
+     * on Java 6 java.io makes separate call per attribute.
+     * <code>Files.walkFileTree()</code> is not used, it walks tree by single thread,
+     * while here directories are scanned concurrently (at most <code>threads</code>
+     * per scan, in pool shared by all scans), results are merged by calling thread.
+     */
+    @Override
+    public SortedMap<String, FileInfo> scan(String path, int threads) {
+        String prefix = path.length() == 0 || path.endsWith("/") ? path : path + "/";
+        SortedMap<String, FileInfo> result = new TreeMap<String, FileInfo>();
+        if (!resolve(prefix).isDirectory()) {
+            return result;
+        }
+        if (threads <= 1) {
+            List<String> queue = new ArrayList<String>();
+            queue.add(prefix);
+            while(!queue.isEmpty()) {
+                queue.addAll(scanDirectory(queue.remove(queue.size() - 1), result));
+            }
+            return result;
+        }
+        CompletionService<SortedMap<String, FileInfo>> scans = new ExecutorCompletionService<SortedMap<String, FileInfo>>(SCAN_POOL);
+        List<Future<SortedMap<String, FileInfo>>> submitted = new ArrayList<Future<SortedMap<String, FileInfo>>>();
+        List<String> queue = new ArrayList<String>();
+        queue.add(prefix);
+        int pending = 0;
+        try {
+            while(pending > 0 || !queue.isEmpty()) {
+                while(pending < threads && !queue.isEmpty()) {
+                    submitted.add(scans.submit(scanTask(queue.remove(queue.size() - 1))));
+                    ++pending;
+                }
+                SortedMap<String, FileInfo> dir = scans.take().get();
+                --pending;
+                for(String entry: dir.keySet()) {
+                    if (entry.endsWith("/")) {
+                        queue.add(entry);
+                    }
+                }
+                result.putAll(dir);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Scan was interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            if (pending > 0) {
+                // scan has failed, remaining directories are not needed
+                for(Future<?> f: submitted) {
+                    f.cancel(true);
+                }
+            }
+        }
+    }
+
+    private Callable<SortedMap<String, FileInfo>> scanTask(final String prefix) {
+        return new Callable<SortedMap<String, FileInfo>>() {
+            @Override
+            public SortedMap<String, FileInfo> call() {
+                SortedMap<String, FileInfo> result = new TreeMap<String, FileInfo>();
+                scanDirectory(prefix, result);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @return subdirectories found
+     */
+    private List<String> scanDirectory(String prefix, SortedMap<String, FileInfo> result) {
+        List<String> dirs = new ArrayList<String>();
+        File[] files = resolve(prefix).listFiles();
+        if (files != null) {
+            for(File file: files) {
+                FileInfo info = FileInfo.stat(file);
+                if (info == null) {
+                    // removed concurrently or broken link
+                    continue;
+                }
+                if (info.isDirectory()) {
+                    String dir = prefix + file.getName() + "/";
+                    result.put(dir, info);
+                    dirs.add(dir);
+                }
+                else if (!file.getName().startsWith(SERVICE_PREFIX)) {
+                    result.put(prefix + file.getName(), info);
+                }
+            }
+        }
+        return dirs;
+    }
+
+    @Override
+    public FileInfo stat(String path) {
+        return FileInfo.stat(resolve(path));
+    }
+
+    @Override
+    public void setLastModified(String path, long lastModified) throws IOException {
+        File file = resolve(path);
+        invalidate(file);
+        if (!file.setLastModified(lastModified)) {
+            throw new IOException("Cannot set modification time: " + file.getPath());
+        }
+    }
+
+    private void invalidate(File file) {
+        if (signatureIndex != null) {
+            signatureIndex.invalidate(file);
+        }
+    }
+
     @Override
     public List<ChecksumPair> readChecksums(String path) throws IOException {
         File file = resolve(path);
         if (!file.isFile()) {
             return Collections.<ChecksumPair>emptyList();
         }
+        if (signatureIndex != null) {
+            return signatureIndex.getSignatures(file, rdiff);
+        }
         FileInputStream fis = new FileInputStream(file);
         try {
             List<ChecksumPair> digest = rdiff.makeSignatures(fis);
@@ -103,6 +307,33 @@ class SimpleSyncSlave implements FileSyncParty {
         }
     }
 
+    @Override
+    public List<List<ChecksumPair>> readChecksums(List<String> paths) throws IOException {
+        List<List<ChecksumPair>> result = new ArrayList<List<ChecksumPair>>(paths.size());
+        for(String path: paths) {
+            result.add(readChecksums(path));
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> readHashes(List<String> paths) throws IOException {
+        List<String> result = new ArrayList<String>(paths.size());
+        for(String path: paths) {
+            File file = resolve(path);
+            if (!file.isFile()) {
+                result.add(null);
+            }
+            else if (signatureIndex != null) {
+                result.add(signatureIndex.getHash(file));
+            }
+            else {
+                result.add(SignatureIndex.computeHash(file));
+            }
+        }
+        return result;
+    }
+
     @Override
     public boolean makePath(String path) throws IOException {
         File file = resolve(path);
@@ -118,12 +349,68 @@ class SimpleSyncSlave implements FileSyncParty {
         }
     }
 
+    @Override
+    public boolean duplicateFile(String existingPath, String path, boolean allowLink) throws IOException {
+        File existing = resolve(existingPath);
+        File file = resolve(path);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        invalidate(file);
+        if (allowLink && !file.exists() && createLink(file, existing)) {
+            return true;
+        }
+        File tmpFile = mkTmp(file);
+        FileInputStream in = new FileInputStream(existing);
+        try {
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                FileChannel src = in.getChannel();
+                long size = src.size();
+                long n = 0;
+                while(n < size) {
+                    n += src.transferTo(n, size - n, out.getChannel());
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch(IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        finally {
+            in.close();
+        }
+        PatchWriter.replace(tmpFile, file);
+        return false;
+    }
+
+    /**
+     * Hard links are available since Java 7, so they are used via reflection.
+     */
+    private static boolean createLink(File link, File existing) {
+        if (CREATE_LINK == null) {
+            return false;
+        }
+        try {
+            CREATE_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(existing));
+            return true;
+        }
+        catch(Exception e) {
+            // links are not supported by file system or denied
+            return false;
+        }
+    }
+
     @Override
     public OutputStream openFileForWrite(String path) throws IOException {
         File file = resolve(path);
         if (file.getParentFile() != null || file.getParentFile().exists()) {
             file.getParentFile().mkdirs();
         }
+        invalidate(file);
         FileOutputStream fos = new FileOutputStream(file);
         return fos;
     }
@@ -136,8 +423,54 @@ class SimpleSyncSlave implements FileSyncParty {
     }
 
     @Override
-    public List<Delta> preparePatch(String path, List<ChecksumPair> digest) throws IOException {
-        File file = resolve(path);
+    public byte[] readChunk(String path, long offset, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(resolve(path), "r");
+        ByteBuffer bb = BufferPool.acquire(length);
+        try {
+            FileChannel ch = raf.getChannel();
+            bb.limit(length);
+            while(bb.hasRemaining()) {
+                if (ch.read(bb, offset + bb.position()) < 0) {
+                    break;
+                }
+            }
+            bb.flip();
+            byte[] data = new byte[bb.remaining()];
+            bb.get(data);
+            return data;
+        }
+        finally {
+            BufferPool.release(bb);
+            raf.close();
+        }
+    }
+
+    @Override
+    public void streamFiles(List<String> paths, OutputStream sink) throws IOException {
+        List<File> files = new ArrayList<File>(paths.size());
+        for(String path: paths) {
+            files.add(resolve(path));
+        }
+        FilePack.pack(files, sink);
+    }
+
+    @Override
+    public List<Delta> preparePatch(String path, final List<ChecksumPair> digest) throws IOException {
+        final File file = resolve(path);
+        if (deltaCache != null) {
+            return deltaCache.getDeltas(file, digest, new DeltaCache.DeltaSource() {
+                @Override
+                public List<Delta> makeDeltas() throws IOException {
+                    return makePatch(file, digest);
+                }
+            });
+        }
+        else {
+            return makePatch(file, digest);
+        }
+    }
+
+    private List<Delta> makePatch(File file, List<ChecksumPair> digest) throws IOException {
         FileInputStream in = new FileInputStream(file);
         try {
             return rdiff.makeDeltas(digest, in);
@@ -150,17 +483,80 @@ class SimpleSyncSlave implements FileSyncParty {
     }
 
     @Override
-    public void applyPatch(String path, List<Delta> deltas) throws IOException {
+    public List<List<Delta>> preparePatches(List<String> paths, List<List<ChecksumPair>> digests) throws IOException {
+        List<List<Delta>> result = new ArrayList<List<Delta>>(paths.size());
+        for(int i = 0; i != paths.size(); ++i) {
+            result.add(preparePatch(paths.get(i), digests.get(i)));
+        }
+        return result;
+    }
+
+    @Override
+    public ZipIndex readArchiveIndex(String path) throws IOException {
+        return ZipIndex.read(resolve(path));
+    }
+
+    @Override
+    public List<List<Delta>> prepareArchivePatches(List<String> paths, List<ZipIndex> indexes) throws IOException {
+        List<List<Delta>> result = new ArrayList<List<Delta>>(paths.size());
+        for(int i = 0; i != paths.size(); ++i) {
+            result.add(ArchiveDelta.makeDeltas(resolve(paths.get(i)), indexes.get(i)));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean streamArchivePatch(String path, ZipIndex index, OutputStream sink) throws IOException {
+        return ArchiveDelta.writeDeltas(resolve(path), index, sink);
+    }
+
+    @Override
+    public void applyPatch(String path, String basisPath, List<Delta> deltas) throws IOException {
         File file = resolve(path);
+        File basis = resolve(basisPath);
         if (file.getParentFile() != null || file.getParentFile().exists()) {
             file.getParentFile().mkdirs();
         }
+        invalidate(file);
         File tmpFile = mkTmp(file);
-        FileOutputStream rout = new FileOutputStream(tmpFile);
-        rdiff.rebuildFile(file, deltas, rout);
-        rout.close();
-        file.delete();
-        tmpFile.renameTo(file);
+        try {
+            PatchWriter.rebuild(basis, deltas, tmpFile);
+        }
+        catch(IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        catch(RuntimeException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        PatchWriter.replace(tmpFile, file);
+    }
+
+    @Override
+    public void streamPatch(String path, List<ChecksumPair> digest, OutputStream sink) throws IOException {
+        File file = resolve(path);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            BufferedOutputStream bos = new BufferedOutputStream(sink, 1 << 16);
+            rdiff.makeDeltas(digest, in, bos);
+            bos.flush();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public OutputStream openPatchForWrite(String path, String basisPath) throws IOException {
+        File file = resolve(path);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        invalidate(file);
+        return new PatchWriter(resolve(basisPath), mkTmp(file), file);
     }
 
     private File mkTmp(File file) {
@@ -170,7 +566,7 @@ class SimpleSyncSlave implements FileSyncParty {
         }
         int n = 0;
         while(true) {
-            File f = new File(dir, ".jarsync" + (n == 0 ? "" : "-" + n) + file.getName());
+            File f = new File(dir, SERVICE_PREFIX + (n == 0 ? "" : "-" + n) + file.getName());
             if (!f.exists()) {
                 return f;
             }
@@ -178,6 +574,20 @@ class SimpleSyncSlave implements FileSyncParty {
         }
     }
 
+    @Override
+    public void moveFile(String fromPath, String toPath) throws IOException {
+        File from = resolve(fromPath);
+        File to = resolve(toPath);
+        if (to.getParentFile() != null) {
+            to.getParentFile().mkdirs();
+        }
+        invalidate(from);
+        invalidate(to);
+        if (!from.renameTo(to)) {
+            throw new IOException("Cannot move " + from.getPath() + " to " + to.getPath());
+        }
+    }
+
     @Override
     public void eraseFile(String path) throws IOException {
         File file = resolve(path);
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -21,6 +22,13 @@ public class SyncDownTask extends Task {
 
     private String sourceBase;
     private String targetBase;
+    private boolean alwaysChecksum;
+    private int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private long packThreshold = SimpleFileSyncProcessor.DEFAULT_PACK_THRESHOLD;
+    private int packSize = SimpleFileSyncProcessor.DEFAULT_PACK_SIZE;
+    private boolean fuzzyBasis;
+    private long bwlimit;
+    private long nodeBwlimit;
     private List<BatchConfElement> batchConfig = new ArrayList<BatchConfElement>();
     
     
@@ -36,6 +44,84 @@ public class SyncDownTask extends Task {
         this.targetBase = filter(targetBase);
     }
     
+    /**
+     * <code>auto</code> (default) - files with same size and modification time are considered unchanged,
+     * <code>always</code> - file content is always compared.
+     */
+    public void setChecksum(String mode) {
+        mode = filter(mode);
+        if ("always".equalsIgnoreCase(mode)) {
+            alwaysChecksum = true;
+        }
+        else if ("auto".equalsIgnoreCase(mode)) {
+            alwaysChecksum = false;
+        }
+        else {
+            throw new IllegalArgumentException("Unknown checksum mode '" + mode + "', should be 'auto' or 'always'");
+        }
+    }
+    
+    /**
+     * Number of files processed concurrently on slave.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("'threads' should be positive");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * New files up to this size (in bytes) are transfered in packs, 0 disables packing.
+     */
+    public void setPackThreshold(long packThreshold) {
+        if (packThreshold < 0) {
+            throw new IllegalArgumentException("'packthreshold' should not be negative");
+        }
+        this.packThreshold = packThreshold;
+    }
+
+    /**
+     * Maximum number of files in single pack.
+     */
+    public void setPackSize(int packSize) {
+        if (packSize < 1) {
+            throw new IllegalArgumentException("'packsize' should be positive");
+        }
+        this.packSize = packSize;
+    }
+
+    /**
+     * If enabled, new files are patched from similar files in same directory
+     * (e.g. <code>app-2.3.1.jar</code> is used as a basis for <code>app-2.3.2.jar</code>).
+     */
+    public void setFuzzyBasis(boolean fuzzyBasis) {
+        this.fuzzyBasis = fuzzyBasis;
+    }
+
+    /**
+     * Limit of bytes per second sent by master, shared by all nodes syncing concurrently.
+     * Limit is active while this task is running, if several tasks with different limits
+     * run concurrently, lowest limit is used. 0 (default) - no limit of its own.
+     */
+    public void setBwlimit(long bwlimit) {
+        if (bwlimit < 0) {
+            throw new IllegalArgumentException("'bwlimit' should not be negative");
+        }
+        this.bwlimit = bwlimit;
+    }
+
+    /**
+     * Limit of bytes per second sent by master to this node.
+     * 0 (default) - unlimited.
+     */
+    public void setNodeBwlimit(long nodeBwlimit) {
+        if (nodeBwlimit < 0) {
+            throw new IllegalArgumentException("'nodebwlimit' should not be negative");
+        }
+        this.nodeBwlimit = nodeBwlimit;
+    }
+    
     public void addConfiguredRetain(Retain element) {
         if (element.pattern == null) {
             throw new IllegalArgumentException("Pattern required for <retain> element");
@@ -78,21 +164,42 @@ public class SyncDownTask extends Task {
         }
         
         File target = targetBase == null ? getProject().getBaseDir() : getProject().resolveFile(targetBase);
-        SimpleSyncSlave sync = new SimpleSyncSlave(target);
+        // signatures of unchanged target files are kept between syncs,
+        // index trusts size and modification time, so it is not used if checksum is forced
+        SignatureIndex index = alwaysChecksum ? null : SignatureIndex.getInstance(new File(target, SimpleSyncSlave.INDEX_FILE));
+        SimpleSyncSlave sync = new SimpleSyncSlave(target, index);
         
         String name = getProject().getProperty(GridAntProps.SLAVE_ID);
+        // master limit is reserved for duration of this task
+        String lease = name + "/" + UUID.randomUUID();
         
-        CopyBatch batch = mexec.exec(new SyncExecutor(name, sourceBase, batchConfig));
         try {
+            CopyBatch batch = mexec.exec(new SyncExecutor(name, sourceBase, !alwaysChecksum, bwlimit, lease, nodeBwlimit, batchConfig));
+            batch.threads(threads);
+            batch.packSmallFiles(packThreshold, packSize);
+            batch.fuzzyBasis(fuzzyBasis);
             batch.execute(sync, new CopyReporter() {
                 @Override
                 public void report(String source, String destination, String remark) {
                     System.out.println(String.format("%-10s %s -> %s", remark, source, destination));
                 }
             });
+            System.out.println("Sync summary: " + batch.getTransferStats());
         } catch (IOException e) {
             throw new BuildException(e);
         }
+        finally {
+            if (bwlimit > 0) {
+                mexec.exec(new ReleaseLimit(lease));
+            }
+        }
+        if (index != null) {
+            try {
+                index.save();
+            } catch (IOException e) {
+                System.out.println("Failed to save signature index: " + e);
+            }
+        }
     }
     
     private static void configure(CopyBatch batch, List<BatchConfElement> config) {
@@ -107,19 +214,33 @@ public class SyncDownTask extends Task {
         
         String node;
         String sourceBase; 
+        boolean quickCheck;
+        long bwlimit;
+        String lease;
+        long nodeBwlimit;
         List<BatchConfElement> config;
         
-        public SyncExecutor(String node,  String sourceBase, List<BatchConfElement> config) {
+        public SyncExecutor(String node,  String sourceBase, boolean quickCheck, long bwlimit, String lease, long nodeBwlimit, List<BatchConfElement> config) {
             this.node = node;
             this.sourceBase = sourceBase;
+            this.quickCheck = quickCheck;
+            this.bwlimit = bwlimit;
+            this.lease = lease;
+            this.nodeBwlimit = nodeBwlimit;
             this.config = config;
         }
 
         @Override
         public CopyBatch call(Project project) throws Exception {
             File source = sourceBase == null ? project.getBaseDir() : project.resolveFile(sourceBase);
+            String cache = project.getProperty(GridAntProps.SYNC_SIGNATURE_CACHE);
+            SignatureIndex index = quickCheck ? SignatureIndex.getInstance(cache == null ? null : project.resolveFile(cache)) : null;
             SimpleFileSyncProcessor processor = new SimpleFileSyncProcessor();
-            CopyBatch batch = processor.startBatch(new SimpleSyncSlave(source));
+            CopyBatch batch = processor.startBatch(new SimpleSyncSlave(source, index, DeltaCache.getInstance()));
+            batch.quickCheck(quickCheck);
+            // master wide limit is shared by all syncs, it is released by ReleaseLimit at the end of task
+            TokenBucket.getMasterBucket().addLimit(lease, bwlimit);
+            batch.bandwidthLimit(nodeBwlimit);
             configure(batch, config);
             batch.prepare(new CopyReporter() {
                 @Override
@@ -127,6 +248,14 @@ public class SyncDownTask extends Task {
                     throw new RuntimeException("IO failure [" + source + "] " + remark);
                 }
             });           
+            if (index != null) {
+                try {
+                    index.save();
+                }
+                catch(IOException e) {
+                    System.out.println("Failed to save " + cache + ": " + e);
+                }
+            }
             
             return batch;
         }
@@ -142,6 +271,23 @@ public class SyncDownTask extends Task {
         }
     }
     
+    private static class ReleaseLimit implements MasterCallable<Void>, Serializable {
+
+        private static final long serialVersionUID = 20140426L;
+
+        String lease;
+
+        public ReleaseLimit(String lease) {
+            this.lease = lease;
+        }
+
+        @Override
+        public Void call(Project project) {
+            TokenBucket.getMasterBucket().removeLimit(lease);
+            return null;
+        }
+    }
+
     private static interface BatchConfElement {
         
         public void configure(CopyBatch batch);
@@ -0,0 +1,128 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Token bucket limiting data rate.
+ * <p>
+ * Callers reserve bytes up front and sleep outside of lock until
+ * reservation is covered, so large chunk is delayed proportionally
+ * to its size. Burst is kept short (100ms of traffic), so bulk data
+ * does not fill network buffers in front of control messages.
+ * This only approximates priority, control messages share connection
+ * with data and are not reordered.
+ */
+class TokenBucket {
+
+    private static final TokenBucket MASTER = new TokenBucket(0);
+
+    /** Minimal burst, so small writes are not delayed one by one */
+    private static final long MIN_BURST = 64 << 10;
+
+    private long rate;
+    /** Limits of bucket users, see {@link #addLimit(String, long)} */
+    private final Map<String, Long> limits = new HashMap<String, Long>();
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @return bucket shared by all syncs served by this JVM
+     */
+    public static TokenBucket getMasterBucket() {
+        return MASTER;
+    }
+
+    /**
+     * @param rate bytes per second, 0 - unlimited
+     */
+    public TokenBucket(long rate) {
+        setRate(rate);
+    }
+
+    /**
+     * @param rate bytes per second, 0 - unlimited
+     */
+    public synchronized void setRate(long rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate should not be negative");
+        }
+        this.rate = rate;
+        this.tokens = Math.min(tokens, burst());
+    }
+
+    /**
+     * Registers limit of one of the bucket users, until {@link #removeLimit(String)}.
+     * Effective rate is lowest of registered limits, so concurrent users with
+     * different limits get same rate regardless of their start order.
+     *
+     * @param owner unique id of user
+     * @param rate bytes per second, 0 - user has no limit of its own
+     */
+    public synchronized void addLimit(String owner, long rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate should not be negative");
+        }
+        if (rate > 0) {
+            limits.put(owner, rate);
+            updateRate();
+        }
+    }
+
+    /**
+     * Removes limit of user, bucket is unlimited once all limits are removed.
+     */
+    public synchronized void removeLimit(String owner) {
+        if (limits.remove(owner) != null) {
+            updateRate();
+        }
+    }
+
+    private void updateRate() {
+        long min = 0;
+        for(long limit: limits.values()) {
+            if (min == 0 || limit < min) {
+                min = limit;
+            }
+        }
+        setRate(min);
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Blocks until rate allows to send that many bytes.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long delay = reserve(bytes);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * @return delay in milliseconds, until reserved bytes could be sent
+     */
+    synchronized long reserve(long bytes) {
+        if (rate == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(burst(), tokens + rate * ((now - lastRefill) / 1e9));
+        lastRefill = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long)Math.ceil(-tokens * 1000 / rate);
+    }
+
+    private long burst() {
+        return Math.max(MIN_BURST, rate / 10);
+    }
+}
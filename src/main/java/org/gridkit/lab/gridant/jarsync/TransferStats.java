@@ -0,0 +1,38 @@
+package org.gridkit.lab.gridant.jarsync;
+
+/**
+ * Amount of file data received from source during synchronization.
+ */
+public class TransferStats {
+
+    private long dataBytes;
+    private long wireBytes;
+
+    public synchronized void add(long dataBytes, long wireBytes) {
+        this.dataBytes += dataBytes;
+        this.wireBytes += wireBytes;
+    }
+
+    /**
+     * @return size of file data (copied files and patch literals)
+     */
+    public synchronized long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * @return size of file data as it was transfered (after compression)
+     */
+    public synchronized long getWireBytes() {
+        return wireBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (dataBytes == 0) {
+            return "no data transfered";
+        }
+        float saved = 100f * (dataBytes - wireBytes) / dataBytes;
+        return String.format("%d bytes of data transfered as %d bytes (%.0f%% saved by compression)", dataBytes, wireBytes, saved);
+    }
+}
@@ -0,0 +1,212 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Entry table of zip archive (read from central directory).
+ * <p>
+ * For each entry position of its local header and compressed data is recorded,
+ * so unchanged entries could be reused verbatim from old version of archive.
+ * Zip64 archives are not supported.
+ */
+class ZipIndex implements Serializable {
+
+    private static final long serialVersionUID = 20140427L;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+
+    /** Central directories larger than this are not read */
+    private static final int MAX_DIRECTORY_SIZE = 64 << 20;
+
+    private static final String[] EXTENSIONS = {".jar", ".zip", ".war", ".ear"};
+
+    long fileSize;
+    String[] names;
+    int[] methods;
+    long[] crcs;
+    long[] compressedSizes;
+    long[] sizes;
+    /** Offset of local header of entry */
+    long[] headerOffsets;
+    /** CRC32 and Adler32 of local header (including name and extra field) */
+    long[] headerHashes;
+    /** Offset of compressed data of entry */
+    long[] dataOffsets;
+
+    /**
+     * @return <code>true</code> if file name suggests zip archive
+     */
+    public static boolean isArchiveName(String path) {
+        String lpath = path.toLowerCase();
+        for(String ext: EXTENSIONS) {
+            if (lpath.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return index of archive or <code>null</code> if file is not a zip archive or archive is not supported
+     */
+    public static ZipIndex read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return read(raf);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static ZipIndex read(RandomAccessFile raf) throws IOException {
+        long length = raf.length();
+        if (length < EOCD_SIZE) {
+            return null;
+        }
+        // end of central directory is followed by comment of up to 64 KiB
+        int tail = (int)Math.min(length, EOCD_SIZE + 0xFFFF);
+        byte[] buf = new byte[tail];
+        raf.seek(length - tail);
+        raf.readFully(buf);
+        int eocd = -1;
+        for(int i = tail - EOCD_SIZE; i >= 0; --i) {
+            if (int32(buf, i) == EOCD_SIGNATURE && i + EOCD_SIZE + int16(buf, i + 20) == tail) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            return null;
+        }
+        int count = int16(buf, eocd + 10);
+        long dirSize = uint32(buf, eocd + 12);
+        long dirOffset = uint32(buf, eocd + 16);
+        if (count == 0xFFFF || dirSize == 0xFFFFFFFFL || dirOffset == 0xFFFFFFFFL) {
+            // zip64
+            return null;
+        }
+        if (dirSize > MAX_DIRECTORY_SIZE || dirOffset + dirSize > length) {
+            return null;
+        }
+        byte[] dir = new byte[(int)dirSize];
+        raf.seek(dirOffset);
+        raf.readFully(dir);
+
+        ZipIndex index = new ZipIndex();
+        index.fileSize = length;
+        index.names = new String[count];
+        index.methods = new int[count];
+        index.crcs = new long[count];
+        index.compressedSizes = new long[count];
+        index.sizes = new long[count];
+        index.headerOffsets = new long[count];
+        index.headerHashes = new long[count];
+        index.dataOffsets = new long[count];
+        byte[] loc = new byte[LOC_SIZE + 0xFFFF + 0xFFFF];
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        int p = 0;
+        for(int i = 0; i != count; ++i) {
+            if (p + CEN_SIZE > dir.length || int32(dir, p) != CEN_SIGNATURE) {
+                return null;
+            }
+            int nameLen = int16(dir, p + 28);
+            int extraLen = int16(dir, p + 30);
+            int commentLen = int16(dir, p + 32);
+            if (p + CEN_SIZE + nameLen > dir.length) {
+                return null;
+            }
+            index.methods[i] = int16(dir, p + 10);
+            index.crcs[i] = uint32(dir, p + 16);
+            index.compressedSizes[i] = uint32(dir, p + 20);
+            index.sizes[i] = uint32(dir, p + 24);
+            index.names[i] = name(dir, p + CEN_SIZE, nameLen, (int16(dir, p + 8) & 0x800) != 0);
+            long locOffset = uint32(dir, p + 42);
+            if (locOffset + LOC_SIZE > length) {
+                return null;
+            }
+            raf.seek(locOffset);
+            raf.readFully(loc, 0, LOC_SIZE);
+            if (int32(loc, 0) != LOC_SIGNATURE) {
+                return null;
+            }
+            int headerLen = LOC_SIZE + int16(loc, 26) + int16(loc, 28);
+            if (locOffset + headerLen > length) {
+                return null;
+            }
+            raf.readFully(loc, LOC_SIZE, headerLen - LOC_SIZE);
+            crc.reset();
+            crc.update(loc, 0, headerLen);
+            adler.reset();
+            adler.update(loc, 0, headerLen);
+            index.headerOffsets[i] = locOffset;
+            index.headerHashes[i] = (crc.getValue() << 32) | adler.getValue();
+            index.dataOffsets[i] = locOffset + headerLen;
+            if (index.dataOffsets[i] + index.compressedSizes[i] > length) {
+                return null;
+            }
+            p += CEN_SIZE + nameLen + extraLen + commentLen;
+        }
+        return index;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return <code>true</code> if compressed data of entries are interchangeable
+     */
+    public boolean sameEntry(int n, ZipIndex other, int m) {
+        return methods[n] == other.methods[m]
+                && crcs[n] == other.crcs[m]
+                && compressedSizes[n] == other.compressedSizes[m]
+                && sizes[n] == other.sizes[m]
+                && names[n].equals(other.names[m]);
+    }
+
+    /**
+     * @return <code>true</code> if local headers of entries are identical (assuming hashes are reliable)
+     */
+    public boolean sameHeader(int n, ZipIndex other, int m) {
+        return headerHashes[n] == other.headerHashes[m]
+                && dataOffsets[n] - headerOffsets[n] == other.dataOffsets[m] - other.headerOffsets[m];
+    }
+
+    private static String name(byte[] buf, int off, int len, boolean utf8) {
+        try {
+            // name is used only for matching, so exact legacy encoding is not important
+            return new String(buf, off, len, utf8 ? "UTF-8" : "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int int16(byte[] b, int off) {
+        return (0xFF & b[off]) | ((0xFF & b[off + 1]) << 8);
+    }
+
+    private static int int32(byte[] b, int off) {
+        return (int)uint32(b, off);
+    }
+
+    private static long uint32(byte[] b, int off) {
+        return (0xFFL & b[off]) | ((0xFFL & b[off + 1]) << 8) | ((0xFFL & b[off + 2]) << 16) | ((0xFFL & b[off + 3]) << 24);
+    }
+}
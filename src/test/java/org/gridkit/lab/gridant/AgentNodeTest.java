@@ -0,0 +1,253 @@
+package org.gridkit.lab.gridant;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.Remote;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Starts real agent JVMs on local host.
+ */
+public class AgentNodeTest {
+
+	private static final File AGENT_DIR = new File("target/agents/" + System.currentTimeMillis());
+
+	private static final Map<String, String> NO_PROPS = Collections.emptyMap();
+
+	private AgentNode agent;
+
+	@After
+	public void terminateAgent() {
+		if (agent != null) {
+			agent.retire();
+		}
+	}
+
+	@Test
+	public void verify_reattach() throws IOException {
+		agent = localAgent("reattach", NO_PROPS, 60);
+		agent.attach();
+		String pid = agent.exec(new PidProbe());
+		Assert.assertFalse(pid.equals(ManagementFactory.getRuntimeMXBean().getName()));
+		agent.detach();
+
+		// next build
+		agent = localAgent("reattach", NO_PROPS, 60);
+		agent.attach();
+		Assert.assertEquals(pid, agent.exec(new PidProbe()));
+	}
+
+	@Test
+	public void verify_fingerprint_mismatch() throws IOException, InterruptedException {
+		agent = localAgent("mismatch", NO_PROPS, 60);
+		agent.attach();
+		String pid = agent.exec(new PidProbe());
+		int port = agentPort("mismatch");
+		agent.detach();
+
+		Map<String, String> props = new HashMap<String, String>();
+		props.put(GridAntProps.REMOTE_ANT_BASE_DIR, "target/base1");
+		agent = localAgent("mismatch", props, 60);
+		agent.attach();
+		Assert.assertFalse(pid.equals(agent.exec(new PidProbe())));
+		Assert.assertEquals("target/base1", agent.exec(new PropProbe(GridAntProps.REMOTE_ANT_BASE_DIR)));
+		// old agent is retired
+		Assert.assertTrue(awaitTermination(port, 10000));
+	}
+
+	@Test
+	public void verify_idle_timeout() throws IOException, InterruptedException {
+		agent = localAgent("idle", NO_PROPS, 1);
+		agent.attach();
+		agent.exec(new PidProbe());
+		int port = agentPort("idle");
+		Thread.sleep(1500);
+		// attached agent is not idle
+		Assert.assertTrue(agent.isAttached());
+		Assert.assertFalse(awaitTermination(port, 0));
+		agent.detach();
+		Assert.assertTrue(awaitTermination(port, 10000));
+	}
+
+	@Test
+	public void verify_remote_callback() throws IOException {
+		agent = localAgent("callback", NO_PROPS, 60);
+		CounterImpl counter = new CounterImpl();
+		Assert.assertEquals(Integer.valueOf(3), agent.exec(new CallbackTask(counter, 3)));
+		Assert.assertEquals(3, counter.value.get());
+	}
+
+	@Test
+	public void verify_bad_token_rejected() throws IOException {
+		agent = localAgent("token", NO_PROPS, 60);
+		agent.attach();
+		String pid = agent.exec(new PidProbe());
+		int port = agentPort("token");
+
+		// wrong token, followed by oversized frame, which should never be read
+		Socket socket = new Socket("127.0.0.1", port);
+		try {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeInt(AgentChannel.MAGIC);
+			out.write(new byte[AgentChannel.TOKEN_LENGTH]);
+			out.writeInt(Integer.MAX_VALUE);
+			out.flush();
+			socket.setSoTimeout(10000);
+			Assert.assertEquals(-1, socket.getInputStream().read());
+		}
+		finally {
+			socket.close();
+		}
+
+		// garbage instead of token frame
+		socket = new Socket("127.0.0.1", port);
+		try {
+			socket.getOutputStream().write(new byte[]{(byte)0xAC, (byte)0xED, 0, 5, 1, 2, 3, 4});
+			socket.setSoTimeout(10000);
+			Assert.assertEquals(-1, socket.getInputStream().read());
+		}
+		finally {
+			socket.close();
+		}
+
+		agent.detach();
+		agent = localAgent("token", NO_PROPS, 60);
+		Assert.assertEquals(pid, agent.exec(new PidProbe()));
+	}
+
+	@Test
+	public void verify_prop_change_replaces_agent() throws IOException {
+		agent = localAgent("prop", NO_PROPS, 60);
+		String pid = agent.exec(new PidProbe());
+		agent.setProp("gridant.test.prop", "A");
+		Assert.assertFalse(pid.equals(agent.exec(new PidProbe())));
+		Assert.assertEquals("A", agent.exec(new PropProbe("gridant.test.prop")));
+	}
+
+	@Test
+	public void verify_fingerprint_tracks_classes() throws IOException {
+		File dir = new File(AGENT_DIR, "classes");
+		File cls = new File(dir, "A.class");
+		dir.mkdirs();
+		cls.createNewFile();
+		List<File> cp = Collections.singletonList(dir);
+		String fp1 = AgentNode.fingerprint(cp, NO_PROPS);
+		Assert.assertEquals(fp1, AgentNode.fingerprint(cp, NO_PROPS));
+		cls.setLastModified(cls.lastModified() - 10000);
+		Assert.assertFalse(fp1.equals(AgentNode.fingerprint(cp, NO_PROPS)));
+	}
+
+	private static AgentNode localAgent(String name, Map<String, String> props, long idleTimeoutSec) {
+		return AgentNode.local(name, AGENT_DIR, AgentNode.agentClasspath(null), props, idleTimeoutSec);
+	}
+
+	private static int agentPort(String name) throws IOException {
+		Properties state = new Properties();
+		FileInputStream fis = new FileInputStream(new File(AGENT_DIR, name + ".agent"));
+		try {
+			state.load(fis);
+		}
+		finally {
+			fis.close();
+		}
+		return Integer.parseInt(state.getProperty("port"));
+	}
+
+	private static boolean awaitTermination(int port, long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while(true) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+				socket.close();
+			}
+			catch(IOException e) {
+				return true;
+			}
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	private static class PidProbe implements Callable<String>, Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		@Override
+		public String call() {
+			return ManagementFactory.getRuntimeMXBean().getName();
+		}
+	}
+
+	private static class PropProbe implements Callable<String>, Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		private final String prop;
+
+		public PropProbe(String prop) {
+			this.prop = prop;
+		}
+
+		@Override
+		public String call() {
+			return System.getProperty(prop);
+		}
+	}
+
+	interface Counter extends Remote {
+
+		public int increment();
+
+	}
+
+	private static class CounterImpl implements Counter {
+
+		final AtomicInteger value = new AtomicInteger();
+
+		@Override
+		public int increment() {
+			return value.incrementAndGet();
+		}
+	}
+
+	private static class CallbackTask implements Callable<Integer>, Serializable {
+
+		private static final long serialVersionUID = 20140427L;
+
+		private final Counter counter;
+		private final int times;
+
+		public CallbackTask(Counter counter, int times) {
+			this.counter = counter;
+			this.times = times;
+		}
+
+		@Override
+		public Integer call() {
+			int n = 0;
+			for(int i = 0; i != times; ++i) {
+				n = counter.increment();
+			}
+			return n;
+		}
+	}
+}
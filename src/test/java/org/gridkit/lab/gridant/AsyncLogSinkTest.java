@@ -0,0 +1,30 @@
+package org.gridkit.lab.gridant;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncLogSinkTest {
+
+	private static final File DIR = new File("target/logsink/" + System.currentTimeMillis());
+
+	@Test
+	public void verify_output_reaches_file_before_close() throws IOException, InterruptedException {
+		File file = new File(DIR, "node1.log");
+		AsyncLogSink sink = new AsyncLogSink("node1", file);
+		try {
+			byte[] line = "Hello from node1\n".getBytes();
+			sink.write(line, 0, line.length);
+			long deadline = System.currentTimeMillis() + 5000;
+			while(file.length() < line.length && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(line.length, file.length());
+		}
+		finally {
+			sink.close();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.gridkit.lab.gridant;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClasspathFilterTest {
+
+	private static final File DIR = new File("target/cpfilter/" + System.currentTimeMillis());
+
+	@Test
+	public void verify_runtime_dependencies_survive() throws IOException {
+		List<URL> classpath = new ArrayList<URL>();
+		URL app = jar(classpath, "app-1.0.jar", "com/acme/app/Main.class");
+		URL zerormi = jar(classpath, "zerormi-0.9.jar", "org/gridkit/zeroio/WrapperOutputStream.class");
+		URL viconcurrent = jar(classpath, "viconcurrent-0.7.jar", "org/gridkit/util/concurrent/FutureBox.class");
+		URL binding = jar(classpath, "slf4j-log4j12-1.6.6.jar", "org/slf4j/impl/StaticLoggerBinder.class");
+		URL log4j = jar(classpath, "log4j-1.2.17.jar", "org/apache/log4j/Logger.class");
+		URL asm = jar(classpath, "asm-3.3.jar", "org/objectweb/asm/ClassReader.class");
+		URL other = jar(classpath, "commons-io-2.4.jar", "org/apache/commons/io/IOUtils.class");
+		URL ant = jar(classpath, "ant.jar", "org/apache/tools/ant/Project.class");
+		URL antLauncher = jar(classpath, "ant-launcher.jar", "org/apache/tools/ant/launch/Locator.class");
+		URL antOptional = jar(classpath, "ant-junit.jar", "org/apache/tools/ant/taskdefs/optional/junit/JUnitTask.class");
+		URL antContrib = jar(classpath, "ant-contrib-1.0b3.jar", "net/sf/antcontrib/logic/IfTask.class");
+
+		ClasspathFilter filter = new ClasspathFilter();
+		filter.addInclude("**/app-*.jar");
+		List<URL> removed = filter.filter(classpath);
+
+		Assert.assertFalse(removed.contains(app));
+		Assert.assertFalse(removed.contains(zerormi));
+		Assert.assertFalse(removed.contains(viconcurrent));
+		Assert.assertFalse(removed.contains(binding));
+		Assert.assertFalse(removed.contains(log4j));
+		Assert.assertFalse(removed.contains(asm));
+		Assert.assertFalse(removed.contains(ant));
+		Assert.assertFalse(removed.contains(antLauncher));
+		Assert.assertFalse(removed.contains(antOptional));
+		Assert.assertFalse(removed.contains(antContrib));
+		Assert.assertTrue(removed.contains(other));
+		Assert.assertEquals(1, removed.size());
+	}
+
+	@Test
+	public void verify_class_directory() throws IOException {
+		File classes = new File(DIR, "classes");
+		new File(classes, "org/gridkit/lab/gridant").mkdirs();
+		File resources = new File(DIR, "resources");
+		new File(resources, "com/acme").mkdirs();
+
+		Assert.assertTrue(ClasspathFilter.isRequired(classes));
+		Assert.assertFalse(ClasspathFilter.isRequired(resources));
+	}
+
+	private static URL jar(List<URL> classpath, String name, String entry) throws IOException {
+		DIR.mkdirs();
+		File file = new File(DIR, name);
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+			zos.write("Manifest-Version: 1.0\n".getBytes());
+			zos.putNextEntry(new ZipEntry(entry));
+			zos.write(new byte[16]);
+			zos.closeEntry();
+		}
+		finally {
+			zos.close();
+		}
+		URL url = file.toURI().toURL();
+		classpath.add(url);
+		return url;
+	}
+}
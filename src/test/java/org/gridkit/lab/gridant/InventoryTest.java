@@ -0,0 +1,38 @@
+package org.gridkit.lab.gridant;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InventoryTest {
+
+	@Test
+	public void verify_plain_name() {
+		Assert.assertEquals(Arrays.asList("server1"), Inventory.expand("server1"));
+	}
+
+	@Test
+	public void verify_padded_range() {
+		Assert.assertEquals(Arrays.asList("app008", "app009", "app010"), Inventory.expand("app[008-010]"));
+	}
+
+	@Test
+	public void verify_unpadded_range() {
+		Assert.assertEquals(Arrays.asList("app9.acme.com", "app10.acme.com"), Inventory.expand("app[9-10].acme.com"));
+	}
+
+	@Test
+	public void verify_multiple_ranges() {
+		Assert.assertEquals(Arrays.asList("r1n1", "r1n2", "r2n1", "r2n2"), Inventory.expand("r[1-2]n[1-2]"));
+	}
+
+	@Test
+	public void verify_node_name_match() {
+		Assert.assertTrue(CloudContext.matchNodeName("app*", "app001"));
+		Assert.assertTrue(CloudContext.matchNodeName("app00?", "app001"));
+		Assert.assertTrue(CloudContext.matchNodeName("**", "app001.acme"));
+		Assert.assertFalse(CloudContext.matchNodeName("app*", "app001.acme"));
+		Assert.assertFalse(CloudContext.matchNodeName("web*", "app001"));
+	}
+}
@@ -0,0 +1,110 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import static org.gridkit.lab.gridant.jarsync.TestHelper.methodName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
+import org.gridkit.lab.gridant.jarsync.jarsync.Offsets;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ArchiveDeltaTest {
+
+	private static final String TARGET_PATH = "target/adelta/" + System.currentTimeMillis();
+
+	@BeforeClass
+	public static void removeTargetDir() {
+		TestHelper.rmrf("target/adelta");
+	}
+
+	@Test
+	public void verify_archive_patch() throws IOException {
+		File dir = new File(TARGET_PATH, methodName());
+		File basis = write(new File(dir, "old.jar"), jar(-1));
+		File source = write(new File(dir, "new.jar"), jar(50));
+
+		ZipIndex index = ZipIndex.read(basis);
+		Assert.assertEquals(200, index.size());
+		List<Delta> deltas = ArchiveDelta.makeDeltas(source, index);
+		Assert.assertNotNull(deltas);
+		long literals = 0;
+		for(Delta d: deltas) {
+			if (!(d instanceof Offsets)) {
+				literals += d.getBlockLength();
+			}
+		}
+		Assert.assertTrue("Literals: " + literals, literals < source.length() / 5);
+
+		File result = new File(dir, "result.jar");
+		PatchWriter.rebuild(basis, deltas, result);
+		Assert.assertArrayEquals(StreamHelper.readFile(source), StreamHelper.readFile(result));
+	}
+
+	@Test
+	public void verify_streamed_archive_patch() throws IOException {
+		File dir = new File(TARGET_PATH, methodName());
+		File basis = write(new File(dir, "x.jar"), jar(-1));
+		File source = write(new File(dir, "new.jar"), jar(7));
+
+		File tmp = new File(dir, "x.tmp");
+		PatchWriter writer = new PatchWriter(basis, tmp, basis);
+		Assert.assertTrue(ArchiveDelta.writeDeltas(source, ZipIndex.read(basis), writer));
+		writer.close();
+		Assert.assertArrayEquals(StreamHelper.readFile(source), StreamHelper.readFile(basis));
+	}
+
+	@Test
+	public void verify_non_archive_is_not_patched() throws IOException {
+		File dir = new File(TARGET_PATH, methodName());
+		File basis = write(new File(dir, "old.jar"), jar(-1));
+		File source = write(new File(dir, "new.jar"), "not a zip".getBytes());
+
+		Assert.assertNull(ZipIndex.read(source));
+		Assert.assertNull(ArchiveDelta.makeDeltas(source, ZipIndex.read(basis)));
+	}
+
+	/**
+	 * @param changed index of entry with different content, -1 for none
+	 */
+	static byte[] jar(int changed) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(bos);
+		for(int i = 0; i != 200; ++i) {
+			ZipEntry entry = new ZipEntry("com/acme/C" + i + ".class");
+			// fixed time, so versions differ only by changed entry
+			entry.setTime(1400000000000l);
+			zos.putNextEntry(entry);
+			// loosely compressible, like class files
+			Random rnd = new Random(i);
+			StringBuilder sb = new StringBuilder();
+			for(int j = 0; j != 300; ++j) {
+				sb.append(Integer.toString(rnd.nextInt(), 36)).append(i == changed ? "(changed)" : "()").append(";\n");
+			}
+			zos.write(sb.toString().getBytes());
+			zos.closeEntry();
+		}
+		zos.close();
+		return bos.toByteArray();
+	}
+
+	private static File write(File file, byte[] data) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(data);
+		}
+		finally {
+			fos.close();
+		}
+		return file;
+	}
+}
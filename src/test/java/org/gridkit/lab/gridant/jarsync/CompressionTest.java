@@ -0,0 +1,77 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.gridkit.lab.gridant.jarsync.Compression.DecoderStream;
+import org.gridkit.lab.gridant.jarsync.Compression.EncoderStream;
+import org.gridkit.lab.gridant.jarsync.jarsync.DataBlock;
+import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
+import org.gridkit.lab.gridant.jarsync.jarsync.Offsets;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompressionTest {
+
+	@Test
+	public void verify_text_stream_is_compressed() throws IOException {
+		byte[] data = text(300000);
+		TransferStats stats = new TransferStats();
+		byte[] result = roundTrip(data, stats);
+		Assert.assertArrayEquals(data, result);
+		Assert.assertEquals(data.length, stats.getDataBytes());
+		Assert.assertTrue(stats.toString(), stats.getWireBytes() < data.length / 2);
+	}
+
+	@Test
+	public void verify_random_stream_is_not_compressed() throws IOException {
+		byte[] data = new byte[300000];
+		new Random(1).nextBytes(data);
+		TransferStats stats = new TransferStats();
+		byte[] result = roundTrip(data, stats);
+		Assert.assertArrayEquals(data, result);
+		// only chunk headers are added
+		Assert.assertTrue(stats.toString(), stats.getWireBytes() < data.length + 100);
+	}
+
+	@Test
+	public void verify_patch_round_trip() throws IOException {
+		byte[] text = text(10000);
+		List<Delta> patch = new ArrayList<Delta>();
+		patch.add(new Offsets(0, 0, 2048));
+		patch.add(new DataBlock(2048, text));
+		patch.add(new Offsets(4096, 12048, 2048));
+		patch.add(new DataBlock(14096, new byte[] {1, 2, 3}));
+
+		TransferStats stats = new TransferStats();
+		List<Delta> result = Compression.decode(Compression.encode(patch), stats);
+		Assert.assertEquals(patch, result);
+		Assert.assertEquals(10003, stats.getDataBytes());
+		Assert.assertTrue(stats.toString(), stats.getWireBytes() < 5000);
+	}
+
+	private static byte[] roundTrip(byte[] data, TransferStats stats) throws IOException {
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		DecoderStream decoder = new DecoderStream(target, stats);
+		EncoderStream encoder = new EncoderStream(decoder);
+		// odd write size, so chunks are not aligned with writes
+		for(int i = 0; i < data.length; i += 1000) {
+			encoder.write(data, i, Math.min(1000, data.length - i));
+		}
+		encoder.finish();
+		decoder.finish();
+		return target.toByteArray();
+	}
+
+	private static byte[] text(int size) {
+		StringBuilder sb = new StringBuilder();
+		int n = 0;
+		while(sb.length() < size) {
+			sb.append("<property name=\"key.").append(n++ % 97).append("\" value=\"some value\"/>\n");
+		}
+		return sb.substring(0, size).getBytes();
+	}
+}
@@ -0,0 +1,127 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import static org.gridkit.lab.gridant.jarsync.TestHelper.methodName;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.gridkit.lab.gridant.jarsync.jarsync.ChecksumPair;
+import org.gridkit.lab.gridant.jarsync.jarsync.Rdiff;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SignatureIndexTest {
+
+	private static final String TARGET_PATH = "target/sigindex";
+
+	@BeforeClass
+	public static void removeTargetDir() {
+		TestHelper.rmrf(TARGET_PATH);
+	}
+
+	@Test
+	public void verify_unchanged_file_is_not_rehashed() throws IOException {
+		File file = write(TARGET_PATH + "/" + methodName() + "/data.bin", 10000, 1);
+		SignatureIndex index = new SignatureIndex(null);
+		List<ChecksumPair> s1 = index.getSignatures(file, new Rdiff());
+		List<ChecksumPair> s2 = index.getSignatures(file, new Rdiff());
+		Assert.assertSame(s1, s2);
+		Assert.assertEquals(5, s1.size());
+	}
+
+	@Test
+	public void verify_changed_file_is_rehashed() throws IOException {
+		File file = write(TARGET_PATH + "/" + methodName() + "/data.bin", 10000, 1);
+		SignatureIndex index = new SignatureIndex(null);
+		List<ChecksumPair> s1 = index.getSignatures(file, new Rdiff());
+		write(file.getPath(), 10000, 2);
+		file.setLastModified(file.lastModified() - 60000);
+		List<ChecksumPair> s2 = index.getSignatures(file, new Rdiff());
+		Assert.assertFalse(s1.equals(s2));
+	}
+
+	@Test
+	public void verify_replaced_file_is_rehashed() throws IOException {
+		File file = write(TARGET_PATH + "/" + methodName() + "/data.bin", 10000, 1);
+		File other = write(TARGET_PATH + "/" + methodName() + "/other.bin", 10000, 2);
+		other.setLastModified(file.lastModified());
+		SignatureIndex index = new SignatureIndex(null);
+		List<ChecksumPair> s1 = index.getSignatures(file, new Rdiff());
+		// file key is not available on Java 6
+		Assume.assumeTrue(SignatureIndex.fileKey(file).length() > 0);
+		// same size and mtime, but other inode
+		Assert.assertTrue(file.delete());
+		Assert.assertTrue(other.renameTo(file));
+		List<ChecksumPair> s2 = index.getSignatures(file, new Rdiff());
+		Assert.assertFalse(s1.equals(s2));
+	}
+
+	@Test
+	public void verify_recently_modified_file_is_not_cached() throws IOException {
+		File file = write(TARGET_PATH + "/" + methodName() + "/data.bin", 10000, 1);
+		file.setLastModified(System.currentTimeMillis());
+		SignatureIndex index = new SignatureIndex(null);
+		List<ChecksumPair> s1 = index.getSignatures(file, new Rdiff());
+		List<ChecksumPair> s2 = index.getSignatures(file, new Rdiff());
+		Assert.assertNotSame(s1, s2);
+		Assert.assertEquals(s1, s2);
+	}
+
+	@Test
+	public void verify_persistence() throws IOException {
+		File file = write(TARGET_PATH + "/" + methodName() + "/data.bin", 10000, 1);
+		File storage = new File(TARGET_PATH + "/" + methodName() + "/index");
+		SignatureIndex index = new SignatureIndex(storage);
+		List<ChecksumPair> s1 = index.getSignatures(file, new Rdiff());
+		index.save();
+		Assert.assertTrue(storage.isFile());
+
+		SignatureIndex index2 = SignatureIndex.getInstance(storage);
+		// no Rdiff, so signatures should be loaded from storage
+		List<ChecksumPair> s2 = index2.getSignatures(file, null);
+		Assert.assertEquals(s1, s2);
+	}
+
+	@Test
+	public void verify_removed_files_are_not_persisted() throws IOException {
+		File file = write(TARGET_PATH + "/" + methodName() + "/data.bin", 10000, 1);
+		File storage = new File(TARGET_PATH + "/" + methodName() + "/" + SimpleSyncSlave.INDEX_FILE);
+		SignatureIndex index = new SignatureIndex(storage);
+		index.getSignatures(file, new Rdiff());
+		long mtime = file.lastModified();
+		file.delete();
+		index.save();
+
+		SignatureIndex index2 = SignatureIndex.getInstance(storage);
+		// same size and mtime as removed file
+		write(file.getPath(), 10000, 1).setLastModified(mtime);
+		try {
+			index2.getSignatures(file, null);
+			Assert.fail("Signatures should be recalculated");
+		}
+		catch(NullPointerException e) {
+			// expected, no Rdiff is provided
+		}
+		// index file is not visible to sync
+		Assert.assertEquals("[data.bin]", new SimpleSyncSlave(file.getParentFile()).listFiles("").toString());
+	}
+
+	private static File write(String path, int size, int seed) throws IOException {
+		File file = new File(path);
+		file.getParentFile().mkdirs();
+		byte[] data = new byte[size];
+		for(int i = 0; i != size; ++i) {
+			data[i] = (byte)(i * seed + i / 7);
+		}
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(data);
+		fos.close();
+		// make sure file is outside of racy window
+		file.setLastModified(System.currentTimeMillis() - 120000);
+		return file;
+	}
+}
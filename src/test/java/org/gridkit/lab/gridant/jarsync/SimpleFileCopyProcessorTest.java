@@ -2,13 +2,22 @@ package org.gridkit.lab.gridant.jarsync;
 
 import static org.gridkit.lab.gridant.jarsync.TestHelper.methodName;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
 
 import org.gridkit.lab.gridant.jarsync.BatchCopyProcessor.CopyBatch;
 import org.gridkit.lab.gridant.jarsync.BatchCopyProcessor.CopyReporter;
+import org.gridkit.lab.gridant.jarsync.jarsync.ChecksumPair;
+import org.gridkit.lab.gridant.jarsync.jarsync.DataBlock;
+import org.gridkit.lab.gridant.jarsync.jarsync.Delta;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -51,6 +60,292 @@ public class SimpleFileCopyProcessorTest {
         Assert.assertEquals(expected.toString(), tracker.toString());
 	}
 
+	@Test
+	public void verify_parallel_file_copy() throws IOException {
+		SimpleFileSyncProcessor sfcp = new SimpleFileSyncProcessor();
+		String src = "src/test/resources/SimpleFileCopyProcessor/root1";
+		String dst = TARGET_PATH + "/" + methodName();
+		CopyBatch batch = sfcp.startBatch(sync(src));
+		CopyTracker tracker = new CopyTracker(src, dst);
+		batch.threads(4);
+		batch.sourceExclude("**/.mkdir");
+		batch.copy("**");
+		batch.prepare(tracker);
+		batch.execute(sync(dst), tracker);
+
+		StringBuilder expected = new StringBuilder();
+		expected.append("pom.xml -> pom.xml <copy>").append("\n"); 
+		expected.append("src/main/root/a.txt -> src/main/root/a.txt <copy>").append("\n"); 
+		expected.append("src/main/root/b.txt -> src/main/root/b.txt <copy>").append("\n"); 
+		expected.append("src/main/root/b.txt.v2 -> src/main/root/b.txt.v2 <copy>").append("\n"); 
+		expected.append("src/main/root/override1 -> src/main/root/override1 <dir>").append("\n"); 
+		expected.append("src/main/root/override2 -> src/main/root/override2 <dir>").append("\n"); 
+		expected.append("src/main/root/x.prop -> src/main/root/x.prop <copy>").append("\n"); 
+
+		Assert.assertEquals(expected.toString(), tracker.toString());
+	}
+
+	@Test
+	public void verify_packed_file_copy() throws IOException {
+		SimpleFileSyncProcessor sfcp = new SimpleFileSyncProcessor();
+		String src = "src/test/resources/SimpleFileCopyProcessor/root1";
+		String dst = TARGET_PATH + "/" + methodName();
+		CopyBatch batch = sfcp.startBatch(sync(src));
+		CopyTracker tracker = new CopyTracker(src, dst);
+		// few files per pack, to have several packs
+		batch.packSmallFiles(4096, 2);
+		batch.sourceExclude("**/.mkdir");
+		batch.copy("**");
+		batch.prepare(tracker);
+		batch.execute(sync(dst), tracker);
+
+		StringBuilder expected = new StringBuilder();
+		expected.append("pom.xml -> pom.xml <copy>").append("\n"); 
+		expected.append("src/main/root/a.txt -> src/main/root/a.txt <copy>").append("\n"); 
+		expected.append("src/main/root/b.txt -> src/main/root/b.txt <copy>").append("\n"); 
+		expected.append("src/main/root/b.txt.v2 -> src/main/root/b.txt.v2 <copy>").append("\n"); 
+		expected.append("src/main/root/override1 -> src/main/root/override1 <dir>").append("\n"); 
+		expected.append("src/main/root/override2 -> src/main/root/override2 <dir>").append("\n"); 
+		expected.append("src/main/root/x.prop -> src/main/root/x.prop <copy>").append("\n"); 
+
+		Assert.assertEquals(expected.toString(), tracker.toString());
+		for(String path: new String[]{"pom.xml", "src/main/root/a.txt", "src/main/root/b.txt", "src/main/root/b.txt.v2", "src/main/root/x.prop"}) {
+			Assert.assertArrayEquals(path, StreamHelper.readFile(new File(src, path)), StreamHelper.readFile(new File(dst, path)));
+		}
+	}
+
+	@Test
+	public void verify_streaming_patch() throws IOException {
+		String src = "src/test/resources/SimpleFileCopyProcessor/root1/src/main/root";
+		String dst = TARGET_PATH + "/" + methodName();
+		byte[] v1 = StreamHelper.readFile(new File(src, "b.txt"));
+		byte[] v2 = StreamHelper.readFile(new File(src, "b.txt.v2"));
+		OutputStream os = sync(dst).openFileForWrite("b.txt");
+		os.write(v1);
+		os.close();
+
+		FileSyncParty source = new RemoteFileSyncSlave(sync(src));
+		OutputStream patch = sync(dst).openPatchForWrite("b.txt", "b.txt");
+		source.streamPatch("b.txt.v2", sync(dst).readChecksums("b.txt"), patch);
+		patch.close();
+		Assert.assertArrayEquals(v2, StreamHelper.readFile(new File(dst, "b.txt")));
+
+		// incomplete patch is discarded
+		patch = sync(dst).openPatchForWrite("b.txt", "b.txt");
+		patch.write(new byte[] {0x72, 0x73, 0x02, 0x36});
+		try {
+			patch.close();
+			Assert.fail("Incomplete patch should fail");
+		}
+		catch(IOException e) {
+			// expected
+		}
+		Assert.assertArrayEquals(v2, StreamHelper.readFile(new File(dst, "b.txt")));
+		Assert.assertEquals("[b.txt]", Arrays.toString(new File(dst).list()));
+	}
+
+	@Test
+	public void verify_streamed_patch_literal_count() throws IOException {
+		String src = "src/test/resources/SimpleFileCopyProcessor/root1/src/main/root";
+		List<ChecksumPair> digest = sync(src).readChecksums("b.txt");
+		long dataSize = 0;
+		for(Delta d: sync(src).preparePatches(Collections.singletonList("b.txt.v2"), Collections.singletonList(digest)).get(0)) {
+			if (d instanceof DataBlock) {
+				dataSize += d.getBlockLength();
+			}
+		}
+		LiteralCountingStream counter = new LiteralCountingStream(new ByteArrayOutputStream());
+		sync(src).streamPatch("b.txt.v2", digest, counter);
+		Assert.assertTrue(dataSize > 0);
+		Assert.assertEquals(dataSize, counter.getLiteralBytes());
+	}
+
+	@Test
+	public void verify_chunked_file_copy() throws IOException {
+		String src = TARGET_PATH + "/" + methodName() + "/src";
+		String dst = TARGET_PATH + "/" + methodName() + "/dst";
+		// several chunks, half of them incompressible
+		byte[] data = new byte[3 * RemoteFileSyncSlave.TRANSFER_CHUNK + 12345];
+		new Random(1).nextBytes(data);
+		Arrays.fill(data, 0, data.length / 2, (byte)'x');
+		OutputStream os = sync(src).openFileForWrite("big.bin");
+		os.write(data);
+		os.close();
+
+		SimpleFileSyncProcessor sfcp = new SimpleFileSyncProcessor();
+		CopyBatch batch = sfcp.startBatch(sync(src));
+		CopyTracker tracker = new CopyTracker(src, dst);
+		batch.copy("**");
+		batch.prepare(tracker);
+		batch.execute(sync(dst), tracker);
+
+		Assert.assertEquals("big.bin -> big.bin <copy>\n", tracker.toString());
+		Assert.assertArrayEquals(data, StreamHelper.readFile(new File(dst, "big.bin")));
+		Assert.assertEquals(data.length, batch.getTransferStats().getDataBytes());
+	}
+
+	@Test
+	public void verify_duplicate_files() throws IOException {
+		String src = TARGET_PATH + "/" + methodName() + "/src";
+		String dst = TARGET_PATH + "/" + methodName() + "/dst";
+		byte[] data = new byte[64 << 10];
+		new Random(1).nextBytes(data);
+		// same second, so files could be linked
+		long[] times = {1400000000000l, 1400000000500l};
+		String[] paths = {"lib1/x.jar", "lib2/x.jar"};
+		for(int i = 0; i != paths.length; ++i) {
+			OutputStream os = sync(src).openFileForWrite(paths[i]);
+			os.write(data);
+			os.close();
+			sync(src).setLastModified(paths[i], times[i]);
+		}
+
+		SimpleFileSyncProcessor sfcp = new SimpleFileSyncProcessor();
+		{
+			CopyBatch batch = sfcp.startBatch(sync(src));
+			CopyTracker tracker = new CopyTracker(src, dst);
+			batch.quickCheck(true);
+			batch.copy("**");
+			batch.prepare(tracker);
+			batch.execute(sync(dst), tracker);
+
+			StringBuilder expected = new StringBuilder();
+			expected.append("lib1/x.jar -> lib1/x.jar <copy>").append("\n");
+			expected.append("lib2/x.jar -> lib2/x.jar <dedup>").append("\n");
+			Assert.assertEquals(expected.toString(), tracker.toString());
+			Assert.assertArrayEquals(data, StreamHelper.readFile(new File(dst, "lib2/x.jar")));
+			Assert.assertEquals(data.length, batch.getTransferStats().getDataBytes());
+			// linking should not change time of origin
+			Assert.assertEquals(1400000000000l, new File(dst, "lib1/x.jar").lastModified());
+		}
+
+		// new file is duplicated from file already present at target
+		OutputStream os = sync(src).openFileForWrite("lib3/x.jar");
+		os.write(data);
+		os.close();
+		{
+			CopyBatch batch = sfcp.startBatch(sync(src));
+			CopyTracker tracker = new CopyTracker(src, dst);
+			batch.quickCheck(true);
+			batch.copy("**/*.jar");
+			batch.prepare(tracker);
+			batch.execute(sync(dst), tracker);
+
+			StringBuilder expected = new StringBuilder();
+			expected.append("lib1/x.jar -> lib1/x.jar <match>").append("\n");
+			expected.append("lib2/x.jar -> lib2/x.jar <match>").append("\n");
+			expected.append("lib3/x.jar -> lib3/x.jar <dedup>").append("\n");
+			Assert.assertEquals(expected.toString(), tracker.toString());
+			Assert.assertArrayEquals(data, StreamHelper.readFile(new File(dst, "lib3/x.jar")));
+			Assert.assertEquals(sync(src).stat("lib3/x.jar").getLastModified(), sync(dst).stat("lib3/x.jar").getLastModified());
+			Assert.assertEquals(1400000000000l, sync(dst).stat("lib1/x.jar").getLastModified());
+		}
+	}
+
+	@Test
+	public void verify_moved_files() throws IOException {
+		String src = TARGET_PATH + "/" + methodName() + "/src";
+		String dst = TARGET_PATH + "/" + methodName() + "/dst";
+		byte[] data = new byte[64 << 10];
+		new Random(1).nextBytes(data);
+		OutputStream os = sync(src).openFileForWrite("lib-1.5/x.jar");
+		os.write(data);
+		os.close();
+		os = sync(dst).openFileForWrite("lib-1.4/x.jar");
+		os.write(data);
+		os.close();
+
+		SimpleFileSyncProcessor sfcp = new SimpleFileSyncProcessor();
+		CopyBatch batch = sfcp.startBatch(sync(src));
+		CopyTracker tracker = new CopyTracker(src, dst);
+		batch.copy("**");
+		batch.sourcePrune("**");
+		batch.prepare(tracker);
+		batch.execute(sync(dst), tracker);
+
+		StringBuilder expected = new StringBuilder();
+		expected.append(" -> lib-1.4 <prune>").append("\n");
+		expected.append("lib-1.5/x.jar -> lib-1.5/x.jar <move>").append("\n");
+		Assert.assertEquals(expected.toString(), tracker.toString());
+		Assert.assertArrayEquals(data, StreamHelper.readFile(new File(dst, "lib-1.5/x.jar")));
+		Assert.assertEquals(sync(src).stat("lib-1.5/x.jar").getLastModified(), sync(dst).stat("lib-1.5/x.jar").getLastModified());
+		Assert.assertEquals("[lib-1.5]", Arrays.toString(new File(dst).list()));
+		Assert.assertEquals(0, batch.getTransferStats().getDataBytes());
+	}
+
+	@Test
+	public void verify_fuzzy_basis() throws IOException {
+		String src = TARGET_PATH + "/" + methodName() + "/src";
+		String dst = TARGET_PATH + "/" + methodName() + "/dst";
+		byte[] data = new byte[256 << 10];
+		new Random(1).nextBytes(data);
+		OutputStream os = sync(dst).openFileForWrite("lib/app-core-2.3.1.jar");
+		os.write(data);
+		os.close();
+		data[1000] ^= 1;
+		os = sync(src).openFileForWrite("lib/app-core-2.3.2.jar");
+		os.write(data);
+		os.close();
+
+		SimpleFileSyncProcessor sfcp = new SimpleFileSyncProcessor();
+		CopyBatch batch = sfcp.startBatch(sync(src));
+		CopyTracker tracker = new CopyTracker(src, dst);
+		batch.copy("**");
+		batch.sourcePrune("**");
+		batch.fuzzyBasis(true);
+		batch.prepare(tracker);
+		batch.execute(sync(dst), tracker);
+
+		StringBuilder expected = new StringBuilder();
+		expected.append(" -> lib/app-core-2.3.1.jar <prune>").append("\n");
+		expected.append("lib/app-core-2.3.2.jar -> lib/app-core-2.3.2.jar <rewrite 01%>").append("\n");
+		Assert.assertEquals(expected.toString(), tracker.toString());
+		Assert.assertArrayEquals(data, StreamHelper.readFile(new File(dst, "lib/app-core-2.3.2.jar")));
+		Assert.assertEquals("[app-core-2.3.2.jar]", Arrays.toString(new File(dst, "lib").list()));
+		Assert.assertEquals("[lib]", Arrays.toString(new File(dst).list()));
+	}
+
+	@Test
+	public void verify_archive_patch() throws IOException {
+		String src = TARGET_PATH + "/" + methodName() + "/src";
+		String dst = TARGET_PATH + "/" + methodName() + "/dst";
+		byte[] v1 = ArchiveDeltaTest.jar(-1);
+		byte[] v2 = ArchiveDeltaTest.jar(10);
+		OutputStream os = sync(dst).openFileForWrite("lib/app.jar");
+		os.write(v1);
+		os.close();
+		os = sync(src).openFileForWrite("lib/app.jar");
+		os.write(v2);
+		os.close();
+
+		SimpleFileSyncProcessor sfcp = new SimpleFileSyncProcessor();
+		CopyBatch batch = sfcp.startBatch(sync(src));
+		CopyTracker tracker = new CopyTracker(src, dst);
+		batch.copy("**");
+		batch.prepare(tracker);
+		batch.execute(sync(dst), tracker);
+
+		StringBuilder expected = new StringBuilder();
+		expected.append("lib/app.jar -> lib/app.jar <rewrite 05%>").append("\n");
+		Assert.assertEquals(expected.toString(), tracker.toString());
+		Assert.assertArrayEquals(v2, StreamHelper.readFile(new File(dst, "lib/app.jar")));
+		Assert.assertTrue(batch.getTransferStats().toString(), batch.getTransferStats().getDataBytes() < v2.length / 5);
+	}
+
+	@Test
+	public void verify_tree_scan() throws IOException {
+		String src = "src/test/resources/SimpleFileCopyProcessor/root1";
+		SortedMap<String, FileInfo> tree = sync(src).scan("", 1);
+		Assert.assertEquals(tree.keySet(), sync(src).scan("", 4).keySet());
+		Assert.assertTrue(tree.get("src/main/root/").isDirectory());
+		Assert.assertEquals(new File(src, "pom.xml").length(), tree.get("pom.xml").getSize());
+		Assert.assertTrue(sync(src).stat("src/main/root/a.txt").isSameFile(tree.get("src/main/root/a.txt")));
+
+		SortedMap<String, FileInfo> subtree = sync(src).scan("src/main", 2);
+		Assert.assertEquals(tree.subMap("src/main/\0", "src/main0").keySet(), subtree.keySet());
+		Assert.assertFalse(subtree.containsKey("src/main/"));
+	}
+
 	@Test
 	public void verify_simple_file_merge() throws IOException {
 		SimpleFileSyncProcessor sfcp = new SimpleFileSyncProcessor();
@@ -111,6 +406,51 @@ public class SimpleFileCopyProcessorTest {
         }
 	}
 
+	@Test
+	public void verify_quick_check() throws IOException {
+		SimpleFileSyncProcessor sfcp = new SimpleFileSyncProcessor();
+		String src = "src/test/resources/SimpleFileCopyProcessor/root1";
+		String dst = TARGET_PATH + "/" + methodName();
+		{
+			CopyBatch batch = sfcp.startBatch(sync(src));
+			CopyTracker tracker = new CopyTracker(src, dst);
+			batch.quickCheck(true);
+			batch.copy("**/a.txt");
+			batch.prepare(tracker);
+			batch.execute(sync(dst), tracker);
+
+			Assert.assertEquals("src/main/root/a.txt -> src/main/root/a.txt <copy>\n", tracker.toString());
+			// modification time is preserved
+			Assert.assertEquals(sync(src).stat("src/main/root/a.txt").getLastModified(), sync(dst).stat("src/main/root/a.txt").getLastModified());
+		}
+
+		// same size and modification time, but different content
+		long mtime = sync(dst).stat("src/main/root/a.txt").getLastModified();
+		write(sync(dst).openFileForWrite("src/main/root/a.txt"), "0123456789ABCDEF");
+		sync(dst).setLastModified("src/main/root/a.txt", mtime);
+
+		{
+			CopyBatch batch = sfcp.startBatch(sync(src));
+			CopyTracker tracker = new CopyTracker(src, dst);
+			batch.quickCheck(true);
+			batch.copy("**/a.txt");
+			batch.prepare(tracker);
+			batch.execute(sync(dst), tracker);
+
+			Assert.assertEquals("src/main/root/a.txt -> src/main/root/a.txt <match>\n", tracker.toString());
+		}
+
+		{
+			CopyBatch batch = sfcp.startBatch(sync(src));
+			CopyTracker tracker = new CopyTracker(src, dst);
+			batch.copy("**/a.txt");
+			batch.prepare(tracker);
+			batch.execute(sync(dst), tracker);
+
+			Assert.assertEquals("src/main/root/a.txt -> src/main/root/a.txt <rewrite 100%>\n", tracker.toString());
+		}
+	}
+
 	private void write(OutputStream stream, String text) throws IOException {
         OutputStreamWriter writer = new OutputStreamWriter(stream);
         writer.append(text);
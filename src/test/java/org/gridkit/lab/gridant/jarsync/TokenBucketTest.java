@@ -0,0 +1,44 @@
+package org.gridkit.lab.gridant.jarsync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	@Test
+	public void verify_unlimited_bucket_does_not_delay() {
+		TokenBucket bucket = new TokenBucket(0);
+		Assert.assertEquals(0, bucket.reserve(100 << 20));
+	}
+
+	@Test
+	public void verify_lowest_active_limit_is_applied() {
+		TokenBucket bucket = new TokenBucket(0);
+		bucket.addLimit("a", 1 << 20);
+		Assert.assertEquals(1 << 20, bucket.getRate());
+		// user without limit keeps active limit
+		bucket.addLimit("b", 0);
+		Assert.assertEquals(1 << 20, bucket.getRate());
+		bucket.addLimit("c", 1 << 10);
+		Assert.assertEquals(1 << 10, bucket.getRate());
+		bucket.addLimit("d", 1 << 15);
+		Assert.assertEquals(1 << 10, bucket.getRate());
+		bucket.removeLimit("c");
+		Assert.assertEquals(1 << 15, bucket.getRate());
+		bucket.removeLimit("b");
+		bucket.removeLimit("a");
+		bucket.removeLimit("d");
+		// limit is lifted once all users are done
+		Assert.assertEquals(0, bucket.getRate());
+	}
+
+	@Test
+	public void verify_delay_is_proportional_to_size() {
+		TokenBucket bucket = new TokenBucket(1 << 20);
+		long d1 = bucket.reserve(1 << 20);
+		Assert.assertTrue("Delay " + d1, d1 > 900 && d1 <= 1000);
+		// reservations are queued
+		long d2 = bucket.reserve(1 << 19);
+		Assert.assertTrue("Delay " + d2, d2 > 1400 && d2 <= 1500);
+	}
+}